@@ -1,8 +1,30 @@
 #include "jopenjpeg2.h"
 
+/* Decoding state of a jopj_Img, a codec can only continue in certain states */
+#define JOPJ_STATE_HEADER_READ    0
+#define JOPJ_STATE_TILES_DECODED  1
+#define JOPJ_STATE_REGION_DECODED 2
+/* The file position has been moved by someone else than the codec's stream */
+#define JOPJ_STATE_FILE_MOVED     3
+
+#if defined(OPJ_VERSION_MAJOR) && (OPJ_VERSION_MAJOR > 2 || (OPJ_VERSION_MAJOR == 2 && OPJ_VERSION_MINOR >= 3))
+/* Since OpenJPEG 2.3 the decode area can be set again after opj_decode() */
+#define JOPJ_HAVE_REPEATED_DECODE_AREA 1
+#endif
+
+#if defined(OPJ_VERSION_MAJOR) && (OPJ_VERSION_MAJOR > 2 || (OPJ_VERSION_MAJOR == 2 && OPJ_VERSION_MINOR >= 2))
+/* Since OpenJPEG 2.2 a codec can decode the code-blocks of a tile on several threads */
+#define JOPJ_HAVE_CODEC_THREADS 1
+/* Since OpenJPEG 2.2 component data is allocated aligned, it must be released with opj_image_data_free() */
+#define JOPJ_HAVE_IMAGE_DATA_FREE 1
+#endif
+
 JOPENJPEG2_EXPORT struct jopj_SImg
 {
 	FILE*                      fsrc;
+	int                        resolution;
+	int                        num_threads;
+	int                        state;
 	opj_dparameters_t          parameters;
 	opj_image_t*               image;
 	opj_stream_t*              l_stream;
@@ -27,38 +49,53 @@ static void info_callback(const char *msg, void* client_data)
 }
 
 
-JOPENJPEG2_EXPORT jopj_Img* jopj_open_img(const char* filepath, int resolution)
+/* Lets the codec decode on img->num_threads threads, if the library supports it */
+static int jopj_set_codec_threads(jopj_Img* img, opj_codec_t* codec)
 {
-	jopj_Img* img;
-
-	img = (jopj_Img*) calloc(1, sizeof (jopj_Img));
-	if (img == NULL) {
-		fprintf(stderr, "error: out of memory\n");
-		return NULL;
+#ifdef JOPJ_HAVE_CODEC_THREADS
+	if (img->num_threads > 1 && opj_has_thread_support()) {
+		if (!opj_codec_set_threads(codec, img->num_threads)) {
+			/* Not fatal, the codec decodes on the calling thread then */
+			fprintf(stderr, "warning: failed to set %d decoder threads\n", img->num_threads);
+		}
 	}
- 
-	opj_set_default_decoder_parameters(&img->parameters);
-	img->parameters.cp_reduce = resolution;
+#endif
+	return 1;
+}
 
-	img->fsrc = fopen(filepath, "rb");
-	if (img->fsrc == NULL) {
-		jopj_dispose_img(img);
-		fprintf(stderr, "error: failed to open %s for reading\n", filepath);
-		return NULL;
+static void jopj_dispose_codec(jopj_Img* img)
+{
+	if (img->l_stream != NULL) {
+		opj_stream_destroy(img->l_stream);
+		img->l_stream = NULL;
 	}
+	if (img->cstr_info != NULL) {
+		opj_destroy_cstr_info(&img->cstr_info);
+		img->cstr_info = NULL;
+	}
+	if (img->l_codec != NULL) {
+		opj_destroy_codec(img->l_codec);
+		img->l_codec = NULL;
+	}
+	if (img->image != NULL) {
+		opj_image_destroy(img->image);
+		img->image = NULL;
+	}
+}
 
+/* Creates stream and codec on the already opened file and reads the main header */
+static int jopj_init_codec(jopj_Img* img)
+{
 	img->l_stream = opj_stream_create_default_file_stream(img->fsrc, 1);
 	if (img->l_stream == NULL) {
-		jopj_dispose_img(img);
 		fprintf(stderr, "error: failed to create the stream from the file\n");
-		return NULL;
+		return 0;
 	}
 
 	img->l_codec = opj_create_decompress(OPJ_CODEC_JP2);
 	if (img->l_codec == NULL) {
-		jopj_dispose_img(img);
 		fprintf(stderr, "error: failed to create the decompressor\n");
-		return NULL;
+		return 0;
 	}
 
 	opj_set_info_handler(img->l_codec, info_callback, NULL);
@@ -66,23 +103,78 @@ JOPENJPEG2_EXPORT jopj_Img* jopj_open_img(const char* filepath, int resolution)
 	opj_set_error_handler(img->l_codec, error_callback, NULL);
 
 	if (!opj_setup_decoder(img->l_codec, &img->parameters)) {
-		jopj_dispose_img(img);
 		fprintf(stderr, "error: failed to setup the decoder\n");
-		return NULL;
+		return 0;
 	}
 
+	jopj_set_codec_threads(img, img->l_codec);
+
 	if (!opj_read_header(img->l_stream, img->l_codec, &img->image)) {
-		jopj_dispose_img(img);
 		fprintf(stderr, "error: failed to read the header\n");
-		return NULL;
+		return 0;
 	}
 
-	if (!opj_set_decoded_resolution_factor(img->l_codec, resolution)) {
-		jopj_dispose_img(img);
+	if (!opj_set_decoded_resolution_factor(img->l_codec, img->resolution)) {
 		fprintf(stderr, "error: failed to set resolution factor\n");
+		return 0;
 	}
 
 	img->cstr_info = opj_get_cstr_info(img->l_codec);
+	img->state = JOPJ_STATE_HEADER_READ;
+
+	return 1;
+}
+
+/* Rewinds the file and starts over with a fresh codec, the file stays open */
+static int jopj_reset_img(jopj_Img* img)
+{
+	jopj_dispose_codec(img);
+	if (fseek(img->fsrc, 0, SEEK_SET) != 0) {
+		fprintf(stderr, "error: failed to rewind file\n");
+		return 0;
+	}
+	return jopj_init_codec(img);
+}
+
+
+JOPENJPEG2_EXPORT jopj_Img* jopj_open_img(const char* filepath, int resolution)
+{
+	return jopj_open_img_ex(filepath, resolution, 0, 1);
+}
+
+JOPENJPEG2_EXPORT jopj_Img* jopj_open_img_layers(const char* filepath, int resolution, int num_layers)
+{
+	return jopj_open_img_ex(filepath, resolution, num_layers, 1);
+}
+
+JOPENJPEG2_EXPORT jopj_Img* jopj_open_img_ex(const char* filepath, int resolution, int num_layers, int num_threads)
+{
+	jopj_Img* img;
+
+	img = (jopj_Img*) calloc(1, sizeof (jopj_Img));
+	if (img == NULL) {
+		fprintf(stderr, "error: out of memory\n");
+		return NULL;
+	}
+ 
+	opj_set_default_decoder_parameters(&img->parameters);
+	img->parameters.cp_reduce = resolution;
+	/* Only the first num_layers quality layers are decoded, 0 decodes all */
+	img->parameters.cp_layer = num_layers > 0 ? num_layers : 0;
+	img->resolution = resolution;
+	img->num_threads = num_threads;
+
+	img->fsrc = fopen(filepath, "rb");
+	if (img->fsrc == NULL) {
+		jopj_dispose_img(img);
+		fprintf(stderr, "error: failed to open %s for reading\n", filepath);
+		return NULL;
+	}
+
+	if (!jopj_init_codec(img)) {
+		jopj_dispose_img(img);
+		return NULL;
+	}
 
 	return img;
 }
@@ -92,7 +184,9 @@ void jopj_copy_data(opj_image_t* image, int comp_index, int x0, int y0, int dw,
 	opj_image_comp_t* comp;
 	int nbytes;
 	int cx0, cy0, cw, ch, n;
-	int i, j;
+	int i, j, w, h;
+	OPJ_INT32* src;
+	short* dst;
 
 	comp = &image->comps[comp_index];
 	cx0 = comp->x0;
@@ -112,58 +206,124 @@ void jopj_copy_data(opj_image_t* image, int comp_index, int x0, int y0, int dw,
 	
 	fprintf(stderr, "info: copying %d pixels, factor=%d, from cx0=%d, cy0=%d, cw=%d, ch=%d, #bytes/sample=%d to tile tw=%d, th=%d\n", n, comp->factor, cx0, cy0, cw, ch, nbytes, dw, dh);
 
-	for (j = 0; j < dh; j++) {
-		for (i = 0; i < dw; i++) {
-			if (i < cw && j < ch) {
-				data[j * dw + i] = (short) comp->data[j * cw + i];
-			} else {
-				data[j * dw + i] = 0;
-			}
+	/* Copy row by row, the per-pixel bounds check is hoisted out of the inner loop */
+	w = cw < dw ? cw : dw;
+	h = ch < dh ? ch : dh;
+	for (j = 0; j < h; j++) {
+		src = comp->data + j * cw;
+		dst = data + j * dw;
+		for (i = 0; i < w; i++) {
+			dst[i] = (short) src[i];
 		}
+		if (w < dw) {
+			memset(dst + w, 0, (dw - w) * sizeof (short));
+		}
+	}
+	if (h < dh) {
+		memset(data + h * dw, 0, (dh - h) * dw * sizeof (short));
 	}
+}
 
+
+/*
+ * Releases the decoded samples of a component. The codec allocates them, so only its own deallocator may be used.
+ * Older codecs have none, their samples are left to the next decode or to opj_image_destroy().
+ */
+static void jopj_free_comp_data(opj_image_comp_t* comp)
+{
+#ifdef JOPJ_HAVE_IMAGE_DATA_FREE
+	if (comp->data != NULL) {
+		opj_image_data_free(comp->data);
+		comp->data = NULL;
+	}
+#else
+	(void) comp;
+#endif
 }
 
 
 JOPENJPEG2_EXPORT int jopj_read_img_region_data(const char* filepath, int resolution, int comp_index, int x0, int y0, int w, int h, short data[])
 {
 	jopj_Img* img;
-	opj_image_t* image;
-	int x1, y1;
+	int ok;
+	int rx0, ry0;
 
 	img = jopj_open_img(filepath, resolution);
 	if (img == NULL) {
 		return 0;
 	}
 
-	image = img->image;
-	x1 = x0 + w - 1;
-	y1 = y0 + h - 1;
+	/* x0, y0 are on the reference grid as ever, jopj_read_img_region() takes them at the decoded resolution */
+	rx0 = x0 - (int) img->image->x0;
+	ry0 = y0 - (int) img->image->y0;
+	rx0 = rx0 > 0 ? (rx0 + (1 << resolution) - 1) >> resolution : 0;
+	ry0 = ry0 > 0 ? (ry0 + (1 << resolution) - 1) >> resolution : 0;
 
-	if (comp_index < 0 || comp_index >= (int) image->numcomps) {
+	ok = jopj_read_img_region(img, comp_index, rx0, ry0, w, h, data);
+
+	if (ok && !opj_end_decompress(img->l_codec, img->l_stream)) {
+		fprintf(stderr, "warning: failed to end decompression\n");
+	}
+
+	jopj_dispose_img(img);
+
+	return ok;
+}
+
+
+JOPENJPEG2_EXPORT int jopj_read_img_region(jopj_Img* img, int comp_index, int x0, int y0, int w, int h, short data[])
+{
+	opj_image_t* image;
+	int i, factor;
+	int rx0, ry0, rx1, ry1;
+
+	if (comp_index < 0 || comp_index >= (int) img->image->numcomps) {
 		fprintf(stderr, "error: invalid component index %d\n", comp_index);
 		return 0;
 	}
- 
-	if (!opj_set_decode_area(img->l_codec, image, x0, y0, x1, y1)) {
-		fprintf(stderr,	"error: failed to set the decoded region x0=%d, y0=%d, x1=%d, y1=%d\n", x0, y0, x1, y1);
-		jopj_dispose_img(img);
+
+	/* Region coordinates are given at the decoded resolution, the decode area is on the reference grid */
+	factor = img->resolution;
+	rx0 = img->image->x0 + (x0 << factor);
+	ry0 = img->image->y0 + (y0 << factor);
+	rx1 = img->image->x0 + ((x0 + w) << factor);
+	ry1 = img->image->y0 + ((y0 + h) << factor);
+	if (rx1 > (int) img->image->x1) {
+		rx1 = img->image->x1;
+	}
+	if (ry1 > (int) img->image->y1) {
+		ry1 = img->image->y1;
+	}
+
+#ifndef JOPJ_HAVE_REPEATED_DECODE_AREA
+	/* Older codecs only accept a decode area right after the main header has been read */
+	if (img->state != JOPJ_STATE_HEADER_READ && !jopj_reset_img(img)) {
+		return 0;
+	}
+#else
+	if ((img->state == JOPJ_STATE_TILES_DECODED || img->state == JOPJ_STATE_FILE_MOVED) && !jopj_reset_img(img)) {
+		return 0;
+	}
+#endif
+	image = img->image;
+
+	if (!opj_set_decode_area(img->l_codec, image, rx0, ry0, rx1, ry1)) {
+		fprintf(stderr,	"error: failed to set the decoded region x0=%d, y0=%d, x1=%d, y1=%d\n", rx0, ry0, rx1, ry1);
 		return 0;
 	}
 
+	img->state = JOPJ_STATE_REGION_DECODED;
 	if (!opj_decode(img->l_codec, img->l_stream, image)) {
-		fprintf(stderr,	"error: failed to decode region x0=%d, y0=%d, x1=%d, y1=%d\n", x0, y0, x1, y1);
-		jopj_dispose_img(img);
+		fprintf(stderr,	"error: failed to decode region x0=%d, y0=%d, x1=%d, y1=%d\n", rx0, ry0, rx1, ry1);
 		return 0;
 	}
 
 	jopj_copy_data(image, comp_index, x0, y0, w, h, data);
-	
-	if (!opj_end_decompress(img->l_codec, img->l_stream)) {
-		fprintf(stderr, "warning: failed to end decompression\n");
-	}
 
-	jopj_dispose_img(img);
+	/* The handle is kept, but the decoded samples are not needed anymore */
+	for (i = 0; i < (int) image->numcomps; i++) {
+		jopj_free_comp_data(&image->comps[i]);
+	}
 
 	return 1;
 }
@@ -176,6 +336,9 @@ JOPENJPEG2_EXPORT int jopj_read_img_tile_data(jopj_Img* img, int comp_index, int
 	int tx0, ty0;
 	int tw, th;
 
+	if ((img->state == JOPJ_STATE_REGION_DECODED || img->state == JOPJ_STATE_FILE_MOVED) && !jopj_reset_img(img)) {
+		return 0;
+	}
 	image = img->image;
 
 	if (comp_index < 0 || comp_index >= (int) image->numcomps) {
@@ -183,6 +346,7 @@ JOPENJPEG2_EXPORT int jopj_read_img_tile_data(jopj_Img* img, int comp_index, int
 		return 0;
 	}
 
+	img->state = JOPJ_STATE_TILES_DECODED;
 	if (!opj_get_decoded_tile(img->l_codec, img->l_stream, image, tile_index)) {
 		fprintf(stderr, "error: failed to decode tile %d\n", tile_index);
 		return 0;
@@ -196,41 +360,191 @@ JOPENJPEG2_EXPORT int jopj_read_img_tile_data(jopj_Img* img, int comp_index, int
 
 	jopj_copy_data(image, comp_index, tx0, ty0, tw, th, data);
 
-	/* I don't know if the following code is save, but for sure, we don't need the memory anymore (nf) */
-	if (comp->data != NULL) {
-		free(comp->data);
-		comp->data = NULL;
-	}
+	/* The decoded samples are not needed anymore */
+	jopj_free_comp_data(comp);
 
 	return 1;
 }
 
 
+/*
+ * A read-only stream over a list of file segments, used to feed a codec with a stand-alone
+ * codestream made of the main header and the tile-parts of a single tile.
+ * A segment with a negative offset stands for an EOC marker, which is not part of the file.
+ */
+typedef struct jopj_SSegmentStream
+{
+	FILE*            file;
+	int              num_segments;
+	const long long* offsets;
+	const long long* lengths;
+	long long        pos;
+	long long        length;
+} jopj_SegmentStream;
+
+static OPJ_SIZE_T jopj_segment_read(void* buffer, OPJ_SIZE_T nb_bytes, void* user_data)
+{
+	jopj_SegmentStream* ss;
+	OPJ_BYTE* dst;
+	OPJ_SIZE_T nb_read, n, r;
+	long long start, off;
+	int i;
+
+	ss = (jopj_SegmentStream*) user_data;
+	if (ss->pos >= ss->length) {
+		return (OPJ_SIZE_T) -1;
+	}
+
+	dst = (OPJ_BYTE*) buffer;
+	nb_read = 0;
+	start = 0;
+	for (i = 0; i < ss->num_segments && nb_bytes > 0; i++) {
+		if (ss->pos >= start + ss->lengths[i]) {
+			start += ss->lengths[i];
+			continue;
+		}
+		off = ss->pos - start;
+		n = (OPJ_SIZE_T) (ss->lengths[i] - off);
+		if (n > nb_bytes) {
+			n = nb_bytes;
+		}
+		if (ss->offsets[i] < 0) {
+			static const OPJ_BYTE eoc[2] = {0xFF, 0xD9};
+			memcpy(dst, eoc + off, n);
+			r = n;
+		} else {
+			if (fseek(ss->file, (long) (ss->offsets[i] + off), SEEK_SET) != 0) {
+				break;
+			}
+			r = fread(dst, 1, n, ss->file);
+		}
+		dst += r;
+		nb_read += r;
+		nb_bytes -= r;
+		ss->pos += r;
+		if (r < n) {
+			break;
+		}
+		start += ss->lengths[i];
+	}
+
+	return nb_read > 0 ? nb_read : (OPJ_SIZE_T) -1;
+}
+
+static OPJ_OFF_T jopj_segment_skip(OPJ_OFF_T nb_bytes, void* user_data)
+{
+	jopj_SegmentStream* ss;
+
+	ss = (jopj_SegmentStream*) user_data;
+	if (ss->pos + nb_bytes > ss->length) {
+		nb_bytes = ss->length - ss->pos;
+	}
+	ss->pos += nb_bytes;
+	return nb_bytes;
+}
+
+static OPJ_BOOL jopj_segment_seek(OPJ_OFF_T nb_bytes, void* user_data)
+{
+	jopj_SegmentStream* ss;
+
+	ss = (jopj_SegmentStream*) user_data;
+	if (nb_bytes < 0 || nb_bytes > ss->length) {
+		return OPJ_FALSE;
+	}
+	ss->pos = nb_bytes;
+	return OPJ_TRUE;
+}
+
+
+JOPENJPEG2_EXPORT int jopj_read_img_tile_data_indexed(jopj_Img* img, int comp_index, int tile_index, int num_segments, const long long offsets[], const long long lengths[], short data[])
+{
+	jopj_SegmentStream ss;
+	opj_stream_t* l_stream;
+	opj_codec_t* l_codec;
+	opj_image_t* image;
+	opj_image_comp_t* comp;
+	int i, ok;
+
+	if (comp_index < 0 || comp_index >= (int) img->image->numcomps) {
+		fprintf(stderr, "error: invalid component index %d\n", comp_index);
+		return 0;
+	}
+
+	ss.file = img->fsrc;
+	ss.num_segments = num_segments;
+	ss.offsets = offsets;
+	ss.lengths = lengths;
+	ss.pos = 0;
+	ss.length = 0;
+	for (i = 0; i < num_segments; i++) {
+		ss.length += lengths[i];
+	}
+
+	/* We are going to move the file position under the handle's own stream */
+	img->state = JOPJ_STATE_FILE_MOVED;
+
+	l_stream = opj_stream_default_create(OPJ_TRUE);
+	if (l_stream == NULL) {
+		fprintf(stderr, "error: failed to create the segment stream\n");
+		return 0;
+	}
+	opj_stream_set_read_function(l_stream, jopj_segment_read);
+	opj_stream_set_skip_function(l_stream, jopj_segment_skip);
+	opj_stream_set_seek_function(l_stream, jopj_segment_seek);
+#if defined(OPJ_VERSION_MAJOR) && (OPJ_VERSION_MAJOR > 2 || (OPJ_VERSION_MAJOR == 2 && OPJ_VERSION_MINOR >= 1))
+	opj_stream_set_user_data(l_stream, &ss, NULL);
+#else
+	opj_stream_set_user_data(l_stream, &ss);
+#endif
+	opj_stream_set_user_data_length(l_stream, (OPJ_UINT64) ss.length);
+
+	l_codec = opj_create_decompress(OPJ_CODEC_J2K);
+	if (l_codec == NULL) {
+		opj_stream_destroy(l_stream);
+		fprintf(stderr, "error: failed to create the decompressor\n");
+		return 0;
+	}
+	opj_set_info_handler(l_codec, info_callback, NULL);
+	opj_set_warning_handler(l_codec, warning_callback, NULL);
+	opj_set_error_handler(l_codec, error_callback, NULL);
+
+	image = NULL;
+	ok = opj_setup_decoder(l_codec, &img->parameters)
+	     && jopj_set_codec_threads(img, l_codec)
+	     && opj_read_header(l_stream, l_codec, &image)
+	     && opj_set_decoded_resolution_factor(l_codec, img->resolution)
+	     && opj_get_decoded_tile(l_codec, l_stream, image, tile_index);
+
+	if (ok) {
+		comp = &image->comps[comp_index];
+		jopj_copy_data(image, comp_index, comp->x0, comp->y0,
+		               img->cstr_info->tdx >> comp->factor,
+		               img->cstr_info->tdy >> comp->factor,
+		               data);
+	} else {
+		fprintf(stderr, "error: failed to decode tile %d from its segments\n", tile_index);
+	}
+
+	if (image != NULL) {
+		opj_image_destroy(image);
+	}
+	opj_destroy_codec(l_codec);
+	opj_stream_destroy(l_stream);
+
+	return ok;
+}
+
+
 JOPENJPEG2_EXPORT void jopj_dispose_img(jopj_Img* img) 
 {
 	if (img == NULL) {
 		return;
 	}
-	if (img->l_stream != NULL) {
-		opj_stream_destroy(img->l_stream);
-		img->l_stream = NULL;
-	}
+	jopj_dispose_codec(img);
 	if (img->fsrc != NULL) {
 		fclose(img->fsrc);
 		img->fsrc = NULL;
 	}
-	if (img->cstr_info != NULL) {
-		opj_destroy_cstr_info(&img->cstr_info);
-		img->cstr_info = NULL;
-	}
-	if (img->l_codec != NULL) {
-		opj_destroy_codec(img->l_codec);
-		img->l_codec = NULL;
-	}
-	if (img->image != NULL) {
-		opj_image_destroy(img->image);
-		img->image = NULL;
-	}
 	free(img);
 }
 
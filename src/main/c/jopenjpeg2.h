@@ -50,10 +50,16 @@ typedef struct jopj_SImgInfo jopj_ImgInfo;
 JOPENJPEG2_EXPORT struct jopj_SImg;
 typedef struct jopj_SImg jopj_Img;
 
+/* x0, y0 are reference grid coordinates, rounded up to the decoded resolution, width and height are decoded pixels */
 JOPENJPEG2_EXPORT int jopj_read_img_region_data(const char* filepath, int resolution, int comp_index, int x0, int y0, int width, int height, short data[]);
 
 JOPENJPEG2_EXPORT jopj_Img* jopj_open_img(const char* filepath, int resolution);
+JOPENJPEG2_EXPORT jopj_Img* jopj_open_img_layers(const char* filepath, int resolution, int num_layers);
+JOPENJPEG2_EXPORT jopj_Img* jopj_open_img_ex(const char* filepath, int resolution, int num_layers, int num_threads);
 JOPENJPEG2_EXPORT int jopj_read_img_tile_data(jopj_Img* img, int comp_index, int tile_index, short data[]);
+JOPENJPEG2_EXPORT int jopj_read_img_tile_data_indexed(jopj_Img* img, int comp_index, int tile_index, int num_segments, const long long offsets[], const long long lengths[], short data[]);
+/* x0, y0, width and height are pixels at the decoded resolution, relative to the image origin */
+JOPENJPEG2_EXPORT int jopj_read_img_region(jopj_Img* img, int comp_index, int x0, int y0, int width, int height, short data[]);
 JOPENJPEG2_EXPORT void jopj_dispose_img(jopj_Img* img);
 
 JOPENJPEG2_EXPORT jopj_ImgInfo* jopj_get_img_info(jopj_Img* img);
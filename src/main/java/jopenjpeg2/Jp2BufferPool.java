@@ -0,0 +1,78 @@
+package jopenjpeg2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recycles direct (off-heap) byte buffers used as decoding targets, so that decoding large tiles
+ * neither copies through temporary Java arrays nor produces garbage.
+ * Buffers are kept by capacity. At most {@code maxPooledBytes} are held while not in use.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2BufferPool {
+
+    public static final Jp2BufferPool INSTANCE = new Jp2BufferPool(Long.getLong("jopenjpeg2.bufferPool.maxBytes", 256L * 1024 * 1024));
+
+    private final long maxPooledBytes;
+    private final Map<Integer, Deque<ByteBuffer>> freeBuffers;
+    private long pooledBytes;
+
+    public Jp2BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.freeBuffers = new HashMap<Integer, Deque<ByteBuffer>>();
+    }
+
+    /**
+     * @param numBytes The required buffer size in bytes.
+     * @return A cleared, direct buffer in native byte order whose limit is {@code numBytes}.
+     */
+    public ByteBuffer acquire(int numBytes) {
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            final Deque<ByteBuffer> buffers = freeBuffers.get(numBytes);
+            if (buffers != null && !buffers.isEmpty()) {
+                buffer = buffers.pop();
+                pooledBytes -= numBytes;
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(numBytes).order(ByteOrder.nativeOrder());
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use the buffer afterwards.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        final int capacity = buffer.capacity();
+        if (pooledBytes + capacity > maxPooledBytes) {
+            return;
+        }
+        Deque<ByteBuffer> buffers = freeBuffers.get(capacity);
+        if (buffers == null) {
+            buffers = new ArrayDeque<ByteBuffer>();
+            freeBuffers.put(capacity, buffers);
+        }
+        buffers.push(buffer);
+        pooledBytes += capacity;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    public synchronized void clear() {
+        freeBuffers.clear();
+        pooledBytes = 0;
+    }
+}
@@ -0,0 +1,239 @@
+package jopenjpeg2;
+
+import org.esa.beam.util.SystemUtils;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The disk cache for decoded tiles and other files derived from JP2 images, shared by all readers.
+ * <p/>
+ * Decoded tile files (*.pgx) are limited to a total size given by the system property
+ * {@code jopenjpeg2.cache.maxBytes}. If the limit is exceeded, the least recently used tile files
+ * are deleted. Files are only deleted while no reader uses them, i.e. between {@link #acquire(File)} and
+ * {@link #release(File)}. Access times are stored as file modification times, so that the
+ * eviction order survives restarts.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2Cache {
+
+    public static final Jp2Cache INSTANCE = new Jp2Cache(new File(SystemUtils.getApplicationDataDir(), "jopenjpeg/cache"),
+                                                         Long.getLong("jopenjpeg2.cache.maxBytes", 4L * 1024 * 1024 * 1024));
+
+    private static final String TILE_EXT = ".pgx";
+    private static final String TEMP_CODESTREAM_EXT = ".j2k";
+    private static final String TEMP_PART_EXT = ".part";
+    private static final String TEMP_PREFIX = "~";
+    private static final long TEMP_FILE_MAX_AGE = 24L * 60 * 60 * 1000;
+
+    private final File rootDir;
+    private final long maxBytes;
+    // In access order, least recently used first
+    private final Map<File, Entry> entries;
+    private long cachedBytes;
+    private boolean scanned;
+
+    /**
+     * @param imageFile The canonical JP2 file.
+     * @return The cache directory of the product package containing the image, created if necessary.
+     */
+    public static File getPackageCacheDir(File imageFile) throws IOException {
+        return INSTANCE.getPackageDir(imageFile);
+    }
+
+    /**
+     * Creates a temporary file in a package cache directory. Unlike tile files it is never cached, and if it
+     * is left behind, e.g. by a crash, a later session deletes it.
+     */
+    public static File createTempFile(String prefix, String suffix, File packageDir) throws IOException {
+        return File.createTempFile(TEMP_PREFIX + prefix, suffix, packageDir);
+    }
+
+    /**
+     * Gives a file written under a temporary name its final name in one step, so that no one reads it half-written.
+     * The temporary file is dropped if the file has been written by someone else meanwhile.
+     *
+     * @return {@code true} if the file exists under its final name.
+     */
+    public static boolean moveTempFile(File tempFile, File file) {
+        if (tempFile.renameTo(file)) {
+            return true;
+        }
+        // Windows doesn't replace existing files
+        final boolean exists = file.exists();
+        tempFile.delete();
+        return exists;
+    }
+
+    Jp2Cache(File rootDir, long maxBytes) {
+        this.rootDir = rootDir;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<File, Entry>(256, 0.75f, true);
+    }
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCachedBytes() {
+        scanIfNeeded();
+        return cachedBytes;
+    }
+
+    public File getPackageDir(File imageFile) throws IOException {
+        if (imageFile.getParentFile() == null) {
+            throw new IOException("Can't determine package directory");
+        }
+
+        final File packageCacheDir = new File(rootDir, imageFile.getParentFile().getName());
+        packageCacheDir.mkdirs();
+        if (!packageCacheDir.exists() || !packageCacheDir.isDirectory() || !packageCacheDir.canWrite()) {
+            throw new IOException("Can't access package cache directory");
+        }
+        return packageCacheDir;
+    }
+
+    /**
+     * Marks a cached file as used, so that it won't be evicted until {@link #release(File)} is called.
+     * Files not known to the cache yet, e.g. freshly decoded tiles, are added to it.
+     *
+     * @param file The cached file.
+     * @return {@code false} if the file does not exist, in which case it must not be released.
+     */
+    public synchronized boolean acquire(File file) {
+        scanIfNeeded();
+        Entry entry = entries.get(file);
+        if (!file.isFile()) {
+            if (entry != null && entry.useCount == 0) {
+                remove(file);
+            }
+            return false;
+        }
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(file, entry);
+        }
+        if (entry.useCount == 0) {
+            // The file may have been rewritten since we saw it last
+            final long length = file.length();
+            cachedBytes += length - entry.length;
+            entry.length = length;
+        }
+        entry.useCount++;
+        file.setLastModified(System.currentTimeMillis());
+        reclaim();
+        return true;
+    }
+
+    public synchronized void release(File file) {
+        final Entry entry = entries.get(file);
+        if (entry != null && entry.useCount > 0) {
+            entry.useCount--;
+            if (entry.useCount == 0) {
+                reclaim();
+            }
+        }
+    }
+
+    /**
+     * Deletes least recently used files which are not in use, until the cache size is within its limit.
+     */
+    public synchronized void reclaim() {
+        scanIfNeeded();
+        if (cachedBytes <= maxBytes) {
+            return;
+        }
+        final Iterator<Map.Entry<File, Entry>> iterator = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<File, Entry> mapEntry = iterator.next();
+            final Entry entry = mapEntry.getValue();
+            if (entry.useCount == 0) {
+                final File file = mapEntry.getKey();
+                if (file.delete() || !file.exists()) {
+                    iterator.remove();
+                    cachedBytes -= entry.length;
+                } else {
+                    BeamLogManager.getSystemLogger().warning("Failed to delete cached file " + file);
+                }
+            }
+        }
+    }
+
+    private void remove(File file) {
+        final Entry entry = entries.remove(file);
+        if (entry != null) {
+            cachedBytes -= entry.length;
+        }
+    }
+
+    /**
+     * Registers the tile files left by previous sessions, oldest first, and deletes stale temporary files.
+     */
+    private void scanIfNeeded() {
+        if (scanned) {
+            return;
+        }
+        scanned = true;
+
+        final List<File> tileFiles = new ArrayList<File>();
+        final File[] packageDirs = rootDir.listFiles();
+        if (packageDirs != null) {
+            final long now = System.currentTimeMillis();
+            for (File packageDir : packageDirs) {
+                final File[] files = packageDir.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    final String name = file.getName();
+                    if (name.startsWith(TEMP_PREFIX) || name.endsWith(TEMP_CODESTREAM_EXT) || name.endsWith(TEMP_PART_EXT)) {
+                        if (now - file.lastModified() > TEMP_FILE_MAX_AGE) {
+                            file.delete();
+                        }
+                    } else if (name.endsWith(TILE_EXT)) {
+                        tileFiles.add(file);
+                    }
+                }
+            }
+        }
+
+        final Map<File, Long> lastModified = new LinkedHashMap<File, Long>();
+        for (File tileFile : tileFiles) {
+            lastModified.put(tileFile, tileFile.lastModified());
+        }
+        Collections.sort(tileFiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                final long t1 = lastModified.get(f1);
+                final long t2 = lastModified.get(f2);
+                return t1 < t2 ? -1 : t1 > t2 ? 1 : 0;
+            }
+        });
+        for (File tileFile : tileFiles) {
+            if (!entries.containsKey(tileFile)) {
+                final Entry entry = new Entry();
+                entry.length = tileFile.length();
+                entries.put(tileFile, entry);
+                cachedBytes += entry.length;
+            }
+        }
+    }
+
+    private static class Entry {
+        long length;
+        int useCount;
+    }
+}
@@ -0,0 +1,15 @@
+package jopenjpeg2;
+
+/**
+ * An image which keeps its decoded tiles in the disk cache. Reading a cached tile doesn't decode
+ * anything, so it must not count as a decode when backends are compared.
+ *
+ * @author Norman Fomferra
+ */
+interface Jp2DiskCachedImage extends Jp2Image {
+
+    /**
+     * @return {@code true} if the decoded tile is in the disk cache.
+     */
+    boolean isTileCached(int tileX, int tileY);
+}
@@ -2,56 +2,85 @@ package jopenjpeg2;
 
 import com.bc.ceres.core.ProcessObserver;
 import com.bc.ceres.core.ProgressMonitor;
-import org.esa.beam.util.SystemUtils;
 import org.esa.beam.util.io.FileUtils;
+import org.esa.beam.util.logging.BeamLogManager;
 
 import javax.imageio.stream.FileImageInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  * @author Norman Fomferra
  */
-class Jp2ExeImage implements Jp2Image {
+class Jp2ExeImage implements Jp2DiskCachedImage {
 
     private static final String EXE = System.getProperty("openjpeg2.decompressor.path", "opj_decompress");
+    private static final Jp2SingleFlight<File, Boolean> TILE_DECODES = new Jp2SingleFlight<File, Boolean>();
 
     private final File file;
     private final File cacheDir;
     private final Layout layout;
+    private final Jp2TileIndex tilePartIndex;
     private final int resolution;
+    private final int numLayers;
     private final Set<File> tilesInProgress;
     private final Set<File> tilesGenerated;
 
     public static Jp2Image open(File file, int resolution) throws IOException {
+        return open(file, resolution, 0);
+    }
+
+    public static Jp2Image open(File file, int resolution, int numLayers) throws IOException {
 
         final File resolvedFile = file.getCanonicalFile();
         if (!resolvedFile.exists()) {
             throw new FileNotFoundException("File not found: " + file);
         }
 
-        if (resolvedFile.getParentFile() == null) {
-            throw new IOException("Can't determine package directory");
-        }
+        final File packageCacheDir = Jp2Cache.getPackageCacheDir(resolvedFile);
 
-        final File packageCacheDir = new File(new File(SystemUtils.getApplicationDataDir(), "jopenjpeg/cache"),
-                                              resolvedFile.getParentFile().getName());
-        packageCacheDir.mkdirs();
-        if (!packageCacheDir.exists() || !packageCacheDir.isDirectory() || !packageCacheDir.canWrite()) {
-            throw new IOException("Can't access package cache directory");
+        Jp2TileIndex tilePartIndex;
+        try {
+            tilePartIndex = Jp2TileIndex.get(resolvedFile, packageCacheDir);
+        } catch (IOException e) {
+            BeamLogManager.getSystemLogger().warning("No tile-part index for " + file.getName() + ": " + e.getMessage());
+            tilePartIndex = null;
         }
 
-        return new Jp2ExeImage(resolvedFile, packageCacheDir, _getLayout(file), resolution);
+        return new Jp2ExeImage(resolvedFile, packageCacheDir, _getLayout(file), tilePartIndex, resolution, numLayers);
     }
 
     public static Layout getLayout(File file) throws IOException {
         return _getLayout(file);
     }
 
+    /**
+     * @return {@code true} if the decompressor executable can be started.
+     */
+    static boolean isAvailable() {
+        try {
+            final Process process = new ProcessBuilder(EXE, "-h").redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            process.getInputStream().close();
+            process.destroy();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     @Override
     public File getFile() {
         return file;
@@ -62,31 +91,129 @@ class Jp2ExeImage implements Jp2Image {
         return layout;
     }
 
+    @Override
+    public int getNumLayers() {
+        return numLayers;
+    }
+
     @Override
     public void readTileData(final int componentIndex, final int tileX, final int tileY, final short[] tileData) throws IOException {
-        final File outputFile = new File(cacheDir, FileUtils.exchangeExtension(file.getName(), String.format("_R%d_TX%d_TY%d.pgx", resolution, tileX, tileY)));
-        final File outputFile0 = getFirstComponentOutputFile(outputFile);
-        if (!outputFile0.exists()) {
-            System.out.printf("Jp2ExeImage.readTileData(): recomputing res=%d, tile=(%d,%d)\n", resolution, tileX, tileY);
-            decompressTile(tileX, tileY, outputFile);
-        }
-        if (outputFile0.exists()) {
-            System.out.printf("Jp2ExeImage.readTileData(): reading res=%d, tile=(%d,%d)\n", resolution, tileX, tileY);
-            readTileData(outputFile0, tileData);
+        final File outputFile0 = acquireTileFile(tileX, tileY);
+        if (outputFile0 != null) {
+            try {
+                readTileData(outputFile0, ShortBuffer.wrap(tileData), layout.tileWidth >> resolution, layout.tileHeight >> resolution);
+            } finally {
+                Jp2Cache.INSTANCE.release(outputFile0);
+            }
         } else {
             Arrays.fill(tileData, (short) 0);
         }
     }
 
     @Override
-    public synchronized void dispose() {
-        System.out.println(this + ".dispose():");
-        // rmdir -r
-        for (File tileFile : tilesGenerated) {
-            // tileFile.delete();
-            System.out.println("Generated tile file: " + tileFile);
+    public void readTileData(int componentIndex, int tileX, int tileY, ByteBuffer tileData) throws IOException {
+        final int tileWidth = layout.tileWidth >> resolution;
+        final int tileHeight = layout.tileHeight >> resolution;
+        final ShortBuffer shortBuffer = tileData.asShortBuffer();
+        shortBuffer.limit(tileWidth * tileHeight);
+        final File outputFile0 = acquireTileFile(tileX, tileY);
+        if (outputFile0 != null) {
+            try {
+                readTileData(outputFile0, shortBuffer, tileWidth, tileHeight);
+            } finally {
+                Jp2Cache.INSTANCE.release(outputFile0);
+            }
+        } else {
+            while (shortBuffer.hasRemaining()) {
+                shortBuffer.put((short) 0);
+            }
+        }
+    }
+
+    @Override
+    public void readRegionData(int componentIndex, int x, int y, int width, int height, short[] regionData) throws IOException {
+        final File outputFile = Jp2Cache.createTempFile(FileUtils.getFilenameWithoutExtension(file) + String.format("_R%d%s_", resolution, getLayerSuffix()), ".pgx", cacheDir);
+        final File outputFile0 = getFirstComponentOutputFile(outputFile);
+        try {
+            if (Jp2WorkerPool.INSTANCE.isAvailable()) {
+                try {
+                    Jp2WorkerPool.INSTANCE.decodeRegion(file, resolution, numLayers, componentIndex, x, y, width, height, outputFile0);
+                    readTileData(outputFile0, ShortBuffer.wrap(regionData, 0, width * height), width, height);
+                    return;
+                } catch (IOException e) {
+                    BeamLogManager.getSystemLogger().warning("Decoder worker failed, using " + EXE + ": " + e.getMessage());
+                }
+            }
+            // opj_decompress expects the decoding area on the full resolution grid
+            final List<String> command = new ArrayList<String>(Arrays.asList(EXE,
+                                                                             "-i", file.getPath(),
+                                                                             "-o", outputFile.getPath(),
+                                                                             "-r", resolution + "",
+                                                                             "-d", String.format("%d,%d,%d,%d",
+                                                                                                 x << resolution,
+                                                                                                 y << resolution,
+                                                                                                 Math.min((x + width) << resolution, layout.width),
+                                                                                                 Math.min((y + height) << resolution, layout.height))));
+            addLayerOption(command);
+            final Process process = new ProcessBuilder(command).directory(cacheDir).start();
+            final int exitCode = waitFor(process);
+            if (exitCode != 0 || !outputFile0.exists()) {
+                throw new IOException(String.format("Failed to read region (%d, %d, %d, %d) from %s: exitCode = %d",
+                                                    x, y, width, height, file.getName(), exitCode));
+            }
+            readTileData(outputFile0, ShortBuffer.wrap(regionData, 0, width * height), width, height);
+        } finally {
+            outputFile.delete();
+            outputFile0.delete();
+        }
+    }
+
+    private static int waitFor(Process process) throws IOException {
+        try {
+            return process.waitFor();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for " + EXE);
         }
-        // cacheDir.delete();
+    }
+
+    @Override
+    public boolean isTileCached(int tileX, int tileY) {
+        return getFirstComponentOutputFile(getTileOutputFile(tileX, tileY)).exists();
+    }
+
+    private File getTileOutputFile(int tileX, int tileY) {
+        return new File(cacheDir, FileUtils.exchangeExtension(file.getName(), String.format("_R%d%s_TX%d_TY%d.pgx", resolution, getLayerSuffix(), tileX, tileY)));
+    }
+
+    /**
+     * @return The decoded tile file, acquired from the {@link Jp2Cache}, or {@code null} if decoding failed.
+     */
+    private File acquireTileFile(final int tileX, final int tileY) throws IOException {
+        final File outputFile = getTileOutputFile(tileX, tileY);
+        final File outputFile0 = getFirstComponentOutputFile(outputFile);
+        // Other threads asking for the same tile wait for this decode instead of starting their own.
+        // Tile files only get their name when complete, so an existing file is a decoded tile.
+        final boolean decoded = TILE_DECODES.execute(outputFile0, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                if (!outputFile0.exists()) {
+                    BeamLogManager.getSystemLogger().fine(String.format("Decoding tile (%d,%d) at resolution %d of %s", tileX, tileY, resolution, file.getName()));
+                    decompressTile(tileX, tileY, outputFile);
+                }
+                return outputFile0.exists();
+            }
+        });
+        if (!decoded || !Jp2Cache.INSTANCE.acquire(outputFile0)) {
+            return null;
+        }
+        BeamLogManager.getSystemLogger().fine(String.format("Reading tile (%d,%d) at resolution %d of %s", tileX, tileY, resolution, file.getName()));
+        return outputFile0;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        BeamLogManager.getSystemLogger().fine("Disposing " + file.getName() + " at resolution " + resolution);
+        // Tile files are left to the Jp2Cache, other images may still need them
         tilesGenerated.clear();
     }
 
@@ -96,14 +223,11 @@ class Jp2ExeImage implements Jp2Image {
         dispose();
     }
 
-    private void readTileData(File outputFile, short[] tileData) throws IOException {
+    private static void readTileData(File outputFile, ShortBuffer tileData, int tileWidth, int tileHeight) throws IOException {
 
-        final int tileWidth = layout.tileWidth >> resolution;
-        final int tileHeight = layout.tileHeight >> resolution;
-
-        if (tileWidth * tileHeight != tileData.length) {
-            throw new IllegalStateException(String.format("tileWidth (=%d) * tileHeight (=%d) != tileData.length (=%d)",
-                                                          tileWidth, tileHeight, tileData.length));
+        if (tileWidth * tileHeight != tileData.remaining()) {
+            throw new IllegalStateException(String.format("tileWidth (=%d) * tileHeight (=%d) != tileData.remaining() (=%d)",
+                                                          tileWidth, tileHeight, tileData.remaining()));
         }
 
         final FileImageInputStream fileInputStream = new FileImageInputStream(outputFile);
@@ -116,7 +240,8 @@ class Jp2ExeImage implements Jp2Image {
             }
 
             String pg = tokens[0];   // PG
-            String ml = tokens[1];   // ML
+            String ml = tokens[1];   // ML = big endian, LM = little endian
+            fileInputStream.setByteOrder("LM".equals(ml) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
             String plus = tokens[2]; // +
             int width;
             int height;
@@ -133,22 +258,20 @@ class Jp2ExeImage implements Jp2Image {
                                                               width, tileWidth, height, tileHeight));
             }
 
-            if (width * height == tileData.length) {
-                fileInputStream.readFully(tileData, 0, width * height);
-            } else if (width * height < tileData.length) {
-                short[] temp = new short[width * height];
-                fileInputStream.readFully(temp, 0, width * height);
+            if (width == tileWidth && height == tileHeight && tileData.hasArray()) {
+                fileInputStream.readFully(tileData.array(), tileData.arrayOffset() + tileData.position(), width * height);
+            } else {
+                // Row-wise, so that no temporary array of the full tile size is needed
+                final short[] row = new short[tileWidth];
                 for (int y = 0; y < tileHeight; y++) {
-                    for (int x = 0; x < tileWidth; x++) {
-                        if (x < width && y < height) {
-                            tileData[y * tileWidth + x] = temp[y * width + x];
-                        } else {
-                            tileData[y * tileWidth + x] = (short) 0;
-                        }
+                    if (y < height) {
+                        fileInputStream.readFully(row, 0, width);
+                        Arrays.fill(row, width, tileWidth, (short) 0);
+                    } else if (y == height) {
+                        Arrays.fill(row, (short) 0);
                     }
+                    tileData.put(row);
                 }
-            } else {
-                Arrays.fill(tileData, (short) 0);
             }
         } finally {
             fileInputStream.close();
@@ -171,12 +294,53 @@ class Jp2ExeImage implements Jp2Image {
     }
 
     private void decompressTile(int tileX, int tileY, final File outputFile) throws IOException {
-        final int tileIndex = getLayout().numYTiles * tileY + tileX;
-        final Process process = new ProcessBuilder(EXE,
-                                                   "-i", file.getPath(),
-                                                   "-o", outputFile.getPath(),
-                                                   "-r", resolution + "",
-                                                   "-t", tileIndex + "").directory(cacheDir).start();
+        if (Jp2WorkerPool.INSTANCE.isAvailable()) {
+            try {
+                Jp2WorkerPool.INSTANCE.decodeTile(file, resolution, numLayers, 0, tileX, tileY, getFirstComponentOutputFile(outputFile));
+                return;
+            } catch (IOException e) {
+                BeamLogManager.getSystemLogger().warning("Decoder worker failed, using " + EXE + ": " + e.getMessage());
+            }
+        }
+
+        final int tileIndex = getLayout().numXTiles * tileY + tileX;
+        // With a tile-part index, the decompressor only gets to see the bytes of the requested tile
+        File inputFile = file;
+        if (tilePartIndex != null && tilePartIndex.containsTile(tileIndex)) {
+            inputFile = File.createTempFile(FileUtils.getFilenameWithoutExtension(file) + "_T" + tileIndex + "_", ".j2k", cacheDir);
+            tilePartIndex.writeTileCodestream(file, tileIndex, inputFile);
+        }
+        // Written under a temporary name and renamed when complete
+        final File tempOutputFile;
+        try {
+            tempOutputFile = Jp2Cache.createTempFile(FileUtils.getFilenameWithoutExtension(outputFile) + "_", ".pgx", cacheDir);
+        } catch (IOException e) {
+            deleteTileCodestream(inputFile);
+            throw e;
+        }
+        try {
+            decompressTile(inputFile, tileIndex, tempOutputFile, outputFile);
+        } finally {
+            tempOutputFile.delete();
+            getFirstComponentOutputFile(tempOutputFile).delete();
+        }
+    }
+
+    private void decompressTile(File inputFile, int tileIndex, final File tempOutputFile, final File outputFile) throws IOException {
+        final List<String> command = new ArrayList<String>(Arrays.asList(EXE,
+                                                                         "-i", inputFile.getPath(),
+                                                                         "-o", tempOutputFile.getPath(),
+                                                                         "-r", resolution + "",
+                                                                         "-t", tileIndex + ""));
+        addLayerOption(command);
+        final Process process;
+        try {
+            process = new ProcessBuilder(command).directory(cacheDir).start();
+        } catch (IOException e) {
+            deleteTileCodestream(inputFile);
+            throw e;
+        }
+        final File tileCodestreamFile = inputFile;
 
         final ProcessObserver.DefaultHandler handler = new ProcessObserver.DefaultHandler() {
             @Override
@@ -189,13 +353,15 @@ class Jp2ExeImage implements Jp2Image {
             public void onObservationEnded(ProcessObserver.ObservedProcess process, Integer exitCode, ProgressMonitor pm) {
                 super.onObservationEnded(process, exitCode, pm);
                 tilesInProgress.remove(outputFile);
+                deleteTileCodestream(tileCodestreamFile);
 
                 if (exitCode == 0) {
+                    Jp2Cache.moveTempFile(getFirstComponentOutputFile(tempOutputFile), getFirstComponentOutputFile(outputFile));
                     final File file1 = existsPgx(outputFile);
                     if (file1 != null) {
                         tilesGenerated.add(file1);
                     } else {
-                        System.err.println("File not found: " + outputFile);
+                        BeamLogManager.getSystemLogger().warning("Decoded tile file not found: " + outputFile);
                     }
                 }
 
@@ -210,28 +376,39 @@ class Jp2ExeImage implements Jp2Image {
 
     }
 
+    /**
+     * Tiles decoded from fewer quality layers are cached in files of their own.
+     */
+    private String getLayerSuffix() {
+        return numLayers > 0 ? "_L" + numLayers : "";
+    }
+
+    private void addLayerOption(List<String> command) {
+        if (numLayers > 0) {
+            command.add("-l");
+            command.add(numLayers + "");
+        }
+    }
+
+    private void deleteTileCodestream(File inputFile) {
+        if (!inputFile.equals(file)) {
+            inputFile.delete();
+        }
+    }
+
     private static Layout _getLayout(File file) throws IOException {
-        // todo - parse output of "jp2_dump <file>"
-        return new Layout(6,
-                          1,
-                          10960,
-                          10960,
-                          3,
-                          3,
-                          0,
-                          0,
-                          4096,
-                          4096
-        );
-    }
-
-    private Jp2ExeImage(File file, File cacheDir, Layout layout, int resolution) {
+        return Jp2Header.read(file).getLayout();
+    }
+
+    private Jp2ExeImage(File file, File cacheDir, Layout layout, Jp2TileIndex tilePartIndex, int resolution, int numLayers) {
         this.file = file;
         this.cacheDir = cacheDir;
         this.layout = layout;
+        this.tilePartIndex = tilePartIndex;
         this.resolution = resolution;
+        this.numLayers = numLayers;
 
-        tilesInProgress = new HashSet<File>();
-        tilesGenerated = new HashSet<File>();
+        tilesInProgress = Collections.synchronizedSet(new HashSet<File>());
+        tilesGenerated = Collections.synchronizedSet(new HashSet<File>());
     }
 }
@@ -0,0 +1,38 @@
+package jopenjpeg2;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes with the {@code opj_decompress} executable or the decoder worker processes,
+ * see {@link Jp2WorkerPool}.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2ExeImageFactory extends Jp2ImageFactory {
+
+    @Override
+    public String getName() {
+        return "exe";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return Jp2ExeImage.isAvailable();
+    }
+
+    @Override
+    public Jp2Image open(File file, int resolution) throws IOException {
+        return Jp2ExeImage.open(file, resolution);
+    }
+
+    @Override
+    public Jp2Image open(File file, int resolution, int numLayers) throws IOException {
+        return Jp2ExeImage.open(file, resolution, numLayers);
+    }
+
+    @Override
+    public Jp2Image.Layout getLayout(File file) throws IOException {
+        return Jp2ExeImage.getLayout(file);
+    }
+}
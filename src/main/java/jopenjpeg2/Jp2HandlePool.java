@@ -0,0 +1,170 @@
+package jopenjpeg2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A bounded pool of decoder handles. Handles are created lazily up to {@code maxSize}; callers that
+ * find all handles checked out wait until one is released.
+ * <p>
+ * Optionally, the pool holds a <i>solo handle</i>, e.g. one that decodes on several threads. It is only
+ * handed out while no other handle is checked out. Like any other handle, it counts against {@code maxSize}
+ * while it is in use.
+ *
+ * @author Norman Fomferra
+ */
+abstract class Jp2HandlePool<T> {
+
+    private final int maxSize;
+    private final Deque<T> idleHandles;
+    private int size;
+    private int numCheckedOut;
+    private T soloHandle;
+    private boolean soloHandleInUse;
+    private boolean disposed;
+
+    protected Jp2HandlePool(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize < 1");
+        }
+        this.maxSize = maxSize;
+        this.idleHandles = new ArrayDeque<T>(maxSize);
+    }
+
+    protected abstract T createHandle() throws IOException;
+
+    protected abstract void disposeHandle(T handle);
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Adds an already created handle to the pool, e.g. the one used to read the image layout.
+     */
+    public synchronized void add(T handle) {
+        if (disposed || size >= maxSize) {
+            disposeHandle(handle);
+            return;
+        }
+        size++;
+        idleHandles.push(handle);
+        notify();
+    }
+
+    /**
+     * Sets the solo handle, which is only handed out while no other handle is checked out.
+     * It is not created by {@link #createHandle()} and doesn't add to {@link #getSize()}.
+     */
+    public synchronized void setSoloHandle(T handle) {
+        if (disposed || soloHandle != null) {
+            disposeHandle(handle);
+            return;
+        }
+        soloHandle = handle;
+        notify();
+    }
+
+    public T acquire() throws IOException {
+        synchronized (this) {
+            while (true) {
+                if (disposed) {
+                    throw new IOException("Handle pool has been disposed");
+                }
+                if (soloHandle != null && !soloHandleInUse && numCheckedOut == 0) {
+                    soloHandleInUse = true;
+                    numCheckedOut++;
+                    return soloHandle;
+                }
+                if (numCheckedOut < maxSize) {
+                    if (!idleHandles.isEmpty()) {
+                        numCheckedOut++;
+                        return idleHandles.pop();
+                    }
+                    if (size < maxSize) {
+                        size++;
+                        numCheckedOut++;
+                        break;
+                    }
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for a decoder handle");
+                }
+            }
+        }
+        // Create outside of the lock, opening a handle may take a while
+        try {
+            return createHandle();
+        } catch (IOException e) {
+            shrink();
+            throw e;
+        } catch (RuntimeException e) {
+            shrink();
+            throw e;
+        }
+    }
+
+    public synchronized void release(T handle) {
+        numCheckedOut--;
+        if (handle == soloHandle) {
+            soloHandleInUse = false;
+            if (disposed) {
+                soloHandle = null;
+                disposeHandle(handle);
+            } else {
+                notify();
+            }
+        } else if (disposed) {
+            size--;
+            disposeHandle(handle);
+        } else {
+            idleHandles.push(handle);
+            notify();
+        }
+    }
+
+    /**
+     * Disposes a checked out handle which is not usable anymore, e.g. after its decoder crashed.
+     */
+    public synchronized void discard(T handle) {
+        numCheckedOut--;
+        if (handle == soloHandle) {
+            soloHandle = null;
+            soloHandleInUse = false;
+        } else {
+            size--;
+        }
+        disposeHandle(handle);
+        notify();
+    }
+
+    /**
+     * Disposes all idle handles. Handles still checked out are disposed when they are released.
+     */
+    public synchronized void dispose() {
+        disposed = true;
+        if (soloHandle != null && !soloHandleInUse) {
+            disposeHandle(soloHandle);
+            soloHandle = null;
+        }
+        while (!idleHandles.isEmpty()) {
+            size--;
+            disposeHandle(idleHandles.pop());
+        }
+        notifyAll();
+    }
+
+    private synchronized void shrink() {
+        size--;
+        numCheckedOut--;
+        notify();
+    }
+}
@@ -0,0 +1,497 @@
+package jopenjpeg2;
+
+import org.esa.beam.util.logging.BeamLogManager;
+
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The main header of a JPEG 2000 codestream, read without the native library.
+ * Only the JP2 boxes up to the codestream box and the main header markers up to
+ * the first SOT marker are read, no tile data.
+ * <p/>
+ * Headers read from files are memoized per path, file size and modification time for the life of the JVM,
+ * up to {@code jopenjpeg2.headerCache.maxEntries} files.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2Header {
+
+    static final int BOX_JP = 0x6A502020;   // 'jP  '
+    static final int BOX_JP2C = 0x6A703263; // 'jp2c'
+
+    static final int MARKER_SOC = 0xFF4F;
+    static final int MARKER_SIZ = 0xFF51;
+    static final int MARKER_COD = 0xFF52;
+    static final int MARKER_COC = 0xFF53;
+    static final int MARKER_TLM = 0xFF55;
+    static final int MARKER_QCD = 0xFF5C;
+    static final int MARKER_SOT = 0xFF90;
+
+    private static final int MAX_CACHED_HEADERS = Integer.getInteger("jopenjpeg2.headerCache.maxEntries", 1024);
+    private static final int NUM_PROBE_THREADS = Integer.getInteger("jopenjpeg2.headerCache.probeThreads", 8);
+    // In access order, least recently used first
+    private static final Map<FileKey, Jp2Header> CACHED_HEADERS = new LinkedHashMap<FileKey, Jp2Header>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FileKey, Jp2Header> eldest) {
+            return size() > MAX_CACHED_HEADERS;
+        }
+    };
+    private static final Jp2SingleFlight<FileKey, Jp2Header> HEADER_READS = new Jp2SingleFlight<FileKey, Jp2Header>();
+    private static final ExecutorService PROBE_EXECUTOR = createProbeExecutor();
+
+    /**
+     * Image size on the reference grid, i.e. Xsiz - XOsiz and Ysiz - YOsiz.
+     */
+    public final int width;
+    public final int height;
+    public final int imageOffsetX;
+    public final int imageOffsetY;
+    public final int tileWidth;
+    public final int tileHeight;
+    public final int tileOffsetX;
+    public final int tileOffsetY;
+    public final int numXTiles;
+    public final int numYTiles;
+    public final int numComponents;
+    public final int[] componentPrecisions;
+    /**
+     * Number of decomposition levels + 1, maximum over COD and all COC markers.
+     */
+    public final int numResolutions;
+    public final int numLayers;
+    public final int progressionOrder;
+    public final int quantizationStyle;
+    public final int numGuardBits;
+    /**
+     * File position of the SOC marker.
+     */
+    public final long codestreamOffset;
+    /**
+     * File position of the first SOT marker, i.e. the end of the main header.
+     */
+    public final long firstTilePartOffset;
+    /**
+     * Tile index and length of each tile-part in codestream order as given by TLM markers,
+     * {@code null} if the codestream has no TLM markers.
+     */
+    public final int[] tlmTileIndexes;
+    public final long[] tlmTilePartLengths;
+    /**
+     * File position and length of each TLM marker segment, {@code null} if the codestream has no TLM markers.
+     */
+    public final long[] tlmSegmentOffsets;
+    public final long[] tlmSegmentLengths;
+
+    public static Jp2Header read(final File file) throws IOException {
+        final FileKey key = new FileKey(file);
+        synchronized (CACHED_HEADERS) {
+            final Jp2Header header = CACHED_HEADERS.get(key);
+            if (header != null) {
+                return header;
+            }
+        }
+        // Concurrent readers of the same file share one parse
+        return HEADER_READS.execute(key, new Callable<Jp2Header>() {
+            @Override
+            public Jp2Header call() throws IOException {
+                synchronized (CACHED_HEADERS) {
+                    final Jp2Header header = CACHED_HEADERS.get(key);
+                    if (header != null) {
+                        return header;
+                    }
+                }
+                final Jp2Header header;
+                final FileImageInputStream stream = new FileImageInputStream(file);
+                try {
+                    header = read(stream);
+                } catch (IOException e) {
+                    throw new IOException(String.format("Failed to read JPEG 2000 header from %s: %s", file.getName(), e.getMessage()), e);
+                } finally {
+                    stream.close();
+                }
+                synchronized (CACHED_HEADERS) {
+                    CACHED_HEADERS.put(key, header);
+                }
+                return header;
+            }
+        });
+    }
+
+    /**
+     * Reads the headers of several files in parallel, e.g. of all bands of a product.
+     *
+     * @return The headers in the order of the files, {@code null} for files whose header could not be read.
+     * A warning is logged for these.
+     */
+    public static Jp2Header[] read(File[] files) throws IOException {
+        final List<Future<Jp2Header>> futures = new ArrayList<Future<Jp2Header>>(files.length);
+        for (final File file : files) {
+            futures.add(PROBE_EXECUTOR.submit(new Callable<Jp2Header>() {
+                @Override
+                public Jp2Header call() throws IOException {
+                    return read(file);
+                }
+            }));
+        }
+        final Jp2Header[] headers = new Jp2Header[files.length];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                try {
+                    headers[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    BeamLogManager.getSystemLogger().warning(e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<Jp2Header> future : futures) {
+                future.cancel(true);
+            }
+            throw new InterruptedIOException("Interrupted while reading JPEG 2000 headers");
+        }
+        return headers;
+    }
+
+    public static Jp2Header read(ImageInputStream stream) throws IOException {
+        return new Parser(stream).parse();
+    }
+
+    public Jp2Image.Layout getLayout() {
+        return new Jp2Image.Layout(numResolutions,
+                                   numComponents,
+                                   width,
+                                   height,
+                                   numXTiles,
+                                   numYTiles,
+                                   tileOffsetX,
+                                   tileOffsetY,
+                                   tileWidth,
+                                   tileHeight);
+    }
+
+    public int getNumTiles() {
+        return numXTiles * numYTiles;
+    }
+
+    public boolean hasTlm() {
+        return tlmTileIndexes != null;
+    }
+
+    private static ExecutorService createProbeExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(NUM_PROBE_THREADS, NUM_PROBE_THREADS,
+                                                                   10, TimeUnit.SECONDS,
+                                                                   new LinkedBlockingQueue<Runnable>(),
+                                                                   new ThreadFactory() {
+                                                                       private final AtomicInteger threadCount = new AtomicInteger();
+
+                                                                       @Override
+                                                                       public Thread newThread(Runnable r) {
+                                                                           final Thread thread = new Thread(r, "jopenjpeg2-header-" + threadCount.incrementAndGet());
+                                                                           thread.setDaemon(true);
+                                                                           return thread;
+                                                                       }
+                                                                   });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private Jp2Header(Parser p) {
+        width = p.xsiz - p.xosiz;
+        height = p.ysiz - p.yosiz;
+        imageOffsetX = p.xosiz;
+        imageOffsetY = p.yosiz;
+        tileWidth = p.xtsiz;
+        tileHeight = p.ytsiz;
+        tileOffsetX = p.xtosiz;
+        tileOffsetY = p.ytosiz;
+        numXTiles = ceilDiv(p.xsiz - p.xtosiz, p.xtsiz);
+        numYTiles = ceilDiv(p.ysiz - p.ytosiz, p.ytsiz);
+        numComponents = p.csiz;
+        componentPrecisions = p.precisions;
+        numResolutions = p.numDecompositionLevels + 1;
+        numLayers = p.numLayers;
+        progressionOrder = p.progressionOrder;
+        quantizationStyle = p.quantizationStyle;
+        numGuardBits = p.numGuardBits;
+        codestreamOffset = p.codestreamOffset;
+        firstTilePartOffset = p.firstTilePartOffset;
+        if (p.tlmCount > 0) {
+            tlmTileIndexes = new int[p.tlmCount];
+            tlmTilePartLengths = new long[p.tlmCount];
+            System.arraycopy(p.tlmTileIndexes, 0, tlmTileIndexes, 0, p.tlmCount);
+            System.arraycopy(p.tlmTilePartLengths, 0, tlmTilePartLengths, 0, p.tlmCount);
+        } else {
+            tlmTileIndexes = null;
+            tlmTilePartLengths = null;
+        }
+        if (p.tlmSegmentCount > 0) {
+            tlmSegmentOffsets = new long[p.tlmSegmentCount];
+            tlmSegmentLengths = new long[p.tlmSegmentCount];
+            System.arraycopy(p.tlmSegmentOffsets, 0, tlmSegmentOffsets, 0, p.tlmSegmentCount);
+            System.arraycopy(p.tlmSegmentLengths, 0, tlmSegmentLengths, 0, p.tlmSegmentCount);
+        } else {
+            tlmSegmentOffsets = null;
+            tlmSegmentLengths = null;
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    private static class Parser {
+        final ImageInputStream stream;
+
+        long codestreamOffset = -1;
+        long firstTilePartOffset = -1;
+        int xsiz, ysiz, xosiz, yosiz, xtsiz, ytsiz, xtosiz, ytosiz, csiz;
+        int[] precisions;
+        int numDecompositionLevels = -1;
+        int numLayers;
+        int progressionOrder;
+        int quantizationStyle;
+        int numGuardBits;
+        int tlmCount;
+        int[] tlmTileIndexes = new int[16];
+        long[] tlmTilePartLengths = new long[16];
+        int tlmSegmentCount;
+        long[] tlmSegmentOffsets = new long[4];
+        long[] tlmSegmentLengths = new long[4];
+
+        Parser(ImageInputStream stream) {
+            this.stream = stream;
+        }
+
+        Jp2Header parse() throws IOException {
+            final long pos = stream.getStreamPosition();
+            final int first = stream.readInt();
+            stream.seek(pos);
+            if ((first >>> 16) == MARKER_SOC) {
+                // Raw J2K codestream
+                codestreamOffset = pos;
+            } else {
+                codestreamOffset = findCodestreamBox();
+            }
+            stream.seek(codestreamOffset);
+            parseMainHeader();
+            if (xtsiz <= 0 || ytsiz <= 0 || csiz <= 0 || numDecompositionLevels < 0) {
+                throw new IOException("Incomplete main header");
+            }
+            return new Jp2Header(this);
+        }
+
+        private long findCodestreamBox() throws IOException {
+            boolean signatureFound = false;
+            while (true) {
+                final long boxPos = stream.getStreamPosition();
+                final long lbox = stream.readUnsignedInt();
+                final int tbox = stream.readInt();
+                long headerLength = 8;
+                long boxLength = lbox;
+                if (lbox == 1) {
+                    boxLength = stream.readLong();
+                    headerLength = 16;
+                }
+                if (!signatureFound) {
+                    if (tbox != BOX_JP) {
+                        throw new IOException("Not a JPEG 2000 file");
+                    }
+                    signatureFound = true;
+                }
+                if (tbox == BOX_JP2C) {
+                    return boxPos + headerLength;
+                }
+                if (boxLength == 0) {
+                    throw new IOException("Codestream box not found");
+                }
+                if (boxLength < headerLength) {
+                    throw new IOException("Invalid box length");
+                }
+                stream.seek(boxPos + boxLength);
+            }
+        }
+
+        private void parseMainHeader() throws IOException {
+            if (stream.readUnsignedShort() != MARKER_SOC) {
+                throw new IOException("SOC marker expected");
+            }
+            while (true) {
+                final long markerPos = stream.getStreamPosition();
+                final int marker = stream.readUnsignedShort();
+                if (marker == MARKER_SOT) {
+                    firstTilePartOffset = markerPos;
+                    return;
+                }
+                if ((marker & 0xFF00) != 0xFF00) {
+                    throw new IOException(String.format("Marker expected at position %d", markerPos));
+                }
+                final int length = stream.readUnsignedShort();
+                final long segmentEnd = markerPos + 2 + length;
+                switch (marker) {
+                    case MARKER_SIZ:
+                        parseSiz();
+                        break;
+                    case MARKER_COD:
+                        parseCod();
+                        break;
+                    case MARKER_COC:
+                        parseCoc();
+                        break;
+                    case MARKER_QCD:
+                        parseQcd();
+                        break;
+                    case MARKER_TLM:
+                        addTlmSegment(markerPos, 2 + length);
+                        parseTlm(length);
+                        break;
+                    default:
+                        // COM, QCC, RGN, POC, PPM, PLM, CRG: not needed
+                        break;
+                }
+                stream.seek(segmentEnd);
+            }
+        }
+
+        private void addTlmSegment(long offset, long length) {
+            if (tlmSegmentCount == tlmSegmentOffsets.length) {
+                final long[] offsets = new long[2 * tlmSegmentCount];
+                final long[] lengths = new long[2 * tlmSegmentCount];
+                System.arraycopy(tlmSegmentOffsets, 0, offsets, 0, tlmSegmentCount);
+                System.arraycopy(tlmSegmentLengths, 0, lengths, 0, tlmSegmentCount);
+                tlmSegmentOffsets = offsets;
+                tlmSegmentLengths = lengths;
+            }
+            tlmSegmentOffsets[tlmSegmentCount] = offset;
+            tlmSegmentLengths[tlmSegmentCount] = length;
+            tlmSegmentCount++;
+        }
+
+        private void parseSiz() throws IOException {
+            stream.readUnsignedShort(); // Rsiz
+            xsiz = stream.readInt();
+            ysiz = stream.readInt();
+            xosiz = stream.readInt();
+            yosiz = stream.readInt();
+            xtsiz = stream.readInt();
+            ytsiz = stream.readInt();
+            xtosiz = stream.readInt();
+            ytosiz = stream.readInt();
+            csiz = stream.readUnsignedShort();
+            precisions = new int[csiz];
+            for (int i = 0; i < csiz; i++) {
+                final int ssiz = stream.readUnsignedByte();
+                precisions[i] = (ssiz & 0x7F) + 1;
+                stream.readUnsignedByte(); // XRsiz
+                stream.readUnsignedByte(); // YRsiz
+            }
+        }
+
+        private void parseCod() throws IOException {
+            stream.readUnsignedByte(); // Scod
+            progressionOrder = stream.readUnsignedByte();
+            numLayers = stream.readUnsignedShort();
+            stream.readUnsignedByte(); // MCT
+            numDecompositionLevels = Math.max(numDecompositionLevels, stream.readUnsignedByte());
+        }
+
+        private void parseCoc() throws IOException {
+            if (csiz < 257) {
+                stream.readUnsignedByte(); // Ccoc
+            } else {
+                stream.readUnsignedShort();
+            }
+            stream.readUnsignedByte(); // Scoc
+            numDecompositionLevels = Math.max(numDecompositionLevels, stream.readUnsignedByte());
+        }
+
+        private void parseQcd() throws IOException {
+            final int sqcd = stream.readUnsignedByte();
+            quantizationStyle = sqcd & 0x1F;
+            numGuardBits = sqcd >> 5;
+        }
+
+        private void parseTlm(int length) throws IOException {
+            stream.readUnsignedByte(); // Ztlm
+            final int stlm = stream.readUnsignedByte();
+            final int st = (stlm >> 4) & 0x03;
+            final int sp = (stlm >> 6) & 0x01;
+            final int entrySize = st + (sp == 0 ? 2 : 4);
+            final int numEntries = (length - 4) / entrySize;
+            for (int i = 0; i < numEntries; i++) {
+                final int tileIndex;
+                if (st == 0) {
+                    // One tile-part per tile, in tile order
+                    tileIndex = tlmCount;
+                } else if (st == 1) {
+                    tileIndex = stream.readUnsignedByte();
+                } else {
+                    tileIndex = stream.readUnsignedShort();
+                }
+                final long tilePartLength = sp == 0 ? stream.readUnsignedShort() : stream.readUnsignedInt();
+                addTlmEntry(tileIndex, tilePartLength);
+            }
+        }
+
+        private void addTlmEntry(int tileIndex, long tilePartLength) {
+            if (tlmCount == tlmTileIndexes.length) {
+                final int[] tileIndexes = new int[2 * tlmCount];
+                final long[] tilePartLengths = new long[2 * tlmCount];
+                System.arraycopy(tlmTileIndexes, 0, tileIndexes, 0, tlmCount);
+                System.arraycopy(tlmTilePartLengths, 0, tilePartLengths, 0, tlmCount);
+                tlmTileIndexes = tileIndexes;
+                tlmTilePartLengths = tilePartLengths;
+            }
+            tlmTileIndexes[tlmCount] = tileIndex;
+            tlmTilePartLengths[tlmCount] = tilePartLength;
+            tlmCount++;
+        }
+    }
+
+    /**
+     * Identifies a file's content by path, size and modification time.
+     */
+    private static final class FileKey {
+        final String path;
+        final long length;
+        final long lastModified;
+
+        FileKey(File file) {
+            this.path = file.getAbsolutePath();
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileKey)) {
+                return false;
+            }
+            final FileKey key = (FileKey) o;
+            return length == key.length && lastModified == key.lastModified && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + (int) (length ^ (length >>> 32));
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            return result;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package jopenjpeg2;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Norman Fomferra
@@ -11,8 +12,27 @@ public interface Jp2Image {
 
     Layout getLayout();
 
+    /**
+     * @return The number of quality layers decoded, or zero if all layers are decoded.
+     */
+    int getNumLayers();
+
     void readTileData(int componentIndex, int tileX, int tileY, short[] tileData) throws IOException;
 
+    /**
+     * Decodes a tile into a caller-owned buffer, e.g. one obtained from {@link Jp2BufferPool}.
+     * The buffer must be direct and hold at least {@code 2 * tileWidth * tileHeight} bytes
+     * for the tile size at this image's resolution level. Samples are written as shorts
+     * in the buffer's byte order, starting at position zero.
+     */
+    void readTileData(int componentIndex, int tileX, int tileY, ByteBuffer tileData) throws IOException;
+
+    /**
+     * Decodes an arbitrary rectangular region. Coordinates are pixels of this image's resolution level.
+     * Samples outside the image are set to zero.
+     */
+    void readRegionData(int componentIndex, int x, int y, int width, int height, short[] regionData) throws IOException;
+
     void dispose();
 
     public static final class Layout {
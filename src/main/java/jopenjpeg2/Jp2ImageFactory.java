@@ -4,42 +4,72 @@ import java.io.File;
 import java.io.IOException;
 
 /**
+ * Opens {@link Jp2Image}s with one particular decoder backend. Backends are registered in
+ * {@code META-INF/services/jopenjpeg2.Jp2ImageFactory} and selected by {@link Jp2ImageFactoryRegistry}.
+ *
  * @author Norman Fomferra
  */
 public abstract class Jp2ImageFactory {
     public enum Type {
         LIB,
         EXE,
+        IMAGEIO,
+        /**
+         * The backend is selected per image from the available ones, see {@link Jp2ImageFactoryRegistry}.
+         */
+        AUTO,
     }
+
+    /**
+     * The default number of threads a lone tile decode may use, see {@link #create(Type, int)}.
+     */
+    public static final int DEFAULT_NUM_THREADS = Integer.getInteger("jopenjpeg2.lib.numThreads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * @return The backend's name, as used by the system property {@code jopenjpeg2.backend}.
+     */
+    public abstract String getName();
+
+    /**
+     * Checks whether the backend can decode on this machine, e.g. whether its native library or
+     * executable is installed. May take a while, the registry calls it once per backend.
+     */
+    public abstract boolean isAvailable();
+
     public abstract Jp2Image open(File file, int resolution) throws IOException;
 
+    /**
+     * Opens an image which only decodes the first {@code numLayers} quality layers, e.g. for fast previews.
+     *
+     * @param numLayers The number of quality layers to decode, zero for all.
+     */
+    public abstract Jp2Image open(File file, int resolution, int numLayers) throws IOException;
+
     public abstract Jp2Image.Layout getLayout(File file) throws IOException;
 
+    @Override
+    public String toString() {
+        return getName();
+    }
+
     public static  Jp2ImageFactory create(Type type) {
+        return create(type, DEFAULT_NUM_THREADS);
+    }
+
+    /**
+     * @param numThreads The number of threads used to decode a single tile while it is the only tile being
+     *                   decoded from an image. Concurrent tile requests use one thread each. Only supported by
+     *                   {@link Type#LIB}, the other backends decode each tile on one thread.
+     */
+    public static  Jp2ImageFactory create(Type type, final int numThreads) {
         if (type == Type.LIB) {
-            return new Jp2ImageFactory() {
-                @Override
-                public Jp2Image open(File file, int resolution) throws IOException {
-                    return Jp2LibImage.open(file, resolution);
-                }
-
-                @Override
-                public Jp2Image.Layout getLayout(File file) throws IOException {
-                    return Jp2LibImage.getLayout(file);
-                }
-            };
+            return new Jp2LibImageFactory(numThreads);
+        } else if (type == Type.IMAGEIO) {
+            return new Jp2ImageIOImageFactory();
+        } else if (type == Type.AUTO) {
+            return Jp2ImageFactoryRegistry.INSTANCE.getAutoFactory();
         } else {
-            return new Jp2ImageFactory() {
-                @Override
-                public Jp2Image open(File file, int resolution) throws IOException {
-                    return Jp2ExeImage.open(file, resolution);
-                }
-
-                @Override
-                public Jp2Image.Layout getLayout(File file) throws IOException {
-                    return Jp2ExeImage.getLayout(file);
-                }
-            };
+            return new Jp2ExeImageFactory();
         }
     }
 }
@@ -0,0 +1,304 @@
+package jopenjpeg2;
+
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * The decoder backends registered in {@code META-INF/services/jopenjpeg2.Jp2ImageFactory}.
+ * <p/>
+ * The factory returned by {@link #getAutoFactory()} selects a backend for each decode: backends which
+ * are not available on this machine are skipped, each available backend is tried until it has decoded a few
+ * tiles, and from then on the backend with the lowest measured decode time per pixel is used. The system
+ * property {@code jopenjpeg2.backend} forces a backend by name.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2ImageFactoryRegistry {
+
+    public static final Jp2ImageFactoryRegistry INSTANCE = new Jp2ImageFactoryRegistry(loadFactories(), System.getProperty("jopenjpeg2.backend"));
+
+    /**
+     * Number of tiles a backend must have decoded before its measured time is trusted.
+     */
+    static final int MIN_SAMPLES = 3;
+    private static final double SMOOTHING = 0.2;
+
+    private final List<Jp2ImageFactory> factories;
+    private final String forcedName;
+    private final Map<Jp2ImageFactory, Stats> stats;
+    private final Jp2ImageFactory autoFactory;
+
+    Jp2ImageFactoryRegistry(List<Jp2ImageFactory> factories, String forcedName) {
+        this.factories = Collections.unmodifiableList(new ArrayList<Jp2ImageFactory>(factories));
+        this.forcedName = forcedName;
+        this.stats = new LinkedHashMap<Jp2ImageFactory, Stats>();
+        this.autoFactory = new AutoFactory();
+    }
+
+    /**
+     * @return All registered backends, in registration order.
+     */
+    public List<Jp2ImageFactory> getFactories() {
+        return factories;
+    }
+
+    public Jp2ImageFactory getFactory(String name) {
+        for (Jp2ImageFactory factory : factories) {
+            if (factory.getName().equalsIgnoreCase(name)) {
+                return factory;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return A factory which selects the backend per image.
+     */
+    public Jp2ImageFactory getAutoFactory() {
+        return autoFactory;
+    }
+
+    /**
+     * @return The backend to use for the next image.
+     * @throws IOException If no backend is available.
+     */
+    public synchronized Jp2ImageFactory selectFactory() throws IOException {
+        if (forcedName != null) {
+            final Jp2ImageFactory factory = getFactory(forcedName);
+            if (factory != null && getStats(factory).available) {
+                return factory;
+            }
+            BeamLogManager.getSystemLogger().warning("JPEG 2000 backend '" + forcedName + "' not available");
+        }
+        Jp2ImageFactory fastest = null;
+        for (Jp2ImageFactory factory : factories) {
+            final Stats factoryStats = getStats(factory);
+            if (!factoryStats.available) {
+                continue;
+            }
+            if (factoryStats.numSamples < MIN_SAMPLES) {
+                // Not measured yet
+                return factory;
+            }
+            if (fastest == null || factoryStats.nanosPerPixel < getStats(fastest).nanosPerPixel) {
+                fastest = factory;
+            }
+        }
+        if (fastest == null) {
+            throw new IOException("No JPEG 2000 decoder backend available");
+        }
+        return fastest;
+    }
+
+    /**
+     * Records the time a backend needed to decode a tile or region.
+     */
+    public synchronized void recordDecode(Jp2ImageFactory factory, long nanos, long numPixels) {
+        if (numPixels <= 0) {
+            return;
+        }
+        final Stats factoryStats = getStats(factory);
+        final double nanosPerPixel = (double) nanos / numPixels;
+        if (factoryStats.numSamples == 0) {
+            factoryStats.nanosPerPixel = nanosPerPixel;
+        } else {
+            factoryStats.nanosPerPixel += SMOOTHING * (nanosPerPixel - factoryStats.nanosPerPixel);
+        }
+        factoryStats.numSamples++;
+    }
+
+    /**
+     * @return The smoothed decode time of a backend in nanoseconds per pixel, {@code NaN} if not measured yet.
+     */
+    public synchronized double getNanosPerPixel(Jp2ImageFactory factory) {
+        final Stats factoryStats = getStats(factory);
+        return factoryStats.numSamples > 0 ? factoryStats.nanosPerPixel : Double.NaN;
+    }
+
+    private Stats getStats(Jp2ImageFactory factory) {
+        Stats factoryStats = stats.get(factory);
+        if (factoryStats == null) {
+            factoryStats = new Stats();
+            try {
+                factoryStats.available = factory.isAvailable();
+            } catch (RuntimeException e) {
+                factoryStats.available = false;
+            }
+            BeamLogManager.getSystemLogger().info("JPEG 2000 backend '" + factory.getName() + "' "
+                                                  + (factoryStats.available ? "available" : "not available"));
+            stats.put(factory, factoryStats);
+        }
+        return factoryStats;
+    }
+
+    private static List<Jp2ImageFactory> loadFactories() {
+        final List<Jp2ImageFactory> factories = new ArrayList<Jp2ImageFactory>();
+        final Iterator<Jp2ImageFactory> iterator = ServiceLoader.load(Jp2ImageFactory.class, Jp2ImageFactory.class.getClassLoader()).iterator();
+        while (true) {
+            try {
+                if (!iterator.hasNext()) {
+                    break;
+                }
+                factories.add(iterator.next());
+            } catch (ServiceConfigurationError e) {
+                BeamLogManager.getSystemLogger().warning("Failed to load JPEG 2000 backend: " + e.getMessage());
+            }
+        }
+        return factories;
+    }
+
+    private static class Stats {
+        boolean available;
+        int numSamples;
+        double nanosPerPixel;
+    }
+
+    private class AutoFactory extends Jp2ImageFactory {
+        @Override
+        public String getName() {
+            return "auto";
+        }
+
+        @Override
+        public boolean isAvailable() {
+            try {
+                selectFactory();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public Jp2Image open(File file, int resolution) throws IOException {
+            return new MeasuredImage(file, resolution, -1);
+        }
+
+        @Override
+        public Jp2Image open(File file, int resolution, int numLayers) throws IOException {
+            return new MeasuredImage(file, resolution, numLayers);
+        }
+
+        @Override
+        public Jp2Image.Layout getLayout(File file) throws IOException {
+            // Pure Java, works whatever backend is selected later
+            return Jp2Header.read(file).getLayout();
+        }
+    }
+
+    /**
+     * Selects the backend for each decode and reports the decode times to the registry. While backends are
+     * explored, an image thus costs each of them only a few tiles, and it moves to the fastest one afterwards.
+     * The image of a backend is opened when the backend is first selected and kept until the image is disposed.
+     * <p/>
+     * Only real decodes count: tiles served from a backend's disk cache and failed calls are not recorded.
+     */
+    private class MeasuredImage implements Jp2Image {
+        private final File file;
+        private final int resolution;
+        private final int numLayers;
+        private final Map<Jp2ImageFactory, Jp2Image> images;
+        private final Jp2Image firstImage;
+        private final long numTilePixels;
+
+        /**
+         * @param numLayers The number of quality layers to decode, zero for all, -1 for the backend's default.
+         */
+        MeasuredImage(File file, int resolution, int numLayers) throws IOException {
+            this.file = file;
+            this.resolution = resolution;
+            this.numLayers = numLayers;
+            this.images = new LinkedHashMap<Jp2ImageFactory, Jp2Image>();
+            // Opened right away, so that a file which can't be opened fails here
+            this.firstImage = getImage(selectFactory());
+            this.numTilePixels = (long) (firstImage.getLayout().tileWidth >> resolution) * (firstImage.getLayout().tileHeight >> resolution);
+        }
+
+        private synchronized Jp2Image getImage(Jp2ImageFactory factory) throws IOException {
+            Jp2Image image = images.get(factory);
+            if (image == null) {
+                image = numLayers < 0 ? factory.open(file, resolution) : factory.open(file, resolution, numLayers);
+                images.put(factory, image);
+            }
+            return image;
+        }
+
+        @Override
+        public File getFile() {
+            return firstImage.getFile();
+        }
+
+        @Override
+        public Layout getLayout() {
+            return firstImage.getLayout();
+        }
+
+        @Override
+        public int getNumLayers() {
+            return firstImage.getNumLayers();
+        }
+
+        @Override
+        public void readTileData(int componentIndex, int tileX, int tileY, short[] tileData) throws IOException {
+            final Jp2ImageFactory factory = selectFactory();
+            final Jp2Image image = getImage(factory);
+            final boolean cached = isTileCached(image, tileX, tileY);
+            final long t0 = System.nanoTime();
+            image.readTileData(componentIndex, tileX, tileY, tileData);
+            recordTileDecode(factory, image, cached, tileX, tileY, System.nanoTime() - t0);
+        }
+
+        @Override
+        public void readTileData(int componentIndex, int tileX, int tileY, ByteBuffer tileData) throws IOException {
+            final Jp2ImageFactory factory = selectFactory();
+            final Jp2Image image = getImage(factory);
+            final boolean cached = isTileCached(image, tileX, tileY);
+            final long t0 = System.nanoTime();
+            image.readTileData(componentIndex, tileX, tileY, tileData);
+            recordTileDecode(factory, image, cached, tileX, tileY, System.nanoTime() - t0);
+        }
+
+        private boolean isTileCached(Jp2Image image, int tileX, int tileY) {
+            return image instanceof Jp2DiskCachedImage && ((Jp2DiskCachedImage) image).isTileCached(tileX, tileY);
+        }
+
+        /**
+         * Failed calls throw, except for disk-cached images, which return zeros if the tile couldn't be decoded.
+         * Their tile is then still missing from the cache.
+         */
+        private void recordTileDecode(Jp2ImageFactory factory, Jp2Image image, boolean wasCached, int tileX, int tileY, long nanos) {
+            if (image instanceof Jp2DiskCachedImage && (wasCached || !isTileCached(image, tileX, tileY))) {
+                return;
+            }
+            recordDecode(factory, nanos, numTilePixels);
+        }
+
+        @Override
+        public void readRegionData(int componentIndex, int x, int y, int width, int height, short[] regionData) throws IOException {
+            final Jp2ImageFactory factory = selectFactory();
+            final Jp2Image image = getImage(factory);
+            final long t0 = System.nanoTime();
+            image.readRegionData(componentIndex, x, y, width, height, regionData);
+            recordDecode(factory, System.nanoTime() - t0, (long) width * height);
+        }
+
+        @Override
+        public synchronized void dispose() {
+            for (Jp2Image image : images.values()) {
+                image.dispose();
+            }
+            images.clear();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package jopenjpeg2;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A JP2 image decoded by a JPEG 2000 ImageIO reader. Reduced resolution levels are read with
+ * a source subsampling of {@code 2^resolution}, which readers like the one of jai-imageio map to
+ * the wavelet resolution levels.
+ *
+ * @author Norman Fomferra
+ */
+class Jp2ImageIOImage implements Jp2Image {
+
+    private static final String FORMAT_NAME = "jpeg2000";
+    private static final int POOL_SIZE = Integer.getInteger("jopenjpeg2.imageio.poolSize", Runtime.getRuntime().availableProcessors());
+
+    private final File file;
+    private final int resolution;
+    private final Layout layout;
+    private final Jp2HandlePool<ImageReader> pool;
+
+    static boolean isAvailable() {
+        return ImageIO.getImageReadersByFormatName(FORMAT_NAME).hasNext();
+    }
+
+    public static Jp2Image open(File file, int resolution) throws IOException {
+        if (!isAvailable()) {
+            throw new IOException("No JPEG 2000 ImageIO reader found");
+        }
+        return new Jp2ImageIOImage(file, resolution, Jp2Header.read(file).getLayout());
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public Layout getLayout() {
+        return layout;
+    }
+
+    @Override
+    public int getNumLayers() {
+        return 0;
+    }
+
+    @Override
+    public void readTileData(int componentIndex, int tileX, int tileY, short[] tileData) throws IOException {
+        final int tileWidth = layout.tileWidth >> resolution;
+        final int tileHeight = layout.tileHeight >> resolution;
+        readRegionData(componentIndex, tileX * tileWidth, tileY * tileHeight, tileWidth, tileHeight, tileData);
+    }
+
+    /**
+     * Decodes straight into the buffer, in its byte order, without an intermediate array.
+     */
+    @Override
+    public void readTileData(int componentIndex, int tileX, int tileY, ByteBuffer tileData) throws IOException {
+        final int tileWidth = layout.tileWidth >> resolution;
+        final int tileHeight = layout.tileHeight >> resolution;
+        if (tileData.capacity() < 2 * tileWidth * tileHeight) {
+            throw new IllegalArgumentException(String.format("tileData.capacity() (=%d) < 2 * tileWidth (=%d) * tileHeight (=%d)",
+                                                             tileData.capacity(), tileWidth, tileHeight));
+        }
+        final int x = tileX * tileWidth;
+        final int y = tileY * tileHeight;
+        final Rectangle region = getLevelRegion(x, y, tileWidth, tileHeight);
+        final Raster raster = region != null ? readRaster(region, x, y, tileWidth, tileHeight) : null;
+        // Tiles start within the image, only their right and bottom parts may lie outside
+        final int w = raster != null ? Math.min(region.width, raster.getWidth()) : 0;
+        final int h = raster != null ? Math.min(region.height, raster.getHeight()) : 0;
+        final ShortBuffer data = tileData.asShortBuffer();
+        final int[] row = new int[tileWidth];
+        for (int j = 0; j < tileHeight; j++) {
+            if (j < h) {
+                raster.getSamples(raster.getMinX(), raster.getMinY() + j, w, 1, componentIndex, row);
+            }
+            // Samples outside of the image are zero, the buffer may be recycled
+            Arrays.fill(row, j < h ? w : 0, tileWidth, 0);
+            for (int i = 0; i < tileWidth; i++) {
+                data.put((short) row[i]);
+            }
+        }
+    }
+
+    @Override
+    public void readRegionData(int componentIndex, int x, int y, int width, int height, short[] regionData) throws IOException {
+        if (width * height > regionData.length) {
+            throw new IllegalArgumentException(String.format("width (=%d) * height (=%d) > regionData.length (=%d)",
+                                                             width, height, regionData.length));
+        }
+        Arrays.fill(regionData, 0, width * height, (short) 0);
+
+        final Rectangle region = getLevelRegion(x, y, width, height);
+        if (region == null) {
+            return;
+        }
+        final Raster raster = readRaster(region, x, y, width, height);
+        final int w = Math.min(region.width, raster.getWidth());
+        final int h = Math.min(region.height, raster.getHeight());
+        final int[] row = new int[w];
+        for (int j = 0; j < h; j++) {
+            raster.getSamples(raster.getMinX(), raster.getMinY() + j, w, 1, componentIndex, row);
+            final int offset = (region.y - y + j) * width + (region.x - x);
+            for (int i = 0; i < w; i++) {
+                regionData[offset + i] = (short) row[i];
+            }
+        }
+    }
+
+    /**
+     * @return The part of the region within the image at this resolution level, {@code null} if there is none.
+     */
+    private Rectangle getLevelRegion(int x, int y, int width, int height) {
+        final int scale = 1 << resolution;
+        final int levelWidth = (layout.width + scale - 1) >> resolution;
+        final int levelHeight = (layout.height + scale - 1) >> resolution;
+        final int x1 = Math.max(x, 0);
+        final int y1 = Math.max(y, 0);
+        final int x2 = Math.min(x + width, levelWidth);
+        final int y2 = Math.min(y + height, levelHeight);
+        if (x1 >= x2 || y1 >= y2) {
+            return null;
+        }
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    private Raster readRaster(Rectangle levelRegion, int x, int y, int width, int height) throws IOException {
+        final int scale = 1 << resolution;
+        final ImageReader reader = pool.acquire();
+        try {
+            final ImageReadParam param = reader.getDefaultReadParam();
+            // Source coordinates are always full resolution pixels
+            param.setSourceRegion(new Rectangle(levelRegion.x * scale, levelRegion.y * scale,
+                                                Math.min(levelRegion.width * scale, layout.width - levelRegion.x * scale),
+                                                Math.min(levelRegion.height * scale, layout.height - levelRegion.y * scale)));
+            param.setSourceSubsampling(scale, scale, 0, 0);
+            // Not readRaster(), the jai-imageio JPEG 2000 reader fails with a NullPointerException there
+            return reader.read(0, param).getRaster();
+        } catch (RuntimeException e) {
+            throw new IOException(String.format("Failed to read region (%d, %d, %d, %d) from %s: %s",
+                                                x, y, width, height, file.getName(), e.getMessage()), e);
+        } finally {
+            pool.release(reader);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        pool.dispose();
+    }
+
+    private Jp2ImageIOImage(final File file, int resolution, Layout layout) {
+        this.file = file;
+        this.resolution = resolution;
+        this.layout = layout;
+        this.pool = new Jp2HandlePool<ImageReader>(POOL_SIZE) {
+            @Override
+            protected ImageReader createHandle() throws IOException {
+                final Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(FORMAT_NAME);
+                if (!readers.hasNext()) {
+                    throw new IOException("No JPEG 2000 ImageIO reader found");
+                }
+                final ImageInputStream stream = ImageIO.createImageInputStream(file);
+                if (stream == null) {
+                    throw new IOException("Failed to open " + file.getName());
+                }
+                final ImageReader reader = readers.next();
+                reader.setInput(stream, true, true);
+                return reader;
+            }
+
+            @Override
+            protected void disposeHandle(ImageReader reader) {
+                final Object input = reader.getInput();
+                reader.dispose();
+                if (input instanceof ImageInputStream) {
+                    try {
+                        ((ImageInputStream) input).close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,41 @@
+package jopenjpeg2;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes in pure Java with a JPEG 2000 ImageIO reader found on the classpath, e.g. the one of jai-imageio.
+ * Needs neither the native library nor external processes.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2ImageIOImageFactory extends Jp2ImageFactory {
+
+    @Override
+    public String getName() {
+        return "imageio";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return Jp2ImageIOImage.isAvailable();
+    }
+
+    @Override
+    public Jp2Image open(File file, int resolution) throws IOException {
+        return Jp2ImageIOImage.open(file, resolution);
+    }
+
+    /**
+     * ImageIO readers decode all quality layers, {@code numLayers} is ignored.
+     */
+    @Override
+    public Jp2Image open(File file, int resolution, int numLayers) throws IOException {
+        return Jp2ImageIOImage.open(file, resolution);
+    }
+
+    @Override
+    public Jp2Image.Layout getLayout(File file) throws IOException {
+        return Jp2Header.read(file).getLayout();
+    }
+}
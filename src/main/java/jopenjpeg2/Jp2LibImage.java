@@ -1,18 +1,22 @@
 package jopenjpeg2;
 
-import jopenjpeg2.jna.Jopenjpeg2Lib;
+import jopenjpeg2.jna.Jopenjpeg2Native;
 import jopenjpeg2.jna.jopj_Img;
 import jopenjpeg2.jna.jopj_ImgInfo;
+import org.esa.beam.util.logging.BeamLogManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * @author Norman Fomferra
  */
 class Jp2LibImage implements Jp2Image {
 
-    private static final Jopenjpeg2Lib LIB = Jopenjpeg2Lib.INSTANCE;
+    private static final int POOL_SIZE = Integer.getInteger("jopenjpeg2.lib.poolSize", Runtime.getRuntime().availableProcessors());
 
     @Override
     public File getFile() {
@@ -24,41 +28,181 @@ class Jp2LibImage implements Jp2Image {
         return layout;
     }
 
-    private jopj_Img img;
+    @Override
+    public int getNumLayers() {
+        return numLayers;
+    }
+
     private final File file;
+    private final int resolution;
+    private final int numLayers;
     private final Layout layout;
+    private final Jp2TileIndex tilePartIndex;
+    private final Jp2HandlePool<jopj_Img> pool;
 
     public static Jp2Image open(File file, int resolution) throws IOException {
-        jopj_Img img = _open(file, resolution);
-        Layout layout = _getLayout(file, img);
-        return new Jp2LibImage(img, file, layout);
+        return open(file, resolution, 0);
+    }
+
+    public static Jp2Image open(File file, int resolution, int numLayers) throws IOException {
+        return open(file, resolution, numLayers, 1);
+    }
+
+    /**
+     * @param numThreads The number of threads used to decode a tile while no other tile of the image
+     *                   is decoded at the same time. Only one handle decodes on that many threads, and it is
+     *                   kept out of the pool's rotation while other requests are running. Concurrent requests
+     *                   use pooled handles with one thread each, so that batch jobs don't oversubscribe the cores.
+     */
+    public static Jp2Image open(File file, int resolution, int numLayers, int numThreads) throws IOException {
+        if (!Jopenjpeg2Native.isAvailable()) {
+            throw new IOException("Native library not available");
+        }
+        jopj_Img img = _open(file, resolution, numLayers, numThreads);
+        Layout layout;
+        try {
+            layout = _getLayout(file, img);
+        } catch (IOException e) {
+            Jopenjpeg2Native.jopj_dispose_img(img);
+            throw e;
+        }
+        Jp2LibImage image = new Jp2LibImage(file, resolution, numLayers, layout, getTilePartIndex(file));
+        if (numThreads > 1 && Jopenjpeg2Native.isThreadsAvailable()) {
+            image.pool.setSoloHandle(img);
+        } else {
+            image.pool.add(img);
+        }
+        return image;
     }
 
     public static Layout getLayout(File file) throws IOException {
-        jopj_Img img = _open(file, 0);
+        // No need to set up a native codec just for the main header
+        return Jp2Header.read(file).getLayout();
+    }
+
+    @Override
+    public void readTileData(int componentIndex, int tileX, int tileY, short[] tileData) throws IOException {
+        final int tileIndex = getLayout().numXTiles * tileY + tileX;
+        final long[][] segments = getTileCodestreamSegments(tileIndex);
+        final jopj_Img img = pool.acquire();
         try {
-            return _getLayout(file, img);
+            final boolean ok;
+            if (segments != null && Jopenjpeg2Native.isIndexedTileAvailable()) {
+                ok = Jopenjpeg2Native.jopj_read_img_tile_data_indexed(img, componentIndex, tileIndex, segments[0].length, segments[0], segments[1], tileData);
+            } else {
+                ok = Jopenjpeg2Native.jopj_read_img_tile_data(img, componentIndex, tileIndex, tileData);
+            }
+            if (!ok) {
+                throw new IOException(String.format("Failed to read tile (%d, %d) from %s", tileX, tileY, getFile().getName()));
+            }
         } finally {
-            LIB.jopj_dispose_img(img);
+            pool.release(img);
         }
     }
 
     @Override
-    public synchronized void readTileData(int componentIndex, int tileX, int tileY, short[] tileData) throws IOException {
-        final int tileIndex = getLayout().numYTiles * tileY + tileX;
-        if (!LIB.jopj_read_img_tile_data(img, componentIndex, tileIndex, tileData)) {
-            throw new IOException(String.format("Failed to read tile (%d, %d) from %s", tileX, tileY, getFile().getName()));
+    public void readTileData(int componentIndex, int tileX, int tileY, ByteBuffer tileData) throws IOException {
+        if (!tileData.isDirect() || tileData.order() != ByteOrder.nativeOrder()) {
+            throw new IllegalArgumentException("tileData must be a direct buffer in native byte order");
+        }
+        final int tileWidth = layout.tileWidth >> resolution;
+        final int tileHeight = layout.tileHeight >> resolution;
+        if (tileData.capacity() < 2 * tileWidth * tileHeight) {
+            throw new IllegalArgumentException(String.format("tileData.capacity() (=%d) < 2 * tileWidth (=%d) * tileHeight (=%d)",
+                                                             tileData.capacity(), tileWidth, tileHeight));
+        }
+        final int tileIndex = getLayout().numXTiles * tileY + tileX;
+        final long[][] segments = getTileCodestreamSegments(tileIndex);
+        final jopj_Img img = pool.acquire();
+        try {
+            final boolean ok;
+            if (segments != null && Jopenjpeg2Native.isIndexedTileAvailable()) {
+                ok = Jopenjpeg2Native.jopj_read_img_tile_data_indexed(img, componentIndex, tileIndex, segments[0].length, segments[0], segments[1], tileData);
+            } else {
+                ok = Jopenjpeg2Native.jopj_read_img_tile_data(img, componentIndex, tileIndex, tileData);
+            }
+            if (!ok) {
+                throw new IOException(String.format("Failed to read tile (%d, %d) from %s", tileX, tileY, getFile().getName()));
+            }
+        } finally {
+            pool.release(img);
         }
     }
 
     @Override
-    public synchronized void dispose() {
-        if (img != null) {
-            LIB.jopj_dispose_img(img);
-            img = null;
+    public void readRegionData(int componentIndex, int x, int y, int width, int height, short[] regionData) throws IOException {
+        if (width * height > regionData.length) {
+            throw new IllegalArgumentException(String.format("width (=%d) * height (=%d) > regionData.length (=%d)",
+                                                             width, height, regionData.length));
+        }
+        if (!Jopenjpeg2Native.isRegionAvailable()) {
+            readRegionDataFromTiles(componentIndex, x, y, width, height, regionData);
+            return;
+        }
+        final jopj_Img img = pool.acquire();
+        try {
+            if (!Jopenjpeg2Native.jopj_read_img_region(img, componentIndex, x, y, width, height, regionData)) {
+                throw new IOException(String.format("Failed to read region (%d, %d, %d, %d) from %s", x, y, width, height, getFile().getName()));
+            }
+        } finally {
+            pool.release(img);
+        }
+    }
+
+    /**
+     * Assembles a region from whole decoded tiles, for builds of the native library without region decoding.
+     */
+    private void readRegionDataFromTiles(int componentIndex, int x, int y, int width, int height, short[] regionData) throws IOException {
+        final int tileWidth = layout.tileWidth >> resolution;
+        final int tileHeight = layout.tileHeight >> resolution;
+        final short[] tileData = new short[tileWidth * tileHeight];
+        // Parts beyond the image stay zero, as with region decoding
+        Arrays.fill(regionData, 0, width * height, (short) 0);
+        final int tileX0 = Math.max(0, x / tileWidth);
+        final int tileY0 = Math.max(0, y / tileHeight);
+        final int tileX1 = Math.min(layout.numXTiles - 1, (x + width - 1) / tileWidth);
+        final int tileY1 = Math.min(layout.numYTiles - 1, (y + height - 1) / tileHeight);
+        for (int tileY = tileY0; tileY <= tileY1; tileY++) {
+            for (int tileX = tileX0; tileX <= tileX1; tileX++) {
+                readTileData(componentIndex, tileX, tileY, tileData);
+                final int x0 = Math.max(x, tileX * tileWidth);
+                final int y0 = Math.max(y, tileY * tileHeight);
+                final int x1 = Math.min(x + width, (tileX + 1) * tileWidth);
+                final int y1 = Math.min(y + height, (tileY + 1) * tileHeight);
+                for (int j = y0; j < y1; j++) {
+                    System.arraycopy(tileData, (j - tileY * tileHeight) * tileWidth + x0 - tileX * tileWidth,
+                                     regionData, (j - y) * width + x0 - x,
+                                     x1 - x0);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The file segments holding only the given tile, or {@code null} if there is no tile-part index.
+     */
+    private long[][] getTileCodestreamSegments(int tileIndex) {
+        if (tilePartIndex != null && tilePartIndex.containsTile(tileIndex)) {
+            return tilePartIndex.getTileCodestreamSegments(tileIndex);
+        }
+        return null;
+    }
+
+    private static Jp2TileIndex getTilePartIndex(File file) {
+        try {
+            final File resolvedFile = file.getCanonicalFile();
+            return Jp2TileIndex.get(resolvedFile, Jp2Cache.getPackageCacheDir(resolvedFile));
+        } catch (IOException e) {
+            BeamLogManager.getSystemLogger().warning("No tile-part index for " + file.getName() + ": " + e.getMessage());
+            return null;
         }
     }
 
+    @Override
+    public void dispose() {
+        pool.dispose();
+    }
+
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
@@ -66,7 +210,7 @@ class Jp2LibImage implements Jp2Image {
     }
 
     private static Layout _getLayout(File file, jopj_Img img) throws IOException {
-        jopj_ImgInfo imgInfo = LIB.jopj_get_img_info(img);
+        jopj_ImgInfo imgInfo = Jopenjpeg2Native.jopj_get_img_info(img);
         if (imgInfo == null) {
             throw new IOException("Failed to read image info from " + file.getName());
         }
@@ -83,17 +227,41 @@ class Jp2LibImage implements Jp2Image {
         );
     }
 
-    private static jopj_Img _open(File file, int resolution) throws IOException {
-        jopj_Img img = LIB.jopj_open_img(file.getPath(), resolution);
+    /**
+     * Builds of the native library without the extended open functions decode all layers on one thread.
+     */
+    private static jopj_Img _open(File file, int resolution, int numLayers, int numThreads) throws IOException {
+        final jopj_Img img;
+        if (numThreads > 1 && Jopenjpeg2Native.isThreadsAvailable()) {
+            img = Jopenjpeg2Native.jopj_open_img_ex(file.getPath(), resolution, numLayers, numThreads);
+        } else if (numLayers > 0 && Jopenjpeg2Native.isLayersAvailable()) {
+            img = Jopenjpeg2Native.jopj_open_img_layers(file.getPath(), resolution, numLayers);
+        } else {
+            img = Jopenjpeg2Native.jopj_open_img(file.getPath(), resolution);
+        }
         if (img == null) {
             throw new IOException("Failed to open " + file.getName());
         }
         return img;
     }
 
-    private Jp2LibImage(jopj_Img img, File file, Layout layout) {
-        this.img = img;
+    private Jp2LibImage(final File file, final int resolution, final int numLayers, Layout layout, Jp2TileIndex tilePartIndex) {
         this.file = file;
+        this.resolution = resolution;
+        this.numLayers = numLayers;
         this.layout = layout;
+        this.tilePartIndex = tilePartIndex;
+        this.pool = new Jp2HandlePool<jopj_Img>(POOL_SIZE) {
+            @Override
+            protected jopj_Img createHandle() throws IOException {
+                // Only needed while other requests are running, so one thread is enough
+                return _open(file, resolution, numLayers, 1);
+            }
+
+            @Override
+            protected void disposeHandle(jopj_Img img) {
+                Jopenjpeg2Native.jopj_dispose_img(img);
+            }
+        };
     }
 }
@@ -0,0 +1,49 @@
+package jopenjpeg2;
+
+import jopenjpeg2.jna.Jopenjpeg2Native;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes in-process with the native <b>jopenjpeg2</b> library.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2LibImageFactory extends Jp2ImageFactory {
+
+    private final int numThreads;
+
+    public Jp2LibImageFactory() {
+        this(DEFAULT_NUM_THREADS);
+    }
+
+    public Jp2LibImageFactory(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    @Override
+    public String getName() {
+        return "lib";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return Jopenjpeg2Native.isAvailable();
+    }
+
+    @Override
+    public Jp2Image open(File file, int resolution) throws IOException {
+        return Jp2LibImage.open(file, resolution, 0, numThreads);
+    }
+
+    @Override
+    public Jp2Image open(File file, int resolution, int numLayers) throws IOException {
+        return Jp2LibImage.open(file, resolution, numLayers, numThreads);
+    }
+
+    @Override
+    public Jp2Image.Layout getLayout(File file) throws IOException {
+        return Jp2LibImage.getLayout(file);
+    }
+}
@@ -0,0 +1,293 @@
+package jopenjpeg2;
+
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes JP2 tiles ahead of time. From the sequence of JP2 tiles accessed by an image, the pan direction
+ * and the zoom direction are inferred and the next tile in pan direction as well as the same tile at the next
+ * resolution level in zoom direction are decoded in the background.
+ * <p/>
+ * Prefetching never competes with tiles someone is waiting for: it runs on few low-priority threads,
+ * is skipped while foreground decodes are running (see {@link #foregroundStarted()}), starts at most one
+ * decode per {@code jopenjpeg2.prefetch.intervalMillis} and keeps only the most recent predictions.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2Prefetcher {
+
+    public static final Jp2Prefetcher INSTANCE = new Jp2Prefetcher(Boolean.parseBoolean(System.getProperty("jopenjpeg2.prefetch.enabled", "true")),
+                                                                   Integer.getInteger("jopenjpeg2.prefetch.threads", 1),
+                                                                   Integer.getInteger("jopenjpeg2.prefetch.maxQueued", 8),
+                                                                   Long.getLong("jopenjpeg2.prefetch.intervalMillis", 100L));
+
+    private final ThreadPoolExecutor executor;
+    private final Set<Task> queuedTasks;
+    private final AtomicInteger foregroundCount;
+    private final long intervalMillis;
+    private long nextStartTime;
+
+    /**
+     * The tiles of one band at all resolution levels. JP2 tiles at different levels cover the same area,
+     * so tile coordinates are the same at all levels.
+     */
+    public static abstract class Target {
+        private int lastLevel = -1;
+        private int lastTileX;
+        private int lastTileY;
+        private int panX;
+        private int panY;
+        private int zoom;
+
+        public abstract int getNumLevels();
+
+        public abstract int getNumXTiles();
+
+        public abstract int getNumYTiles();
+
+        /**
+         * @return {@code true} if the tile doesn't need to be decoded anymore.
+         */
+        public abstract boolean isLoaded(int level, int tileX, int tileY);
+
+        /**
+         * Decodes the tile into a cache, also at levels which are not in use yet.
+         */
+        public abstract void load(int level, int tileX, int tileY) throws IOException;
+    }
+
+    public Jp2Prefetcher(boolean enabled, int numThreads, int maxQueued, long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        this.queuedTasks = new HashSet<Task>();
+        this.foregroundCount = new AtomicInteger();
+        if (enabled && numThreads > 0) {
+            executor = new ThreadPoolExecutor(numThreads, numThreads,
+                                              10, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<Runnable>(Math.max(1, maxQueued)),
+                                              new PrefetchThreadFactory(),
+                                              new DiscardOldestTaskPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        } else {
+            executor = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * Must be called when a JP2 tile is requested by a user of the target.
+     */
+    public void tileAccessed(Target target, int level, int tileX, int tileY) {
+        if (executor == null) {
+            return;
+        }
+        final List<Task> predictions = new ArrayList<Task>(3);
+        synchronized (target) {
+            if (level == target.lastLevel && tileX == target.lastTileX && tileY == target.lastTileY) {
+                return;
+            }
+            final int panX;
+            final int panY;
+            final int zoom;
+            if (target.lastLevel == -1) {
+                panX = panY = zoom = 0;
+            } else if (level == target.lastLevel) {
+                panX = Integer.signum(tileX - target.lastTileX);
+                panY = Integer.signum(tileY - target.lastTileY);
+                zoom = target.zoom;
+            } else {
+                panX = panY = 0;
+                zoom = Integer.signum(level - target.lastLevel);
+            }
+            if (panX != target.panX || panY != target.panY || zoom != target.zoom) {
+                // Earlier predictions are outdated
+                cancel(target, -1);
+            }
+            target.lastLevel = level;
+            target.lastTileX = tileX;
+            target.lastTileY = tileY;
+            target.panX = panX;
+            target.panY = panY;
+            target.zoom = zoom;
+
+            if (panX != 0 || panY != 0) {
+                predictions.add(new Task(target, level, tileX + panX, tileY + panY));
+                if (panX != 0 && panY != 0) {
+                    predictions.add(new Task(target, level, tileX + panX, tileY));
+                    predictions.add(new Task(target, level, tileX, tileY + panY));
+                }
+            }
+            if (zoom != 0) {
+                predictions.add(new Task(target, level + zoom, tileX, tileY));
+            }
+        }
+        for (Task task : predictions) {
+            if (task.level >= 0 && task.level < target.getNumLevels()
+                    && task.tileX >= 0 && task.tileX < target.getNumXTiles()
+                    && task.tileY >= 0 && task.tileY < target.getNumYTiles()
+                    && !target.isLoaded(task.level, task.tileX, task.tileY)) {
+                submit(task);
+            }
+        }
+    }
+
+    /**
+     * Removes queued prefetches of the target.
+     *
+     * @param level The level, or -1 for all levels.
+     */
+    public void cancel(Target target, int level) {
+        if (executor == null) {
+            return;
+        }
+        final Iterator<Runnable> iterator = executor.getQueue().iterator();
+        while (iterator.hasNext()) {
+            final Task task = (Task) iterator.next();
+            if (task.target == target && (level == -1 || task.level == level)) {
+                iterator.remove();
+                dequeued(task);
+            }
+        }
+    }
+
+    /**
+     * Must be called before a tile is decoded for someone waiting for it.
+     */
+    public void foregroundStarted() {
+        foregroundCount.incrementAndGet();
+    }
+
+    /**
+     * Must be called after a tile has been decoded for someone waiting for it.
+     */
+    public void foregroundEnded() {
+        foregroundCount.decrementAndGet();
+    }
+
+    /**
+     * @return {@code true} while tiles are decoded for someone waiting for them.
+     */
+    public boolean isForegroundBusy() {
+        return foregroundCount.get() > 0;
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void submit(Task task) {
+        synchronized (queuedTasks) {
+            if (!queuedTasks.add(task)) {
+                return;
+            }
+        }
+        executor.execute(task);
+    }
+
+    private void dequeued(Task task) {
+        synchronized (queuedTasks) {
+            queuedTasks.remove(task);
+        }
+    }
+
+    private boolean awaitStartTime() throws InterruptedException {
+        final long delay;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            final long startTime = Math.max(now, nextStartTime);
+            nextStartTime = startTime + intervalMillis;
+            delay = startTime - now;
+        }
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+        return !isForegroundBusy();
+    }
+
+    private class Task implements Runnable {
+        final Target target;
+        final int level;
+        final int tileX;
+        final int tileY;
+
+        Task(Target target, int level, int tileX, int tileY) {
+            this.target = target;
+            this.level = level;
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        @Override
+        public void run() {
+            dequeued(this);
+            try {
+                if (awaitStartTime() && !target.isLoaded(level, tileX, tileY)) {
+                    target.load(level, tileX, tileY);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                BeamLogManager.getSystemLogger().fine("Prefetch of tile (" + tileX + "," + tileY + ") at level " + level + " failed: " + e.getMessage());
+            } catch (RuntimeException e) {
+                BeamLogManager.getSystemLogger().fine("Prefetch of tile (" + tileX + "," + tileY + ") at level " + level + " failed: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Task)) {
+                return false;
+            }
+            final Task task = (Task) o;
+            return target == task.target && level == task.level && tileX == task.tileX && tileY == task.tileY;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * System.identityHashCode(target) + level) + tileX) + tileY;
+        }
+    }
+
+    private class DiscardOldestTaskPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            if (e.isShutdown()) {
+                dequeued((Task) r);
+                return;
+            }
+            final Runnable oldest = e.getQueue().poll();
+            if (oldest != null) {
+                dequeued((Task) oldest);
+            }
+            e.execute(r);
+        }
+    }
+
+    private static class PrefetchThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "jopenjpeg2-prefetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package jopenjpeg2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller runs the call, all others
+ * wait for it and get the same result. Used to decode a tile only once, however many
+ * threads ask for it at the same time.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> calls;
+
+    public Jp2SingleFlight() {
+        calls = new ConcurrentHashMap<K, FutureTask<V>>();
+    }
+
+    /**
+     * Runs {@code callable} unless a call for the same key is already running, in which case its result is returned.
+     */
+    public V execute(K key, Callable<V> callable) throws IOException {
+        final FutureTask<V> task = new FutureTask<V>(callable);
+        FutureTask<V> call = calls.putIfAbsent(key, task);
+        if (call == null) {
+            call = task;
+            try {
+                task.run();
+            } finally {
+                calls.remove(key, task);
+            }
+        }
+        try {
+            return call.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public boolean isRunning(K key) {
+        return calls.containsKey(key);
+    }
+}
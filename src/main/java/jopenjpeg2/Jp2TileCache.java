@@ -0,0 +1,197 @@
+package jopenjpeg2;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded JP2 tiles held in memory, shared by all images, resolution levels and bands of the process.
+ * A decoded JP2 tile is usually much larger than a JAI tile, so that many JAI tiles are cut from the same
+ * cached JP2 tile without going back to the disk or the decoder.
+ * <p/>
+ * The total size of the cached pixel data is limited by the system property
+ * {@code jopenjpeg2.tileCache.maxBytes}, least recently used tiles are dropped first.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2TileCache {
+
+    public static final Jp2TileCache INSTANCE = new Jp2TileCache(Long.getLong("jopenjpeg2.tileCache.maxBytes", 512L * 1024 * 1024));
+
+    private final long maxBytes;
+    // In access order, least recently used first
+    private final Map<Key, Tile> tiles;
+    private long cachedBytes;
+
+    public Jp2TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.tiles = new LinkedHashMap<Key, Tile>(64, 0.75f, true);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized Tile get(Key key) {
+        return tiles.get(key);
+    }
+
+    /**
+     * Adds a tile. The tile's data must not be modified afterwards.
+     * Tiles larger than the cache are not added.
+     */
+    public synchronized void put(Key key, Tile tile) {
+        if (tile.getNumBytes() > maxBytes) {
+            return;
+        }
+        final Tile oldTile = tiles.put(key, tile);
+        if (oldTile != null) {
+            cachedBytes -= oldTile.getNumBytes();
+        }
+        cachedBytes += tile.getNumBytes();
+
+        final Iterator<Tile> iterator = tiles.values().iterator();
+        while (cachedBytes > maxBytes && iterator.hasNext()) {
+            cachedBytes -= iterator.next().getNumBytes();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes all tiles of the given JP2 file.
+     */
+    public synchronized void remove(File file) {
+        final Iterator<Map.Entry<Key, Tile>> iterator = tiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Key, Tile> entry = iterator.next();
+            if (entry.getKey().file.equals(file)) {
+                cachedBytes -= entry.getValue().getNumBytes();
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        tiles.clear();
+        cachedBytes = 0;
+    }
+
+    public static final class Key {
+        final File file;
+        final int resolution;
+        final int numLayers;
+        final int componentIndex;
+        final int tileIndex;
+
+        public Key(File file, int resolution, int componentIndex, int tileIndex) {
+            this(file, resolution, 0, componentIndex, tileIndex);
+        }
+
+        /**
+         * @param numLayers The number of quality layers the tile was decoded from, zero for all.
+         */
+        public Key(File file, int resolution, int numLayers, int componentIndex, int tileIndex) {
+            this.file = file;
+            this.resolution = resolution;
+            this.numLayers = numLayers;
+            this.componentIndex = componentIndex;
+            this.tileIndex = tileIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return resolution == key.resolution
+                    && numLayers == key.numLayers
+                    && componentIndex == key.componentIndex
+                    && tileIndex == key.tileIndex
+                    && file.equals(key.file);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = file.hashCode();
+            result = 31 * result + resolution;
+            result = 31 * result + numLayers;
+            result = 31 * result + componentIndex;
+            result = 31 * result + tileIndex;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[res=%d, layers=%d, comp=%d, tile=%d]", file.getName(), resolution, numLayers, componentIndex, tileIndex);
+        }
+    }
+
+    /**
+     * Pixel data of a decoded tile, row by row.
+     */
+    public static final class Tile {
+        public final int width;
+        public final int height;
+        public final short[] data;
+
+        public Tile(int width, int height, short[] data) {
+            if (data.length < width * height) {
+                throw new IllegalArgumentException("data.length < width * height");
+            }
+            this.width = width;
+            this.height = height;
+            this.data = data;
+        }
+
+        public long getNumBytes() {
+            return 2L * data.length;
+        }
+
+        /**
+         * Copies a rectangle of this tile into {@code dest}. Pixels outside the tile are set to zero.
+         *
+         * @param x          X of the rectangle within this tile.
+         * @param y          Y of the rectangle within this tile.
+         * @param destWidth  The rectangle's width.
+         * @param destHeight The rectangle's height.
+         * @param dest       The destination, at least {@code destWidth * destHeight} elements.
+         */
+        public void copyTo(int x, int y, int destWidth, int destHeight, short[] dest) {
+            if (x == 0 && y == 0 && destWidth == width && destHeight == height) {
+                System.arraycopy(data, 0, dest, 0, width * height);
+                return;
+            }
+            final int x1 = Math.max(x, 0);
+            final int x2 = Math.min(x + destWidth, width);
+            final int y1 = Math.max(y, 0);
+            final int y2 = Math.min(y + destHeight, height);
+            if (x1 >= x2 || y1 >= y2) {
+                Arrays.fill(dest, 0, destWidth * destHeight, (short) 0);
+                return;
+            }
+            final int rowLength = x2 - x1;
+            for (int destY = 0; destY < destHeight; destY++) {
+                final int destPos = destY * destWidth;
+                final int srcY = y + destY;
+                if (srcY < y1 || srcY >= y2) {
+                    Arrays.fill(dest, destPos, destPos + destWidth, (short) 0);
+                    continue;
+                }
+                final int destX1 = x1 - x;
+                Arrays.fill(dest, destPos, destPos + destX1, (short) 0);
+                System.arraycopy(data, srcY * width + x1, dest, destPos + destX1, rowLength);
+                Arrays.fill(dest, destPos + destX1 + rowLength, destPos + destWidth, (short) 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package jopenjpeg2;
+
+import org.esa.beam.util.logging.BeamLogManager;
+
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * File positions and lengths of all tile-parts of a JP2 codestream, so that a single tile can be
+ * decoded from its own bytes plus the main header, without walking the codestream.
+ * The index is taken from the TLM markers if present, otherwise the SOT markers are scanned.
+ * It is persisted as a small sidecar file in the tile cache directory.
+ * <p/>
+ * The TLM marker segments are left out of the main header of a single-tile codestream, they describe
+ * the tile-parts of all tiles and would send a decoder using them to the wrong offsets.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2TileIndex {
+
+    public static final String SIDECAR_EXT = ".tix";
+
+    private static final int MAGIC = 0x4A544958; // 'JTIX'
+    private static final int VERSION = 2;
+    private static final int MARKER_EOC = 0xFFD9;
+    private static final byte[] EOC = {(byte) 0xFF, (byte) 0xD9};
+
+    // File segments of the main header without its TLM marker segments
+    private final long[] headerOffsets;
+    private final long[] headerLengths;
+    private final int[] tileIndexes;
+    private final long[] offsets;
+    private final long[] lengths;
+
+    /**
+     * Loads the index from its sidecar in {@code cacheDir}, or creates and persists it
+     * if the sidecar is missing or out of date.
+     */
+    public static Jp2TileIndex get(File jp2File, File cacheDir) throws IOException {
+        final File sidecarFile = new File(cacheDir, jp2File.getName() + SIDECAR_EXT);
+        if (sidecarFile.exists()) {
+            try {
+                final Jp2TileIndex index = read(sidecarFile, jp2File);
+                if (index != null) {
+                    return index;
+                }
+            } catch (IOException e) {
+                BeamLogManager.getSystemLogger().warning("Ignoring invalid tile index " + sidecarFile + ": " + e.getMessage());
+            }
+        }
+        final Jp2TileIndex index = create(jp2File);
+        try {
+            index.write(sidecarFile, jp2File);
+        } catch (IOException e) {
+            sidecarFile.delete();
+            BeamLogManager.getSystemLogger().warning("Failed to write tile index " + sidecarFile + ": " + e.getMessage());
+        }
+        return index;
+    }
+
+    public static Jp2TileIndex create(File jp2File) throws IOException {
+        final FileImageInputStream stream = new FileImageInputStream(jp2File);
+        try {
+            return create(stream, Jp2Header.read(stream));
+        } finally {
+            stream.close();
+        }
+    }
+
+    static Jp2TileIndex create(ImageInputStream stream, Jp2Header header) throws IOException {
+        if (header.hasTlm()) {
+            final int n = header.tlmTileIndexes.length;
+            final long[] offsets = new long[n];
+            long offset = header.firstTilePartOffset;
+            for (int i = 0; i < n; i++) {
+                offsets[i] = offset;
+                offset += header.tlmTilePartLengths[i];
+            }
+            final long[][] headerSegments = getHeaderSegments(header);
+            return new Jp2TileIndex(headerSegments[0], headerSegments[1],
+                                    header.tlmTileIndexes.clone(), offsets, header.tlmTilePartLengths.clone());
+        }
+        return scan(stream, header);
+    }
+
+    private static Jp2TileIndex scan(ImageInputStream stream, Jp2Header header) throws IOException {
+        final long streamLength = stream.length();
+        int count = 0;
+        int[] tileIndexes = new int[Math.max(16, header.getNumTiles())];
+        long[] offsets = new long[tileIndexes.length];
+        long[] lengths = new long[tileIndexes.length];
+        long pos = header.firstTilePartOffset;
+        while (streamLength < 0 || pos + 2 <= streamLength) {
+            stream.seek(pos);
+            final int marker = stream.readUnsignedShort();
+            if (marker == MARKER_EOC) {
+                break;
+            }
+            if (marker != Jp2Header.MARKER_SOT) {
+                throw new IOException(String.format("SOT marker expected at position %d", pos));
+            }
+            stream.readUnsignedShort(); // Lsot
+            final int tileIndex = stream.readUnsignedShort();
+            long length = stream.readUnsignedInt();
+            if (length == 0) {
+                // Last tile-part, extends to the EOC marker
+                length = streamLength - 2 - pos;
+            }
+            if (length < 14) {
+                throw new IOException(String.format("Invalid tile-part length at position %d", pos));
+            }
+            if (count == tileIndexes.length) {
+                tileIndexes = grow(tileIndexes);
+                offsets = grow(offsets);
+                lengths = grow(lengths);
+            }
+            tileIndexes[count] = tileIndex;
+            offsets[count] = pos;
+            lengths[count] = length;
+            count++;
+            pos += length;
+        }
+        final int[] tileIndexes2 = new int[count];
+        final long[] offsets2 = new long[count];
+        final long[] lengths2 = new long[count];
+        System.arraycopy(tileIndexes, 0, tileIndexes2, 0, count);
+        System.arraycopy(offsets, 0, offsets2, 0, count);
+        System.arraycopy(lengths, 0, lengths2, 0, count);
+        final long[][] headerSegments = getHeaderSegments(header);
+        return new Jp2TileIndex(headerSegments[0], headerSegments[1], tileIndexes2, offsets2, lengths2);
+    }
+
+    /**
+     * @return The file segments of the main header between the TLM marker segments.
+     */
+    private static long[][] getHeaderSegments(Jp2Header header) {
+        final int numTlmSegments = header.tlmSegmentOffsets != null ? header.tlmSegmentOffsets.length : 0;
+        final long[] offsets = new long[numTlmSegments + 1];
+        final long[] lengths = new long[numTlmSegments + 1];
+        int count = 0;
+        long pos = header.codestreamOffset;
+        for (int i = 0; i < numTlmSegments; i++) {
+            if (header.tlmSegmentOffsets[i] > pos) {
+                offsets[count] = pos;
+                lengths[count] = header.tlmSegmentOffsets[i] - pos;
+                count++;
+            }
+            pos = header.tlmSegmentOffsets[i] + header.tlmSegmentLengths[i];
+        }
+        if (header.firstTilePartOffset > pos) {
+            offsets[count] = pos;
+            lengths[count] = header.firstTilePartOffset - pos;
+            count++;
+        }
+        final long[] offsets2 = new long[count];
+        final long[] lengths2 = new long[count];
+        System.arraycopy(offsets, 0, offsets2, 0, count);
+        System.arraycopy(lengths, 0, lengths2, 0, count);
+        return new long[][]{offsets2, lengths2};
+    }
+
+    /**
+     * @return The index, or {@code null} if the sidecar does not match the JP2 file anymore.
+     */
+    static Jp2TileIndex read(File sidecarFile, File jp2File) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecarFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            if (in.readLong() != jp2File.length() || in.readLong() != jp2File.lastModified()) {
+                return null;
+            }
+            final int headerCount = in.readInt();
+            final long[] headerOffsets = new long[headerCount];
+            final long[] headerLengths = new long[headerCount];
+            for (int i = 0; i < headerCount; i++) {
+                headerOffsets[i] = in.readLong();
+                headerLengths[i] = in.readLong();
+            }
+            final int count = in.readInt();
+            final int[] tileIndexes = new int[count];
+            final long[] offsets = new long[count];
+            final long[] lengths = new long[count];
+            for (int i = 0; i < count; i++) {
+                tileIndexes[i] = in.readInt();
+                offsets[i] = in.readLong();
+                lengths[i] = in.readLong();
+            }
+            return new Jp2TileIndex(headerOffsets, headerLengths, tileIndexes, offsets, lengths);
+        } finally {
+            in.close();
+        }
+    }
+
+    void write(File sidecarFile, File jp2File) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecarFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(jp2File.length());
+            out.writeLong(jp2File.lastModified());
+            out.writeInt(headerOffsets.length);
+            for (int i = 0; i < headerOffsets.length; i++) {
+                out.writeLong(headerOffsets[i]);
+                out.writeLong(headerLengths[i]);
+            }
+            out.writeInt(tileIndexes.length);
+            for (int i = 0; i < tileIndexes.length; i++) {
+                out.writeInt(tileIndexes[i]);
+                out.writeLong(offsets[i]);
+                out.writeLong(lengths[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public int getTilePartCount() {
+        return tileIndexes.length;
+    }
+
+    public int getTileIndex(int tilePart) {
+        return tileIndexes[tilePart];
+    }
+
+    public long getTilePartOffset(int tilePart) {
+        return offsets[tilePart];
+    }
+
+    public long getTilePartLength(int tilePart) {
+        return lengths[tilePart];
+    }
+
+    public boolean containsTile(int tileIndex) {
+        for (int index : tileIndexes) {
+            if (index == tileIndex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the file segments forming a stand-alone J2K codestream for one tile: the main header
+     * without TLM marker segments, the tile's tile-parts and a trailing EOC marker. The EOC marker is not part of the file, its
+     * segment has the offset -1.
+     *
+     * @return Pairs of file offset and length, {@code segments[0]} are the offsets, {@code segments[1]} the lengths.
+     */
+    public long[][] getTileCodestreamSegments(int tileIndex) {
+        int numParts = 0;
+        for (int index : tileIndexes) {
+            if (index == tileIndex) {
+                numParts++;
+            }
+        }
+        final int numHeaderSegments = headerOffsets.length;
+        final long[] segmentOffsets = new long[numHeaderSegments + numParts + 1];
+        final long[] segmentLengths = new long[numHeaderSegments + numParts + 1];
+        System.arraycopy(headerOffsets, 0, segmentOffsets, 0, numHeaderSegments);
+        System.arraycopy(headerLengths, 0, segmentLengths, 0, numHeaderSegments);
+        int j = numHeaderSegments;
+        for (int i = 0; i < tileIndexes.length; i++) {
+            if (tileIndexes[i] == tileIndex) {
+                segmentOffsets[j] = offsets[i];
+                segmentLengths[j] = lengths[i];
+                j++;
+            }
+        }
+        segmentOffsets[j] = -1;
+        segmentLengths[j] = EOC.length;
+        return new long[][]{segmentOffsets, segmentLengths};
+    }
+
+    /**
+     * Writes a stand-alone J2K codestream containing only the given tile, reading only that tile's bytes.
+     */
+    public void writeTileCodestream(File jp2File, int tileIndex, File outputFile) throws IOException {
+        final long[][] segments = getTileCodestreamSegments(tileIndex);
+        final RandomAccessFile raf = new RandomAccessFile(jp2File, "r");
+        try {
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), 64 * 1024);
+            try {
+                final byte[] buffer = new byte[64 * 1024];
+                for (int i = 0; i < segments[0].length; i++) {
+                    final long offset = segments[0][i];
+                    if (offset < 0) {
+                        out.write(EOC);
+                        continue;
+                    }
+                    raf.seek(offset);
+                    long remaining = segments[1][i];
+                    while (remaining > 0) {
+                        final int n = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (n < 0) {
+                            throw new IOException("Unexpected end of file " + jp2File.getName());
+                        }
+                        out.write(buffer, 0, n);
+                        remaining -= n;
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private Jp2TileIndex(long[] headerOffsets, long[] headerLengths, int[] tileIndexes, long[] offsets, long[] lengths) {
+        this.headerOffsets = headerOffsets;
+        this.headerLengths = headerLengths;
+        this.tileIndexes = tileIndexes;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    private static int[] grow(int[] array) {
+        final int[] newArray = new int[2 * array.length];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    private static long[] grow(long[] array) {
+        final long[] newArray = new long[2 * array.length];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+}
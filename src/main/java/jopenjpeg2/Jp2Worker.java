@@ -0,0 +1,227 @@
+package jopenjpeg2;
+
+import com.sun.jna.Native;
+import org.esa.beam.util.SystemUtils;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A decoder running in a child JVM, see {@link Jp2WorkerMain}. Requests are sent through the child's standard input,
+ * replies are read from its standard output. Decoded pixels are written by the child into PGX files.
+ * <p/>
+ * Not thread-safe, a worker serves one request at a time.
+ *
+ * @author Norman Fomferra
+ */
+class Jp2Worker {
+
+    static final int READY = 0x4A505732; // 'JPW2'
+    static final int CMD_DECODE_TILE = 1;
+    static final int CMD_DECODE_REGION = 2;
+    static final int CMD_CLOSE = 3;
+    static final int STATUS_OK = 0;
+    static final int STATUS_ERROR = 1;
+
+    private static final String JVM_OPTIONS = System.getProperty("jopenjpeg2.workers.jvmOptions", "-Xmx256M");
+
+    private final Process process;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private boolean broken;
+
+    static Jp2Worker start() throws IOException {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        for (String option : JVM_OPTIONS.trim().split("\\s+")) {
+            if (!option.isEmpty()) {
+                command.add(option);
+            }
+        }
+        addSystemProperty(command, "jna.library.path");
+        addSystemProperty(command, "java.library.path");
+        addSystemProperty(command, "jopenjpeg2.lib.poolSize");
+        addSystemProperty(command, "jopenjpeg2.bufferPool.maxBytes");
+        command.add("-cp");
+        command.add(System.getProperty("jopenjpeg2.workers.classPath", getClassPath()));
+        command.add(Jp2WorkerMain.class.getName());
+
+        final Process process = new ProcessBuilder(command).start();
+        final Jp2Worker worker = new Jp2Worker(process);
+        try {
+            if (worker.in.readInt() != READY) {
+                throw new IOException("Unexpected reply from decoder worker");
+            }
+        } catch (IOException e) {
+            worker.destroy();
+            throw new IOException("Failed to start decoder worker: " + e.getMessage(), e);
+        }
+        return worker;
+    }
+
+    private Jp2Worker(Process process) {
+        this.process = process;
+        this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        drain(process.getErrorStream());
+    }
+
+    /**
+     * @return {@code true} if the worker process died or the protocol failed, the worker must be discarded then.
+     */
+    boolean isBroken() {
+        return broken;
+    }
+
+    void decodeTile(File file, int resolution, int numLayers, int componentIndex, int tileX, int tileY, File pgxFile) throws IOException {
+        try {
+            out.writeInt(CMD_DECODE_TILE);
+            out.writeUTF(file.getPath());
+            out.writeInt(resolution);
+            out.writeInt(numLayers);
+            out.writeInt(componentIndex);
+            out.writeInt(tileX);
+            out.writeInt(tileY);
+            out.writeUTF(pgxFile.getPath());
+            out.flush();
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        readStatus();
+    }
+
+    void decodeRegion(File file, int resolution, int numLayers, int componentIndex, int x, int y, int width, int height, File pgxFile) throws IOException {
+        try {
+            out.writeInt(CMD_DECODE_REGION);
+            out.writeUTF(file.getPath());
+            out.writeInt(resolution);
+            out.writeInt(numLayers);
+            out.writeInt(componentIndex);
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeUTF(pgxFile.getPath());
+            out.flush();
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        readStatus();
+    }
+
+    void close(File file) throws IOException {
+        try {
+            out.writeInt(CMD_CLOSE);
+            out.writeUTF(file.getPath());
+            out.flush();
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        readStatus();
+    }
+
+    void destroy() {
+        broken = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // ok, process is gone
+        }
+        process.destroy();
+    }
+
+    private void readStatus() throws IOException {
+        final int status;
+        final String message;
+        try {
+            status = in.readInt();
+            message = status == STATUS_OK ? null : in.readUTF();
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        if (status != STATUS_OK) {
+            throw new IOException(message);
+        }
+    }
+
+    private IOException fail(IOException e) {
+        broken = true;
+        if (e instanceof EOFException) {
+            return new IOException("Decoder worker terminated unexpectedly", e);
+        }
+        return e;
+    }
+
+    private static void addSystemProperty(List<String> command, String name) {
+        final String value = System.getProperty(name);
+        if (value != null) {
+            command.add("-D" + name + "=" + value);
+        }
+    }
+
+    /**
+     * The class path of the worker JVM: the locations of this module and its dependencies, since
+     * the class path of the current JVM may not contain them if a module runtime loaded them.
+     */
+    private static String getClassPath() {
+        final Set<String> paths = new LinkedHashSet<String>();
+        for (Class<?> type : new Class<?>[]{Jp2WorkerMain.class, Native.class, SystemUtils.class, BeamLogManager.class}) {
+            final CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+            final URL location = codeSource != null ? codeSource.getLocation() : null;
+            if (location != null) {
+                try {
+                    paths.add(new File(location.toURI()).getPath());
+                } catch (URISyntaxException e) {
+                    paths.add(location.getPath());
+                }
+            }
+        }
+        final String classPath = System.getProperty("java.class.path");
+        if (classPath != null && !classPath.isEmpty()) {
+            paths.add(classPath);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (String path : paths) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparator);
+            }
+            sb.append(path);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The native decoder logs to stderr, which must be consumed, otherwise the worker blocks once the pipe is full.
+     */
+    private static void drain(final InputStream errorStream) {
+        final Thread thread = new Thread("jopenjpeg2-worker-stderr") {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[4096];
+                try {
+                    while (errorStream.read(buffer) != -1) {
+                        // discard
+                    }
+                } catch (IOException e) {
+                    // process is gone
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
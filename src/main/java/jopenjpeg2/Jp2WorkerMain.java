@@ -0,0 +1,207 @@
+package jopenjpeg2;
+
+import jopenjpeg2.jna.Jopenjpeg2Native;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Entry point of a decoder worker JVM, see {@link Jp2Worker}. Keeps the decoders of recently used
+ * images open and decodes tiles and regions into PGX files. A crash of the
+ * native decoder only takes down this process. The worker exits when its standard input is closed.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2WorkerMain {
+
+    private static final int MAX_OPEN_IMAGES = Integer.getInteger("jopenjpeg2.workers.maxOpenImages", 16);
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    // In access order, least recently used first
+    private final Map<String, Jp2Image> openImages;
+
+    public static void main(String[] args) throws IOException {
+        // The protocol owns stdout, anything printed goes to stderr
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+
+        // Fail early if the native library can't be loaded
+        Jopenjpeg2Native.checkAvailable();
+
+        out.writeInt(Jp2Worker.READY);
+        out.flush();
+
+        new Jp2WorkerMain(new DataInputStream(new BufferedInputStream(System.in)), out).run();
+        System.exit(0);
+    }
+
+    Jp2WorkerMain(DataInputStream in, DataOutputStream out) {
+        this.in = in;
+        this.out = out;
+        this.openImages = new LinkedHashMap<String, Jp2Image>(16, 0.75f, true);
+    }
+
+    void run() throws IOException {
+        try {
+            while (true) {
+                final int command;
+                try {
+                    command = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                try {
+                    switch (command) {
+                        case Jp2Worker.CMD_DECODE_TILE:
+                            decodeTile();
+                            break;
+                        case Jp2Worker.CMD_DECODE_REGION:
+                            decodeRegion();
+                            break;
+                        case Jp2Worker.CMD_CLOSE:
+                            close(new File(in.readUTF()));
+                            break;
+                        default:
+                            throw new IOException("Unknown command " + command);
+                    }
+                    out.writeInt(Jp2Worker.STATUS_OK);
+                } catch (IOException e) {
+                    out.writeInt(Jp2Worker.STATUS_ERROR);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                } catch (RuntimeException e) {
+                    out.writeInt(Jp2Worker.STATUS_ERROR);
+                    out.writeUTF(e.toString());
+                }
+                out.flush();
+            }
+        } finally {
+            for (Jp2Image image : openImages.values()) {
+                image.dispose();
+            }
+            openImages.clear();
+        }
+    }
+
+    private void decodeTile() throws IOException {
+        final File file = new File(in.readUTF());
+        final int resolution = in.readInt();
+        final int numLayers = in.readInt();
+        final int componentIndex = in.readInt();
+        final int tileX = in.readInt();
+        final int tileY = in.readInt();
+        final File pgxFile = new File(in.readUTF());
+
+        final Jp2Image image = getImage(file, resolution, numLayers);
+        final int tileWidth = image.getLayout().tileWidth >> resolution;
+        final int tileHeight = image.getLayout().tileHeight >> resolution;
+        final ByteBuffer data = Jp2BufferPool.INSTANCE.acquire(2 * tileWidth * tileHeight);
+        try {
+            image.readTileData(componentIndex, tileX, tileY, data);
+            data.clear();
+            writePgxFile(pgxFile, tileWidth, tileHeight, data);
+        } finally {
+            Jp2BufferPool.INSTANCE.release(data);
+        }
+    }
+
+    private void decodeRegion() throws IOException {
+        final File file = new File(in.readUTF());
+        final int resolution = in.readInt();
+        final int numLayers = in.readInt();
+        final int componentIndex = in.readInt();
+        final int x = in.readInt();
+        final int y = in.readInt();
+        final int width = in.readInt();
+        final int height = in.readInt();
+        final File pgxFile = new File(in.readUTF());
+
+        final Jp2Image image = getImage(file, resolution, numLayers);
+        final short[] regionData = new short[width * height];
+        image.readRegionData(componentIndex, x, y, width, height, regionData);
+        final ByteBuffer data = Jp2BufferPool.INSTANCE.acquire(2 * width * height);
+        try {
+            data.asShortBuffer().put(regionData);
+            writePgxFile(pgxFile, width, height, data);
+        } finally {
+            Jp2BufferPool.INSTANCE.release(data);
+        }
+    }
+
+    private Jp2Image getImage(File file, int resolution, int numLayers) throws IOException {
+        final String key = file.getPath() + "#" + resolution + "#" + numLayers;
+        Jp2Image image = openImages.get(key);
+        if (image == null) {
+            image = Jp2LibImage.open(file, resolution, numLayers);
+            openImages.put(key, image);
+            if (openImages.size() > MAX_OPEN_IMAGES) {
+                final Iterator<Jp2Image> iterator = openImages.values().iterator();
+                iterator.next().dispose();
+                iterator.remove();
+            }
+        }
+        return image;
+    }
+
+    private void close(File file) {
+        final String prefix = file.getPath() + "#";
+        final Iterator<Map.Entry<String, Jp2Image>> iterator = openImages.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Jp2Image> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                entry.getValue().dispose();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes a PGX file through a temporary file, readers only ever see complete PGX files.
+     * The file is written through its channel and not mapped: a mapping is only released when it is
+     * garbage-collected, and a mapped file can't be renamed on Windows.
+     *
+     * @param data The pixel data, in native byte order, as the decoder writes it.
+     */
+    static void writePgxFile(File pgxFile, int width, int height, ByteBuffer data) throws IOException {
+        final boolean littleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+        final byte[] header = String.format("PG %s + 16 %d %d\n", littleEndian ? "LM" : "ML", width, height).getBytes("US-ASCII");
+        final File partFile = File.createTempFile(pgxFile.getName() + "_", ".part", pgxFile.getParentFile());
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+            try {
+                final FileChannel channel = raf.getChannel();
+                final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+                while (headerBuffer.hasRemaining()) {
+                    channel.write(headerBuffer);
+                }
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } finally {
+                raf.close();
+            }
+            if (!partFile.renameTo(pgxFile)) {
+                pgxFile.delete();
+                if (!partFile.renameTo(pgxFile)) {
+                    throw new IOException("Failed to rename " + partFile.getName() + " to " + pgxFile.getName());
+                }
+            }
+        } finally {
+            partFile.delete();
+        }
+    }
+}
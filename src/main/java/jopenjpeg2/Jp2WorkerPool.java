@@ -0,0 +1,100 @@
+package jopenjpeg2;
+
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A pool of long-lived decoder worker processes, used instead of starting one {@code opj_decompress}
+ * process per tile. Workers keep their decoders open, so the process start and the JP2 header parsing
+ * are paid once per worker and not once per tile, while crashes of the native code are still isolated.
+ * <p/>
+ * Workers are off by default, {@code jopenjpeg2.workers.enabled=true} turns them on. The pool size is
+ * given by {@code jopenjpeg2.workers.poolSize}. If a worker can't be started, e.g. because the native
+ * library is missing, the pool becomes unavailable and callers fall back to {@code opj_decompress}.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2WorkerPool {
+
+    public static final Jp2WorkerPool INSTANCE = new Jp2WorkerPool(Boolean.getBoolean("jopenjpeg2.workers.enabled"),
+                                                                   Integer.getInteger("jopenjpeg2.workers.poolSize",
+                                                                                      Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+
+    private final Jp2HandlePool<Jp2Worker> pool;
+    private volatile boolean available;
+
+    Jp2WorkerPool(boolean enabled, int poolSize) {
+        this.available = enabled;
+        this.pool = new Jp2HandlePool<Jp2Worker>(Math.max(1, poolSize)) {
+            @Override
+            protected Jp2Worker createHandle() throws IOException {
+                try {
+                    return Jp2Worker.start();
+                } catch (IOException e) {
+                    available = false;
+                    BeamLogManager.getSystemLogger().warning("Decoder workers not available: " + e.getMessage());
+                    throw e;
+                }
+            }
+
+            @Override
+            protected void disposeHandle(Jp2Worker worker) {
+                worker.destroy();
+            }
+        };
+    }
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Decodes a tile into a PGX file. The file gets the full tile size at the given resolution,
+     * edge tiles are padded with zeros.
+     *
+     * @param numLayers The number of quality layers to decode, zero for all.
+     */
+    public void decodeTile(File file, int resolution, int numLayers, int componentIndex, int tileX, int tileY, File pgxFile) throws IOException {
+        final Jp2Worker worker = acquire();
+        try {
+            worker.decodeTile(file, resolution, numLayers, componentIndex, tileX, tileY, pgxFile);
+        } finally {
+            release(worker);
+        }
+    }
+
+    /**
+     * Decodes a region given at the resolution level into a PGX file.
+     */
+    public void decodeRegion(File file, int resolution, int numLayers, int componentIndex, int x, int y, int width, int height, File pgxFile) throws IOException {
+        final Jp2Worker worker = acquire();
+        try {
+            worker.decodeRegion(file, resolution, numLayers, componentIndex, x, y, width, height, pgxFile);
+        } finally {
+            release(worker);
+        }
+    }
+
+    public void dispose() {
+        available = false;
+        pool.dispose();
+    }
+
+    private Jp2Worker acquire() throws IOException {
+        if (!available) {
+            throw new IOException("Decoder workers not available");
+        }
+        return pool.acquire();
+    }
+
+    private void release(Jp2Worker worker) {
+        if (worker.isBroken()) {
+            // The process crashed, the next request gets a fresh one
+            pool.discard(worker);
+        } else {
+            pool.release(worker);
+        }
+    }
+}
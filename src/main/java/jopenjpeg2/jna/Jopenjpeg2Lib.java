@@ -2,23 +2,62 @@ package jopenjpeg2.jna;
 
 import com.sun.jna.*;
 
+import java.nio.ByteBuffer;
+
 /**
  * JNA Wrapper for library <b>jopenjpeg2</b><br>
  * This file was autogenerated by <a href="http://jnaerator.googlecode.com/">JNAerator</a>,<br>
  * a tool written by <a href="http://ochafik.com/">Olivier Chafik</a> that <a href="http://code.google.com/p/jnaerator/wiki/CreditsAndLicense">uses a few opensource projects.</a>.<br>
  * For help, please visit <a href="http://nativelibs4java.googlecode.com/">NativeLibs4Java</a> , <a href="http://rococoa.dev.java.net/">Rococoa</a>, or <a href="http://jna.dev.java.net/">JNA</a>.
+ * <p/>
+ * Loads the library as soon as the interface is used. {@link Jopenjpeg2Native} has less overhead per call.
  */
 public interface Jopenjpeg2Lib extends Library {
     public static final String JNA_LIBRARY_NAME = "jopenjpeg2";
 //    public static final NativeLibrary JNA_NATIVE_LIB = NativeLibrary.getInstance(Jopenjpeg2Library.JNA_LIBRARY_NAME);
     public static final Jopenjpeg2Lib INSTANCE = (Jopenjpeg2Lib) Native.loadLibrary(Jopenjpeg2Lib.JNA_LIBRARY_NAME, Jopenjpeg2Lib.class);
 
+    /**
+     * Decodes a region of a file. {@code x0} and {@code y0} are on the full resolution grid, {@code w} and {@code h}
+     * are pixels at the given resolution level.
+     */
     boolean jopj_read_img_region_data(String filepath, int resolution, int comp_index, int x0, int y0, int w, int h, short[] tile_data);
 
+    /**
+     * Decodes a region of an opened image. The region is given in pixels of the image's resolution level.
+     * Only the main header is re-read if the codec cannot reuse its state, the file stays open.
+     */
+    boolean jopj_read_img_region(jopj_Img img, int comp_index, int x0, int y0, int w, int h, short[] region_data);
+
     jopj_Img jopj_open_img(String filepath, int resolution);
 
+    /**
+     * Same as above, but only the first {@code num_layers} quality layers are decoded, which is faster
+     * at the cost of fidelity. Zero decodes all layers.
+     */
+    jopj_Img jopj_open_img_layers(String filepath, int resolution, int num_layers);
+
+    /**
+     * Same as above, and tiles are decoded on {@code num_threads} threads if the OpenJPEG library
+     * supports it (2.2 or later), otherwise on the calling thread.
+     */
+    jopj_Img jopj_open_img_ex(String filepath, int resolution, int num_layers, int num_threads);
+
     boolean jopj_read_img_tile_data(jopj_Img img, int comp_index, int tile_index, short[] tile_data);
 
+    /**
+     * Same as above, but decodes directly into a direct buffer, no array is copied.
+     */
+    boolean jopj_read_img_tile_data(jopj_Img img, int comp_index, int tile_index, ByteBuffer tile_data);
+
+    /**
+     * Decodes a tile from the given file segments only: main header, the tile's tile-parts and EOC
+     * (negative offset), as provided by a tile-part index.
+     */
+    boolean jopj_read_img_tile_data_indexed(jopj_Img img, int comp_index, int tile_index, int num_segments, long[] offsets, long[] lengths, short[] tile_data);
+
+    boolean jopj_read_img_tile_data_indexed(jopj_Img img, int comp_index, int tile_index, int num_segments, long[] offsets, long[] lengths, ByteBuffer tile_data);
+
     void jopj_dispose_img(jopj_Img img);
 
     jopj_ImgInfo jopj_get_img_info(jopj_Img img);
@@ -0,0 +1,148 @@
+package jopenjpeg2.jna;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Direct-mapped binding of library <b>jopenjpeg2</b>, the same functions as {@link Jopenjpeg2Lib}.
+ * Calls go straight to the native functions, without the reflective proxy of interface mapping,
+ * which matters for many small tile and region requests.
+ * <p/>
+ * The library is loaded when this class is first used. If it can't be loaded, the class still loads,
+ * {@link #isAvailable()} returns {@code false} and calls throw an {@link UnsatisfiedLinkError}.
+ * <p/>
+ * Direct mapping fails for a whole class if a single function is missing, so the functions added after
+ * the first release of the library are registered one group at a time. An older build of the library
+ * still provides the base functions, callers check {@link #isRegionAvailable()},
+ * {@link #isIndexedTileAvailable()}, {@link #isLayersAvailable()} and {@link #isThreadsAvailable()}.
+ *
+ * @author Norman Fomferra
+ */
+public final class Jopenjpeg2Native {
+
+    private static final Throwable LOAD_ERROR = register(Jopenjpeg2Native.class);
+
+    private Jopenjpeg2Native() {
+    }
+
+    public static boolean isAvailable() {
+        return LOAD_ERROR == null;
+    }
+
+    /**
+     * @return {@code true} if {@link #jopj_read_img_region} is available.
+     */
+    public static boolean isRegionAvailable() {
+        return isAvailable() && Region.LOAD_ERROR == null;
+    }
+
+    /**
+     * @return {@code true} if {@code jopj_read_img_tile_data_indexed} is available.
+     */
+    public static boolean isIndexedTileAvailable() {
+        return isAvailable() && IndexedTile.LOAD_ERROR == null;
+    }
+
+    /**
+     * @return {@code true} if {@link #jopj_open_img_layers} is available.
+     */
+    public static boolean isLayersAvailable() {
+        return isAvailable() && Layers.LOAD_ERROR == null;
+    }
+
+    /**
+     * @return {@code true} if {@link #jopj_open_img_ex} is available.
+     */
+    public static boolean isThreadsAvailable() {
+        return isAvailable() && Threads.LOAD_ERROR == null;
+    }
+
+    /**
+     * @throws UnsatisfiedLinkError If the library could not be loaded, with the original cause.
+     */
+    public static void checkAvailable() {
+        if (LOAD_ERROR != null) {
+            final UnsatisfiedLinkError error = new UnsatisfiedLinkError("Library " + Jopenjpeg2Lib.JNA_LIBRARY_NAME + " not available: " + LOAD_ERROR.getMessage());
+            error.initCause(LOAD_ERROR);
+            throw error;
+        }
+    }
+
+    public static native boolean jopj_read_img_region_data(String filepath, int resolution, int comp_index, int x0, int y0, int w, int h, short[] tile_data);
+
+    public static native jopj_Img jopj_open_img(String filepath, int resolution);
+
+    public static native boolean jopj_read_img_tile_data(jopj_Img img, int comp_index, int tile_index, short[] tile_data);
+
+    public static native boolean jopj_read_img_tile_data(jopj_Img img, int comp_index, int tile_index, ByteBuffer tile_data);
+
+    public static native void jopj_dispose_img(jopj_Img img);
+
+    public static native jopj_ImgInfo jopj_get_img_info(jopj_Img img);
+
+    public static native void jopj_dispose_img_info(jopj_ImgInfo img_info);
+
+    public static boolean jopj_read_img_region(jopj_Img img, int comp_index, int x0, int y0, int w, int h, short[] region_data) {
+        return Region.jopj_read_img_region(img, comp_index, x0, y0, w, h, region_data);
+    }
+
+    public static jopj_Img jopj_open_img_layers(String filepath, int resolution, int num_layers) {
+        return Layers.jopj_open_img_layers(filepath, resolution, num_layers);
+    }
+
+    public static jopj_Img jopj_open_img_ex(String filepath, int resolution, int num_layers, int num_threads) {
+        return Threads.jopj_open_img_ex(filepath, resolution, num_layers, num_threads);
+    }
+
+    public static boolean jopj_read_img_tile_data_indexed(jopj_Img img, int comp_index, int tile_index, int num_segments, long[] offsets, long[] lengths, short[] tile_data) {
+        return IndexedTile.jopj_read_img_tile_data_indexed(img, comp_index, tile_index, num_segments, offsets, lengths, tile_data);
+    }
+
+    public static boolean jopj_read_img_tile_data_indexed(jopj_Img img, int comp_index, int tile_index, int num_segments, long[] offsets, long[] lengths, ByteBuffer tile_data) {
+        return IndexedTile.jopj_read_img_tile_data_indexed(img, comp_index, tile_index, num_segments, offsets, lengths, tile_data);
+    }
+
+    /**
+     * @return The error, {@code null} if all native methods of the class have been bound.
+     */
+    private static Throwable register(Class<?> nativeClass) {
+        try {
+            Native.register(nativeClass, NativeLibrary.getInstance(Jopenjpeg2Lib.JNA_LIBRARY_NAME));
+            return null;
+        } catch (UnsatisfiedLinkError e) {
+            // Library or function missing
+            return e;
+        } catch (NoClassDefFoundError e) {
+            // JNA not on the classpath
+            return e;
+        }
+    }
+
+    private static final class Region {
+        static final Throwable LOAD_ERROR = register(Region.class);
+
+        static native boolean jopj_read_img_region(jopj_Img img, int comp_index, int x0, int y0, int w, int h, short[] region_data);
+    }
+
+    private static final class IndexedTile {
+        static final Throwable LOAD_ERROR = register(IndexedTile.class);
+
+        static native boolean jopj_read_img_tile_data_indexed(jopj_Img img, int comp_index, int tile_index, int num_segments, long[] offsets, long[] lengths, short[] tile_data);
+
+        static native boolean jopj_read_img_tile_data_indexed(jopj_Img img, int comp_index, int tile_index, int num_segments, long[] offsets, long[] lengths, ByteBuffer tile_data);
+    }
+
+    private static final class Layers {
+        static final Throwable LOAD_ERROR = register(Layers.class);
+
+        static native jopj_Img jopj_open_img_layers(String filepath, int resolution, int num_layers);
+    }
+
+    private static final class Threads {
+        static final Throwable LOAD_ERROR = register(Threads.class);
+
+        static native jopj_Img jopj_open_img_ex(String filepath, int resolution, int num_layers, int num_threads);
+    }
+}
@@ -0,0 +1,265 @@
+package org.esa.beam.dataio.sentinel2;
+
+import com.bc.ceres.glevel.MultiLevelModel;
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.SingleBandedOpImage;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+
+/**
+ * Sun or viewing angles of every pixel, interpolated bilinearly from the coarse angle grid of a tile.
+ * Only the pixels of requested tiles are computed, at the resolution of the level.
+ *
+ * @author Norman Fomferra
+ */
+class AnglesOpImage extends SingleBandedOpImage {
+
+    private final Grid grid;
+
+    /**
+     * Angle grid nodes, row by row, without gaps. Node (i, j) lies at the upper left corner of pixel
+     * ({@code i * step}, {@code j * step}) of the full resolution image.
+     */
+    static final class Grid {
+        final float[] values;
+        final int width;
+        final int height;
+        final double stepX;
+        final double stepY;
+        final boolean azimuth;
+
+        Grid(float[] values, int width, int height, double stepX, double stepY, boolean azimuth) {
+            this.values = values;
+            this.width = width;
+            this.height = height;
+            this.stepX = stepX;
+            this.stepY = stepY;
+            this.azimuth = azimuth;
+        }
+
+        /**
+         * @param pixelSize Size of a full resolution pixel, unit: m
+         * @return The sun angles, or {@code null} if the grid is empty.
+         */
+        static Grid createSunGrid(Header.AnglesGrid anglesGrid, boolean azimuth, double pixelSize) {
+            return merge(new Header.AnglesGrid[]{anglesGrid}, azimuth, pixelSize);
+        }
+
+        /**
+         * Merges the viewing angle grids of all bands and detectors. The grid of a detector only has
+         * values within its swath; where detectors overlap, their angles are averaged.
+         *
+         * @param pixelSize Size of a full resolution pixel, unit: m
+         * @return The mean viewing angles, or {@code null} if all grids are empty.
+         */
+        static Grid createViewingGrid(Header.AnglesGrid[] anglesGrids, boolean azimuth, double pixelSize) {
+            return merge(anglesGrids, azimuth, pixelSize);
+        }
+
+        /**
+         * @return {@code true} if any of the grids has nodes. Only looks at the packed grids, without decoding them.
+         */
+        static boolean hasNodes(Header.AnglesGrid[] anglesGrids, boolean azimuth) {
+            for (Header.AnglesGrid anglesGrid : anglesGrids) {
+                if (!(azimuth ? anglesGrid.azimuth : anglesGrid.zenith).isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return A grid without valid nodes, giving NaN for every pixel.
+         */
+        static Grid createInvalid(boolean azimuth) {
+            return new Grid(new float[]{Float.NaN}, 1, 1, 1.0, 1.0, azimuth);
+        }
+
+        /**
+         * Merges grids as {@link #createViewingGrid}, a single grid only gets its gaps filled as {@link #createSunGrid}.
+         */
+        static Grid merge(Header.AnglesGrid[] anglesGrids, boolean azimuth, double pixelSize) {
+            Header.AnglesGrid first = null;
+            int width = 0;
+            int height = 0;
+            for (Header.AnglesGrid anglesGrid : anglesGrids) {
+                final Header.PackedGrid packedGrid = azimuth ? anglesGrid.azimuth : anglesGrid.zenith;
+                if (packedGrid.getHeight() > 0 && packedGrid.getWidth() > 0) {
+                    if (first == null) {
+                        first = anglesGrid;
+                    }
+                    width = Math.max(width, packedGrid.getWidth());
+                    height = Math.max(height, packedGrid.getHeight());
+                }
+            }
+            if (first == null) {
+                return null;
+            }
+
+            // Averages as unit vectors for azimuths, which wrap around at 360°
+            final double[] sums = new double[width * height];
+            final double[] sums2 = new double[width * height];
+            final int[] counts = new int[width * height];
+            for (Header.AnglesGrid anglesGrid : anglesGrids) {
+                final Header.PackedGrid packedGrid = azimuth ? anglesGrid.azimuth : anglesGrid.zenith;
+                for (int j = 0; j < packedGrid.getHeight(); j++) {
+                    for (int i = 0; i < packedGrid.getWidth(); i++) {
+                        final float value = packedGrid.getValue(i, j);
+                        if (!Float.isNaN(value)) {
+                            final int k = j * width + i;
+                            if (azimuth) {
+                                sums[k] += Math.sin(Math.toRadians(value));
+                                sums2[k] += Math.cos(Math.toRadians(value));
+                            } else {
+                                sums[k] += value;
+                            }
+                            counts[k]++;
+                        }
+                    }
+                }
+            }
+            final float[] values = new float[width * height];
+            for (int k = 0; k < values.length; k++) {
+                values[k] = counts[k] == 0 ? Float.NaN : azimuth ? toAzimuth(sums[k], sums2[k]) : (float) (sums[k] / counts[k]);
+            }
+            if (!fillGaps(values, width, height, azimuth)) {
+                return null;
+            }
+            return new Grid(values, width, height, first.colStep / pixelSize, first.rowStep / pixelSize, azimuth);
+        }
+
+        /**
+         * Replaces NaN nodes by the mean of their valid neighbours, growing inwards from the valid nodes
+         * until all nodes are filled.
+         *
+         * @return {@code false} if there is no valid node at all.
+         */
+        static boolean fillGaps(float[] values, int width, int height, boolean azimuth) {
+            final float[] filled = new float[values.length];
+            boolean anyGap = true;
+            while (anyGap) {
+                anyGap = false;
+                boolean anyFilled = false;
+                System.arraycopy(values, 0, filled, 0, values.length);
+                for (int j = 0; j < height; j++) {
+                    for (int i = 0; i < width; i++) {
+                        if (!Float.isNaN(values[j * width + i])) {
+                            continue;
+                        }
+                        double sum = 0.0;
+                        double sum2 = 0.0;
+                        int count = 0;
+                        for (int nj = Math.max(0, j - 1); nj <= Math.min(height - 1, j + 1); nj++) {
+                            for (int ni = Math.max(0, i - 1); ni <= Math.min(width - 1, i + 1); ni++) {
+                                final float value = values[nj * width + ni];
+                                if (!Float.isNaN(value)) {
+                                    if (azimuth) {
+                                        sum += Math.sin(Math.toRadians(value));
+                                        sum2 += Math.cos(Math.toRadians(value));
+                                    } else {
+                                        sum += value;
+                                    }
+                                    count++;
+                                }
+                            }
+                        }
+                        if (count > 0) {
+                            filled[j * width + i] = azimuth ? toAzimuth(sum, sum2) : (float) (sum / count);
+                            anyFilled = true;
+                        } else {
+                            anyGap = true;
+                        }
+                    }
+                }
+                System.arraycopy(filled, 0, values, 0, values.length);
+                if (anyGap && !anyFilled) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static float toAzimuth(double sinSum, double cosSum) {
+            final double degrees = Math.toDegrees(Math.atan2(sinSum, cosSum));
+            return (float) (degrees < 0.0 ? degrees + 360.0 : degrees);
+        }
+    }
+
+    AnglesOpImage(Grid grid, int width, int height, Dimension tileSize, MultiLevelModel imageModel, int level) {
+        super(DataBuffer.TYPE_FLOAT,
+              width,
+              height,
+              tileSize,
+              null,
+              ResolutionLevel.create(imageModel, level));
+        this.grid = grid;
+    }
+
+    @Override
+    protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+        final double scale = getScale();
+        final int gridWidth = grid.width;
+        final int gridHeight = grid.height;
+        final float[] nodes = grid.values;
+
+        final int[] i0s = new int[destRect.width];
+        final float[] wxs = new float[destRect.width];
+        for (int x = 0; x < destRect.width; x++) {
+            final double gx = clamp((destRect.x + x + 0.5) * scale / grid.stepX, gridWidth - 1);
+            i0s[x] = Math.min((int) gx, Math.max(gridWidth - 2, 0));
+            wxs[x] = (float) (gx - i0s[x]);
+        }
+
+        final float[] samples = new float[destRect.width * destRect.height];
+        for (int y = 0; y < destRect.height; y++) {
+            final double gy = clamp((destRect.y + y + 0.5) * scale / grid.stepY, gridHeight - 1);
+            final int j0 = Math.min((int) gy, Math.max(gridHeight - 2, 0));
+            final int j1 = Math.min(j0 + 1, gridHeight - 1);
+            final float wy = (float) (gy - j0);
+            final int offset = y * destRect.width;
+            for (int x = 0; x < destRect.width; x++) {
+                final int i0 = i0s[x];
+                final int i1 = Math.min(i0 + 1, gridWidth - 1);
+                final float wx = wxs[x];
+                final float v00 = nodes[j0 * gridWidth + i0];
+                float v10 = nodes[j0 * gridWidth + i1];
+                float v01 = nodes[j1 * gridWidth + i0];
+                float v11 = nodes[j1 * gridWidth + i1];
+                if (grid.azimuth) {
+                    v10 = unwrap(v10, v00);
+                    v01 = unwrap(v01, v00);
+                    v11 = unwrap(v11, v00);
+                }
+                final float v0 = v00 + wx * (v10 - v00);
+                final float v1 = v01 + wx * (v11 - v01);
+                float value = v0 + wy * (v1 - v0);
+                if (grid.azimuth) {
+                    value = value < 0.0F ? value + 360.0F : value >= 360.0F ? value - 360.0F : value;
+                }
+                samples[offset + x] = value;
+            }
+        }
+        dest.setSamples(destRect.x, destRect.y, destRect.width, destRect.height, 0, samples);
+    }
+
+    private static double clamp(double value, int max) {
+        return value < 0.0 ? 0.0 : value > max ? max : value;
+    }
+
+    /**
+     * @return The azimuth equivalent to {@code value} which is closest to {@code reference}.
+     */
+    private static float unwrap(float value, float reference) {
+        if (value - reference > 180.0F) {
+            return value - 360.0F;
+        }
+        if (reference - value > 180.0F) {
+            return value + 360.0F;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,155 @@
+package org.esa.beam.dataio.sentinel2;
+
+import java.nio.charset.Charset;
+
+/**
+ * Parses whitespace-separated decimal numbers directly from ASCII bytes, without creating strings.
+ * Results are within one ulp of {@link Float#parseFloat(String)}.
+ *
+ * @author Norman Fomferra
+ */
+final class FloatTokenizer {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_DIGITS = 18;
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+    }
+
+    private FloatTokenizer() {
+    }
+
+    static boolean isSpace(int c) {
+        return c <= ' ';
+    }
+
+    /**
+     * @return The number of whitespace-separated tokens in {@code buf[start, end)}.
+     */
+    static int countTokens(byte[] buf, int start, int end) {
+        int count = 0;
+        boolean inToken = false;
+        for (int i = start; i < end; i++) {
+            final boolean space = isSpace(buf[i]);
+            if (!space && !inToken) {
+                count++;
+            }
+            inToken = !space;
+        }
+        return count;
+    }
+
+    /**
+     * Parses the tokens in {@code buf[start, end)} into {@code values}, starting at {@code offset}.
+     * Tokens which do not fit into {@code values} are ignored.
+     *
+     * @return The number of parsed values.
+     * @throws NumberFormatException If a token is not a number.
+     */
+    static int parseFloats(byte[] buf, int start, int end, float[] values, int offset, int maxCount) {
+        int count = 0;
+        int i = start;
+        while (i < end && count < maxCount) {
+            while (i < end && isSpace(buf[i])) {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            final int tokenStart = i;
+            while (i < end && !isSpace(buf[i])) {
+                i++;
+            }
+            values[offset + count] = parseFloat(buf, tokenStart, i);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Parses a single token {@code buf[start, end)}.
+     *
+     * @throws NumberFormatException If the token is not a number.
+     */
+    static float parseFloat(byte[] buf, int start, int end) {
+        if (end - start == 3 && buf[start] == 'N' && buf[start + 1] == 'a' && buf[start + 2] == 'N') {
+            return Float.NaN;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int numDigits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        for (; i < end && isDigit(buf[i]); i++) {
+            anyDigit = true;
+            if (numDigits < MAX_DIGITS) {
+                mantissa = mantissa * 10 + (buf[i] - '0');
+                if (mantissa != 0) {
+                    numDigits++;
+                }
+            } else {
+                exponent++;
+            }
+        }
+        if (i < end && buf[i] == '.') {
+            for (i++; i < end && isDigit(buf[i]); i++) {
+                anyDigit = true;
+                if (numDigits < MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (buf[i] - '0');
+                    if (mantissa != 0) {
+                        numDigits++;
+                    }
+                    exponent--;
+                }
+            }
+        }
+        if (anyDigit && i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+                negativeExponent = buf[i] == '-';
+                i++;
+            }
+            final int exponentStart = i;
+            int explicitExponent = 0;
+            for (; i < end && isDigit(buf[i]); i++) {
+                if (explicitExponent < 10000) {
+                    explicitExponent = explicitExponent * 10 + (buf[i] - '0');
+                }
+            }
+            if (i == exponentStart) {
+                anyDigit = false;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (!anyDigit || i != end) {
+            // "Infinity", hexadecimal floats or garbage
+            return Float.parseFloat(new String(buf, start, end - start, US_ASCII));
+        }
+        double value = mantissa;
+        if (mantissa != 0) {
+            if (exponent < 0 && -exponent < POW10.length) {
+                value /= POW10[-exponent];
+            } else if (exponent > 0 && exponent < POW10.length) {
+                value *= POW10[exponent];
+            } else if (exponent != 0) {
+                value *= Math.pow(10.0, exponent);
+            }
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+}
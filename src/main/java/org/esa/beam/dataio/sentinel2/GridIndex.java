@@ -0,0 +1,127 @@
+package org.esa.beam.dataio.sentinel2;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spatial index of rectangles on a uniform grid of cells. Each rectangle is registered in every cell it
+ * overlaps, so a query only looks at the rectangles in the cells the query region overlaps.
+ * <p/>
+ * Works best if the cells are about the size of the rectangles, as for the tiles of a scene or the scenes
+ * of an archive. Cells are only allocated where rectangles are, so the indexed area is unbounded.
+ *
+ * @author Norman Fomferra
+ */
+public class GridIndex {
+
+    private final double cellWidth;
+    private final double cellHeight;
+    private final List<Rectangle2D> bounds;
+    private final Map<Long, int[]> cells;
+
+    public GridIndex(double cellWidth, double cellHeight) {
+        if (!(cellWidth > 0.0) || !(cellHeight > 0.0)) {
+            throw new IllegalArgumentException("cell size must be positive");
+        }
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.bounds = new ArrayList<Rectangle2D>();
+        this.cells = new HashMap<Long, int[]>();
+    }
+
+    /**
+     * @return The ID of the rectangle, which is the number of rectangles added before.
+     */
+    public synchronized int add(Rectangle2D rectangle) {
+        final int id = bounds.size();
+        bounds.add((Rectangle2D) rectangle.clone());
+        final int cx1 = getCellX(rectangle.getMaxX());
+        final int cy1 = getCellY(rectangle.getMaxY());
+        for (int cy = getCellY(rectangle.getMinY()); cy <= cy1; cy++) {
+            for (int cx = getCellX(rectangle.getMinX()); cx <= cx1; cx++) {
+                final Long key = getCellKey(cx, cy);
+                final int[] ids = cells.get(key);
+                if (ids == null) {
+                    cells.put(key, new int[]{id});
+                } else {
+                    final int[] newIds = Arrays.copyOf(ids, ids.length + 1);
+                    newIds[ids.length] = id;
+                    cells.put(key, newIds);
+                }
+            }
+        }
+        return id;
+    }
+
+    public synchronized int size() {
+        return bounds.size();
+    }
+
+    /**
+     * @return The IDs of all rectangles intersecting {@code region}, in ascending order.
+     */
+    public synchronized int[] query(Rectangle2D region) {
+        final int cx0 = getCellX(region.getMinX());
+        final int cy0 = getCellY(region.getMinY());
+        final int cx1 = getCellX(region.getMaxX());
+        final int cy1 = getCellY(region.getMaxY());
+        if (((long) cx1 - cx0 + 1) * ((long) cy1 - cy0 + 1) > cells.size()) {
+            // Region larger than the indexed area, cheaper to test all rectangles
+            return scan(region);
+        }
+        int[] result = new int[8];
+        int count = 0;
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                final int[] ids = cells.get(getCellKey(cx, cy));
+                if (ids == null) {
+                    continue;
+                }
+                for (int id : ids) {
+                    if (bounds.get(id).intersects(region)) {
+                        if (count == result.length) {
+                            result = Arrays.copyOf(result, 2 * count);
+                        }
+                        result[count++] = id;
+                    }
+                }
+            }
+        }
+        // Rectangles spanning several cells are found once per cell
+        Arrays.sort(result, 0, count);
+        int numUnique = 0;
+        for (int i = 0; i < count; i++) {
+            if (numUnique == 0 || result[i] != result[numUnique - 1]) {
+                result[numUnique++] = result[i];
+            }
+        }
+        return Arrays.copyOf(result, numUnique);
+    }
+
+    private int[] scan(Rectangle2D region) {
+        int[] result = new int[bounds.size()];
+        int count = 0;
+        for (int id = 0; id < bounds.size(); id++) {
+            if (bounds.get(id).intersects(region)) {
+                result[count++] = id;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private int getCellX(double x) {
+        return (int) Math.floor(x / cellWidth);
+    }
+
+    private int getCellY(double y) {
+        return (int) Math.floor(y / cellHeight);
+    }
+
+    private static Long getCellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+}
@@ -1,18 +1,27 @@
 package org.esa.beam.dataio.sentinel2;
 
 import org.esa.beam.util.StringUtils;
-import org.jdom.DataConversionException;
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.input.SAXBuilder;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
+ * The metadata of a product, read from its MTD XML file in a single streaming pass.
+ * <p/>
+ * Angle grids are kept in their packed text form and only decoded into float arrays when first accessed,
+ * because most clients only need the tile geometries.
+ *
  * @author Norman Fomferra
  */
 public class Header {
@@ -36,10 +45,102 @@ public class Header {
     }
 
     static class AnglesGrid {
+        /** Default distance of grid nodes, unit: m */
+        static final double DEFAULT_STEP = 5000.0;
+
         int bandId;
         int detectorId;
-        float[][] zenith;
-        float[][] azimuth;
+        /** Unit: m */
+        double colStep = DEFAULT_STEP;
+        /** Unit: m */
+        double rowStep = DEFAULT_STEP;
+        PackedGrid zenith = PackedGrid.EMPTY;
+        PackedGrid azimuth = PackedGrid.EMPTY;
+
+        float getZenith(int x, int y) {
+            return zenith.getValue(x, y);
+        }
+
+        float getAzimuth(int x, int y) {
+            return azimuth.getValue(x, y);
+        }
+    }
+
+    /**
+     * A grid of floats, stored as whitespace-separated ASCII numbers with one line per row until first accessed.
+     */
+    static final class PackedGrid {
+        static final PackedGrid EMPTY = new PackedGrid(new byte[0], 0);
+
+        private final int height;
+        private byte[] text;
+        private int width;
+        private float[] values;
+
+        PackedGrid(byte[] text, int height) {
+            this.text = text;
+            this.height = height;
+        }
+
+        int getWidth() {
+            getValues();
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return {@code true} if the grid has no nodes at all. Doesn't decode the grid.
+         */
+        synchronized boolean isEmpty() {
+            if (height == 0) {
+                return true;
+            }
+            return values != null ? width == 0 : FloatTokenizer.countTokens(text, 0, text.length) == 0;
+        }
+
+        float getValue(int x, int y) {
+            final float[] values = getValues();
+            return values[y * width + x];
+        }
+
+        /**
+         * @return The values, row by row. Rows shorter than the longest row are padded with NaN. Must not be modified.
+         * @throws NumberFormatException If the grid contains a value which is not a number.
+         */
+        synchronized float[] getValues() {
+            if (values == null) {
+                decode();
+            }
+            return values;
+        }
+
+        private void decode() {
+            int maxWidth = 0;
+            int rowStart = 0;
+            for (int i = 0; i < text.length; i++) {
+                if (text[i] == '\n') {
+                    maxWidth = Math.max(maxWidth, FloatTokenizer.countTokens(text, rowStart, i));
+                    rowStart = i + 1;
+                }
+            }
+            final float[] values = new float[maxWidth * height];
+            Arrays.fill(values, Float.NaN);
+            rowStart = 0;
+            int y = 0;
+            for (int i = 0; i < text.length && y < height; i++) {
+                if (text[i] == '\n') {
+                    FloatTokenizer.parseFloats(text, rowStart, i, values, y * maxWidth, maxWidth);
+                    rowStart = i + 1;
+                    y++;
+                }
+            }
+            this.width = maxWidth;
+            this.values = values;
+            this.text = null;
+        }
     }
 
     static class TileGeometry {
@@ -62,7 +163,7 @@ public class Header {
         double[] solarIrradiances;
     }
 
-     static class ProductCharacteristics {
+    static class ProductCharacteristics {
         String spacecraft;
         String datasetProductionDate;
         String processingLevel;
@@ -80,79 +181,40 @@ public class Header {
         double[] spectralResponseValues;
     }
 
-    private static ProductCharacteristics parseProductCharacteristics(Element rootElement) throws DataConversionException {
-        Element productCharacteristicsElem = getChild(rootElement, "Product_Characteristics");
-        ProductCharacteristics resampleData = new ProductCharacteristics();
-        resampleData.spacecraft = getElementValueString(productCharacteristicsElem, "SPACECRAFT");
-        resampleData.datasetProductionDate = getElementValueString(productCharacteristicsElem, "DATASET_PRODUCTION_DATE");
-        resampleData.processingLevel = getElementValueString(productCharacteristicsElem, "PROCESSING_LEVEL");
-        resampleData.bandInformations = parseBandInformation(productCharacteristicsElem);
-        return resampleData;
-    }
-
-    private static SpectralInformation[] parseBandInformation(Element resampleDataElem) throws DataConversionException {
-        List<Element> spectralInformationElemList = getChildren(resampleDataElem, "Spectral_Information", "Spectral_Information_List");
-        SpectralInformation[] spectralInformations = new SpectralInformation[spectralInformationElemList.size()];
-        for (int i = 0; i < spectralInformations.length; i++) {
-            SpectralInformation spectralInformation = new SpectralInformation();
-            Element element = spectralInformationElemList.get(i);
-            spectralInformation.bandId = Integer.parseInt(element.getAttributeValue("band_id"));
-            spectralInformation.physicalBand = element.getAttributeValue("physical_band");
-            spectralInformation.resolution = getElementValueInt(element, "RESOLUTION");
-            Element wavelenght = getChild(element, "Wavelenght");
-            spectralInformation.wavelenghtMin = getElementValueDouble(wavelenght, "MIN");
-            spectralInformation.wavelenghtMin = getElementValueDouble(wavelenght, "MAX");
-            spectralInformation.wavelenghtCentral = getElementValueDouble(wavelenght, "CENTRAL");
-            Element spectralResponse = getChild(element, "Spectral_Response");
-            spectralInformation.spectralResponseStep =  getElementValueDouble(spectralResponse, "STEP");
-            spectralInformation.spectralResponseValues = StringUtils.toDoubleArray(getElementValueString(spectralResponse, "VALUES"), " ");
-            spectralInformations[i] = spectralInformation;
-        }
-        return spectralInformations;
-    }
-
-    static Element NULL_ELEM = new Element("null") {
-    };
-
 
     private final List<Tile> tileList;
     private final ResampleData resampleData;
     private final ProductCharacteristics productCharacteristics;
 
-    private Header(Element rootElement) throws DataConversionException {
-        tileList = parseTileList(rootElement);
-        resampleData = parseResampleData(rootElement);
-        productCharacteristics = parseProductCharacteristics(rootElement);
-    }
-
-    private static ResampleData parseResampleData(Element rootElement) throws DataConversionException {
-        Element resampleDataElem = getChild(rootElement, "Resample_Data");
-        ResampleData resampleData = new ResampleData();
-        resampleData.quantificationValue = getElementValueInt(resampleDataElem, "QUANTIFICATION_VALUE");
-        resampleData.reflectanceConversion = parseReflectanceConversion(resampleDataElem);
-        return resampleData;
+    private Header(List<Tile> tileList, ResampleData resampleData, ProductCharacteristics productCharacteristics) {
+        this.tileList = tileList;
+        this.resampleData = resampleData;
+        this.productCharacteristics = productCharacteristics;
     }
 
-    private static ReflectanceConversion parseReflectanceConversion(Element resampleDataElem) throws DataConversionException {
-        Element reflectanceConversionElem = getChild(resampleDataElem, "Reflectance_Conversion");
-        ReflectanceConversion reflectanceConversion = new ReflectanceConversion();
-        reflectanceConversion.u = getElementValueDouble(reflectanceConversionElem, "U");
-
-        List<Element> solarIrradianceList = getChildren(reflectanceConversionElem, "SOLAR_IRRADIANCE", "Solar_Irradiance_List");
-        double[] solarIrradiances = new double[solarIrradianceList.size()];
-        for (int i = 0; i < solarIrradiances.length; i++) {
-            solarIrradiances[i] = getElementValueDouble(solarIrradianceList.get(i).getValue(), "SOLAR_IRRADIANCE");
+    public static Header parseHeader(File file) throws IOException {
+        final InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            final XMLStreamReader reader;
+            try {
+                reader = createXMLStreamReader(stream, null);
+            } catch (XMLStreamException e) {
+                throw new IOException("Failed to parse metadata file " + file + ": " + e.getMessage(), e);
+            }
+            return parseHeader(reader, file.getPath());
+        } finally {
+            stream.close();
         }
-        reflectanceConversion.solarIrradiances = solarIrradiances;
-        return reflectanceConversion;
-    }
-
-    public static Header parseHeader(File file) throws JDOMException, IOException {
-        return new Header(new SAXBuilder().build(file).getRootElement());
     }
 
-    public static Header parseHeader(Reader reader) throws JDOMException, IOException {
-        return new Header(new SAXBuilder().build(reader).getRootElement());
+    public static Header parseHeader(Reader reader) throws IOException {
+        final XMLStreamReader xmlReader;
+        try {
+            xmlReader = createXMLStreamReader(null, reader);
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to parse metadata: " + e.getMessage(), e);
+        }
+        return parseHeader(xmlReader, "metadata");
     }
 
     public List<Tile> getTileList() {
@@ -167,164 +229,294 @@ public class Header {
         return productCharacteristics;
     }
 
-    private static List<Tile> parseTileList(Element rootElement) throws DataConversionException {
-        List<Element> tileElements = getChildren(rootElement, "Tile", "Data_Strip", "Tiles_List");
-
-        List<Tile> tileList = new ArrayList<Tile>(tileElements.size());
-        for (Element tileElem : tileElements) {
-            Tile tile = new Tile(tileElem.getAttributeValue("id"));
-            tileList.add(tile);
-
-            Element descriptionElem = getChild(tileElem, "Tile_Description");
-            tile.horizontalCsName = getElementValueString(descriptionElem, "HORIZONTAL_CS_NAME");
-            tile.horizontalCsCode = getElementValueString(descriptionElem, "HORIZONTAL_CS_CODE");
-
-            List<Element> sizeElements = getChildren(descriptionElem, "Size");
-            for (Element sizeElement : sizeElements) {
-                TileGeometry tileGeometry;
-                if ("10".equals(sizeElement.getAttributeValue("resolution"))) {
-                    tileGeometry = tile.tileGeometry10M;
-                } else if ("20".equals(sizeElement.getAttributeValue("resolution"))) {
-                    tileGeometry = tile.tileGeometry20M;
-                } else if ("60".equals(sizeElement.getAttributeValue("resolution"))) {
-                    tileGeometry = tile.tileGeometry60M;
-                } else {
-                    tileGeometry = null;
-                }
-                if (tileGeometry != null) {
-                    tileGeometry.numRows = getElementValueInt(sizeElement, "NROWS");
-                    tileGeometry.numCols = getElementValueInt(sizeElement, "NCOLS");
-                }
-            }
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
 
-            List<Element> geoposElements = getChildren(descriptionElem, "Geoposition");
-            for (Element geoposElement : geoposElements) {
-                TileGeometry tileGeometry;
-                if ("10".equals(geoposElement.getAttributeValue("resolution"))) {
-                    tileGeometry = tile.tileGeometry10M;
-                } else if ("20".equals(geoposElement.getAttributeValue("resolution"))) {
-                    tileGeometry = tile.tileGeometry20M;
-                } else if ("60".equals(geoposElement.getAttributeValue("resolution"))) {
-                    tileGeometry = tile.tileGeometry60M;
-                } else {
-                    tileGeometry = null;
-                }
-                if (tileGeometry != null) {
-                    tileGeometry.upperLeftX = getElementValueDouble(geoposElement, "ULX");
-                    tileGeometry.upperLeftY = getElementValueDouble(geoposElement, "ULY");
-                    tileGeometry.xDim = getElementValueDouble(geoposElement, "XDIM");
-                    tileGeometry.yDim = getElementValueDouble(geoposElement, "YDIM");
-                }
-            }
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
 
-            Element saGridElem = getChild(tileElem, "Sun_Angles_Grid");
-            AnglesGrid saGrid = new AnglesGrid();
-            saGrid.bandId = -1;
-            saGrid.detectorId = -1;
-            saGrid.zenith = getAnglesMatrix(saGridElem, "Zenith");
-            saGrid.azimuth = getAnglesMatrix(saGridElem, "Azimuth");
-            tile.sunAnglesGrid = saGrid;
-
-            List<Element> vaGridElemList = getChildren(tileElem, "Viewing_Incidence_Angles_Grids");
-            tile.viewingIncidenceAnglesGrids = new AnglesGrid[vaGridElemList.size()];
-            for (int j = 0; j < vaGridElemList.size(); j++) {
-                Element vaGridElem = vaGridElemList.get(j);
-                AnglesGrid vaGrid = new AnglesGrid();
-                vaGrid.bandId = Integer.parseInt(vaGridElem.getAttributeValue("band_id"));
-                vaGrid.detectorId = Integer.parseInt(vaGridElem.getAttributeValue("detector_id"));
-                vaGrid.zenith = getAnglesMatrix(vaGridElem, "Zenith");
-                vaGrid.azimuth = getAnglesMatrix(vaGridElem, "Azimuth");
-                tile.viewingIncidenceAnglesGrids[j] = vaGrid;
-            }
+    private static XMLStreamReader createXMLStreamReader(InputStream stream, Reader reader) throws XMLStreamException {
+        synchronized (XML_INPUT_FACTORY) {
+            return stream != null ? XML_INPUT_FACTORY.createXMLStreamReader(stream) : XML_INPUT_FACTORY.createXMLStreamReader(reader);
         }
-        return tileList;
     }
 
-    void dumpMatrix(float[][] matrix) {
-        for (float[] floats : matrix) {
-            for (float aFloat : floats) {
-                System.out.print(Float.isNaN(aFloat) ? 'O' : '*');
+    private static Header parseHeader(XMLStreamReader reader, String sourceName) throws IOException {
+        final Parser parser = new Parser();
+        try {
+            try {
+                parser.parse(reader);
+            } finally {
+                reader.close();
             }
-            System.out.println();
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to parse " + sourceName + ": " + e.getMessage(), e);
         }
+        return new Header(parser.tileList, parser.resampleData, parser.productCharacteristics);
     }
 
+    /**
+     * Collects the values of interest while streaming through the document. Element paths are matched
+     * relative to the (arbitrarily named) root element.
+     */
+    private static final class Parser {
+        final List<Tile> tileList = new ArrayList<Tile>();
+        final ResampleData resampleData = new ResampleData();
+        final ProductCharacteristics productCharacteristics = new ProductCharacteristics();
+
+        private final List<String> path = new ArrayList<String>();
+        private final StringBuilder text = new StringBuilder();
+        private final List<SpectralInformation> spectralInformations = new ArrayList<SpectralInformation>();
+        private final List<Double> solarIrradiances = new ArrayList<Double>();
+        private final List<AnglesGrid> viewingIncidenceAnglesGrids = new ArrayList<AnglesGrid>();
+
+        private SpectralInformation spectralInformation;
+        private Tile tile;
+        private TileGeometry tileGeometry;
+        private AnglesGrid anglesGrid;
+
+        private byte[] packed = new byte[4096];
+        private int packedLength;
+        private int packedRows;
+        private boolean packing;
+
+        Parser() {
+            resampleData.reflectanceConversion = new ReflectanceConversion();
+        }
 
-    private static float[][] getAnglesMatrix(Element viagElem, String parentName) {
-        List<Element> values = getChildren(viagElem, "VALUES", parentName, "Values_List");
-        float[][] matrix = new float[values.size()][];
-        for (int i1 = 0; i1 < values.size(); i1++) {
-            Element value = values.get(i1);
-            float[] row = StringUtils.toFloatArray(value.getValue(), " ");
-            matrix[i1] = row;
+        void parse(XMLStreamReader reader) throws XMLStreamException, IOException {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        path.add(reader.getLocalName());
+                        text.setLength(0);
+                        startElement(reader);
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (packing) {
+                            pack(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        } else {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        endElement();
+                        path.remove(path.size() - 1);
+                        break;
+                }
+            }
+            resampleData.reflectanceConversion.solarIrradiances = new double[solarIrradiances.size()];
+            for (int i = 0; i < solarIrradiances.size(); i++) {
+                resampleData.reflectanceConversion.solarIrradiances[i] = solarIrradiances.get(i);
+            }
+            productCharacteristics.bandInformations = spectralInformations.toArray(new SpectralInformation[spectralInformations.size()]);
         }
-        return matrix;
-    }
 
+        private void startElement(XMLStreamReader reader) {
+            final int depth = path.size();
+            final String name = path.get(depth - 1);
+            if (isIn("Data_Strip")) {
+                if (depth == 4 && "Tile".equals(name) && "Tiles_List".equals(path.get(2))) {
+                    tile = new Tile(reader.getAttributeValue(null, "id"));
+                    tile.sunAnglesGrid = new AnglesGrid();
+                    tile.sunAnglesGrid.bandId = -1;
+                    tile.sunAnglesGrid.detectorId = -1;
+                    tileList.add(tile);
+                } else if (tile == null) {
+                    return;
+                } else if (depth == 6 && "Tile_Description".equals(path.get(4)) && ("Size".equals(name) || "Geoposition".equals(name))) {
+                    tileGeometry = getTileGeometry(tile, reader.getAttributeValue(null, "resolution"));
+                } else if (depth == 5 && "Sun_Angles_Grid".equals(name)) {
+                    anglesGrid = tile.sunAnglesGrid;
+                } else if (depth == 5 && "Viewing_Incidence_Angles_Grids".equals(name)) {
+                    anglesGrid = new AnglesGrid();
+                    anglesGrid.bandId = Integer.parseInt(reader.getAttributeValue(null, "band_id"));
+                    anglesGrid.detectorId = Integer.parseInt(reader.getAttributeValue(null, "detector_id"));
+                    viewingIncidenceAnglesGrids.add(anglesGrid);
+                } else if (depth == 8 && anglesGrid != null && "VALUES".equals(name) && "Values_List".equals(path.get(6))) {
+                    packing = true;
+                }
+            } else if (isIn("Product_Characteristics")) {
+                if (depth == 4 && "Spectral_Information".equals(name) && "Spectral_Information_List".equals(path.get(2))) {
+                    spectralInformation = new SpectralInformation();
+                    spectralInformation.bandId = Integer.parseInt(reader.getAttributeValue(null, "band_id"));
+                    spectralInformation.physicalBand = reader.getAttributeValue(null, "physical_band");
+                    spectralInformations.add(spectralInformation);
+                }
+            }
+        }
 
-    private static Element getChild(Element parent, String name) {
-        if (parent == null) {
-            return NULL_ELEM;
+        private void endElement() throws IOException {
+            final int depth = path.size();
+            final String name = path.get(depth - 1);
+            if (isIn("Data_Strip")) {
+                endDataStripElement(depth, name);
+            } else if (isIn("Product_Characteristics")) {
+                if (depth == 3) {
+                    if ("SPACECRAFT".equals(name)) {
+                        productCharacteristics.spacecraft = getString();
+                    } else if ("DATASET_PRODUCTION_DATE".equals(name)) {
+                        productCharacteristics.datasetProductionDate = getString();
+                    } else if ("PROCESSING_LEVEL".equals(name)) {
+                        productCharacteristics.processingLevel = getString();
+                    }
+                } else if (spectralInformation != null) {
+                    if (depth == 4) {
+                        spectralInformation = null;
+                    } else if (depth == 5 && "RESOLUTION".equals(name)) {
+                        spectralInformation.resolution = getInt(name);
+                    } else if (depth == 6 && "Wavelenght".equals(path.get(4))) {
+                        if ("MIN".equals(name)) {
+                            spectralInformation.wavelenghtMin = getDouble(name);
+                        } else if ("MAX".equals(name)) {
+                            spectralInformation.wavelenghtMax = getDouble(name);
+                        } else if ("CENTRAL".equals(name)) {
+                            spectralInformation.wavelenghtCentral = getDouble(name);
+                        }
+                    } else if (depth == 6 && "Spectral_Response".equals(path.get(4))) {
+                        if ("STEP".equals(name)) {
+                            spectralInformation.spectralResponseStep = getDouble(name);
+                        } else if ("VALUES".equals(name)) {
+                            spectralInformation.spectralResponseValues = StringUtils.toDoubleArray(getString(), " ");
+                        }
+                    }
+                }
+            } else if (isIn("Resample_Data")) {
+                if (depth == 3 && "QUANTIFICATION_VALUE".equals(name)) {
+                    resampleData.quantificationValue = getInt(name);
+                } else if (depth >= 4 && "Reflectance_Conversion".equals(path.get(2))) {
+                    if (depth == 4 && "U".equals(name)) {
+                        resampleData.reflectanceConversion.u = getDouble(name);
+                    } else if (depth == 5 && "SOLAR_IRRADIANCE".equals(name) && "Solar_Irradiance_List".equals(path.get(3))) {
+                        solarIrradiances.add(getDouble(name));
+                    }
+                }
+            }
         }
-        Element child = parent.getChild(name);
-        if (child == null) {
-            return NULL_ELEM;
+
+        private void endDataStripElement(int depth, String name) throws IOException {
+            if (tile == null) {
+                return;
+            }
+            if (depth == 4) {
+                tile.viewingIncidenceAnglesGrids = viewingIncidenceAnglesGrids.toArray(new AnglesGrid[viewingIncidenceAnglesGrids.size()]);
+                viewingIncidenceAnglesGrids.clear();
+                tile = null;
+            } else if (depth == 5) {
+                anglesGrid = null;
+            } else if (depth == 6 && "Tile_Description".equals(path.get(4))) {
+                if ("HORIZONTAL_CS_NAME".equals(name)) {
+                    tile.horizontalCsName = getString();
+                } else if ("HORIZONTAL_CS_CODE".equals(name)) {
+                    tile.horizontalCsCode = getString();
+                } else {
+                    tileGeometry = null;
+                }
+            } else if (depth == 7 && tileGeometry != null) {
+                if ("NROWS".equals(name)) {
+                    tileGeometry.numRows = getInt(name);
+                } else if ("NCOLS".equals(name)) {
+                    tileGeometry.numCols = getInt(name);
+                } else if ("ULX".equals(name)) {
+                    tileGeometry.upperLeftX = getDouble(name);
+                } else if ("ULY".equals(name)) {
+                    tileGeometry.upperLeftY = getDouble(name);
+                } else if ("XDIM".equals(name)) {
+                    tileGeometry.xDim = getDouble(name);
+                } else if ("YDIM".equals(name)) {
+                    tileGeometry.yDim = getDouble(name);
+                }
+            } else if (anglesGrid != null) {
+                if (depth == 8 && packing) {
+                    endPackedRow();
+                    packing = false;
+                } else if (depth == 7 && "COL_STEP".equals(name)) {
+                    anglesGrid.colStep = getDouble(name);
+                } else if (depth == 7 && "ROW_STEP".equals(name)) {
+                    anglesGrid.rowStep = getDouble(name);
+                } else if (depth == 6 && "Zenith".equals(name)) {
+                    anglesGrid.zenith = createPackedGrid();
+                } else if (depth == 6 && "Azimuth".equals(name)) {
+                    anglesGrid.azimuth = createPackedGrid();
+                }
+            }
         }
-        return child;
-    }
 
-    private static Element getChild(Element parent, String... path) {
-        Element child = parent;
-        if (child == null) {
-            return NULL_ELEM;
+        private boolean isIn(String section) {
+            return path.size() >= 2 && section.equals(path.get(1));
         }
-        for (String name : path) {
-            child = child.getChild(name);
-            if (child == null) {
-                return NULL_ELEM;
+
+        private static TileGeometry getTileGeometry(Tile tile, String resolution) {
+            if ("10".equals(resolution)) {
+                return tile.tileGeometry10M;
+            } else if ("20".equals(resolution)) {
+                return tile.tileGeometry20M;
+            } else if ("60".equals(resolution)) {
+                return tile.tileGeometry60M;
             }
+            return null;
         }
-        return child;
-    }
 
-    private static List<Element> getChildren(Element parent, String name) {
-        return (List<Element>) parent.getChildren(name);
-    }
-
-    public static List<Element> getChildren(Element parent, String name, String... path) {
-        Element child = getChild(parent, path);
-        return (List<Element>) child.getChildren(name);
-    }
+        private String getString() {
+            return text.toString().trim();
+        }
 
-    private static String getElementValueString(Element parent, String name) {
-        return getChild(parent, name).getValue().trim();
-    }
+        private double getDouble(String name) throws IOException {
+            try {
+                return Double.parseDouble(getString());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid value of element " + name + ", expected a double: '" + getString() + "'");
+            }
+        }
 
-    private static double getElementValueDouble(String elementValue, String name) throws DataConversionException {
-        try {
-            return Double.parseDouble(elementValue);
-        } catch (NumberFormatException e) {
-            throw new DataConversionException(name, "double");
+        private int getInt(String name) throws IOException {
+            try {
+                return Integer.parseInt(getString());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid value of element " + name + ", expected an integer: '" + getString() + "'");
+            }
         }
-    }
 
-    private static double getElementValueDouble(Element parent, String name) throws DataConversionException {
-        Element child = getChild(parent, name);
-        return getElementValueDouble(child.getValue().trim(), name);
-    }
+        /**
+         * Appends characters to the current row, collapsing whitespace to single spaces.
+         */
+        private void pack(char[] chars, int start, int length) {
+            ensurePackedCapacity(length);
+            for (int i = start; i < start + length; i++) {
+                final char c = chars[i];
+                if (c <= ' ') {
+                    if (packedLength > 0 && !FloatTokenizer.isSpace(packed[packedLength - 1])) {
+                        packed[packedLength++] = ' ';
+                    }
+                } else {
+                    packed[packedLength++] = (byte) (c < 128 ? c : '?');
+                }
+            }
+        }
 
+        private void endPackedRow() {
+            ensurePackedCapacity(1);
+            if (packedLength > 0 && packed[packedLength - 1] == ' ') {
+                packedLength--;
+            }
+            packed[packedLength++] = '\n';
+            packedRows++;
+        }
 
-    private static int getElementValueInt(String elementValue, String name) throws DataConversionException {
-        try {
-            return Integer.parseInt(elementValue);
-        } catch (NumberFormatException e) {
-            throw new DataConversionException(name, "double");
+        private PackedGrid createPackedGrid() {
+            final PackedGrid grid = new PackedGrid(Arrays.copyOf(packed, packedLength), packedRows);
+            packedLength = 0;
+            packedRows = 0;
+            return grid;
         }
-    }
 
-    private static int getElementValueInt(Element parent, String name) throws DataConversionException {
-        Element child = getChild(parent, name);
-        return getElementValueInt(child.getValue().trim(), name);
+        private void ensurePackedCapacity(int length) {
+            if (packedLength + length > packed.length) {
+                packed = Arrays.copyOf(packed, Math.max(2 * packed.length, packedLength + length));
+            }
+        }
     }
-
 }
@@ -0,0 +1,51 @@
+package org.esa.beam.dataio.sentinel2;
+
+import org.esa.beam.jai.ImageManager;
+
+import javax.media.jai.PointOpImage;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * Top of atmosphere reflectances computed from the digital counts of a band image, tile by tile.
+ * The tiles are aligned with the tiles of the counts image, so each tile reads exactly one tile
+ * of decoded counts. Counts of zero (no data) become NaN.
+ *
+ * @author Norman Fomferra
+ */
+class ReflectanceOpImage extends PointOpImage {
+
+    private final float scale;
+
+    /**
+     * @param countsImage         The digital counts.
+     * @param quantificationValue The count of a reflectance of one.
+     */
+    ReflectanceOpImage(RenderedImage countsImage, int quantificationValue) {
+        super(countsImage,
+              ImageManager.createSingleBandedImageLayout(DataBuffer.TYPE_FLOAT,
+                                                         countsImage.getWidth(),
+                                                         countsImage.getHeight(),
+                                                         countsImage.getTileWidth(),
+                                                         countsImage.getTileHeight()),
+              null,
+              true);
+        this.scale = 1.0F / quantificationValue;
+    }
+
+    @Override
+    protected void computeRect(Raster[] sources, WritableRaster dest, Rectangle destRect) {
+        final int numPixels = destRect.width * destRect.height;
+        final int[] counts = sources[0].getSamples(destRect.x, destRect.y, destRect.width, destRect.height, 0, new int[numPixels]);
+        final float[] reflectances = new float[numPixels];
+        final float scale = this.scale;
+        for (int i = 0; i < numPixels; i++) {
+            final int count = counts[i];
+            reflectances[i] = count == 0 ? Float.NaN : scale * count;
+        }
+        dest.setSamples(destRect.x, destRect.y, destRect.width, destRect.height, 0, reflectances);
+    }
+}
@@ -0,0 +1,93 @@
+package org.esa.beam.dataio.sentinel2;
+
+import com.bc.ceres.glevel.MultiLevelModel;
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.SingleBandedOpImage;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Upsamples an image of a coarser band to the 10 m grid by replicating each pixel {@code factor} times
+ * in x and y, e.g. by 2 for 20 m and by 6 for 60 m bands. Since all levels halve the resolution, the
+ * factor is the same on every level.
+ * <p/>
+ * Each tile reads only the source pixels it covers. Target pixels beyond the source image, which occur
+ * where the level sizes have been rounded differently, repeat the last source column or row.
+ *
+ * @author Norman Fomferra
+ */
+class ReplicateOpImage extends SingleBandedOpImage {
+
+    private final RenderedImage sourceImage;
+    private final int factor;
+
+    /**
+     * @param sourceImage The image of the coarser band at the given level.
+     * @param factor      The integer ratio of the source pixel size to the target pixel size.
+     * @param width       Width of the target image at level 0.
+     * @param height      Height of the target image at level 0.
+     */
+    ReplicateOpImage(RenderedImage sourceImage, int factor, int width, int height, Dimension tileSize, MultiLevelModel imageModel, int level) {
+        super(sourceImage.getSampleModel().getDataType(),
+              width,
+              height,
+              tileSize,
+              null,
+              ResolutionLevel.create(imageModel, level));
+        if (factor < 1) {
+            throw new IllegalArgumentException("factor must be positive");
+        }
+        this.sourceImage = sourceImage;
+        this.factor = factor;
+    }
+
+    @Override
+    protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+        final int sourceMinX = sourceImage.getMinX();
+        final int sourceMinY = sourceImage.getMinY();
+        final int sourceMaxX = sourceMinX + sourceImage.getWidth() - 1;
+        final int sourceMaxY = sourceMinY + sourceImage.getHeight() - 1;
+        final int sx0 = clamp(destRect.x / factor, sourceMinX, sourceMaxX);
+        final int sy0 = clamp(destRect.y / factor, sourceMinY, sourceMaxY);
+        final int sx1 = clamp((destRect.x + destRect.width - 1) / factor, sourceMinX, sourceMaxX);
+        final int sy1 = clamp((destRect.y + destRect.height - 1) / factor, sourceMinY, sourceMaxY);
+        final int sourceWidth = sx1 - sx0 + 1;
+        final int sourceHeight = sy1 - sy0 + 1;
+
+        final Raster sourceRaster = sourceImage.getData(new Rectangle(sx0, sy0, sourceWidth, sourceHeight));
+        final int[] sourceSamples = sourceRaster.getSamples(sx0, sy0, sourceWidth, sourceHeight, 0, new int[sourceWidth * sourceHeight]);
+
+        final int width = destRect.width;
+        final int[] destSamples = new int[width * destRect.height];
+        int lastSourceY = -1;
+        for (int j = 0; j < destRect.height; j++) {
+            final int sourceY = clamp((destRect.y + j) / factor, sourceMinY, sourceMaxY);
+            if (sourceY == lastSourceY) {
+                // Rows of the same source row are identical
+                System.arraycopy(destSamples, (j - 1) * width, destSamples, j * width, width);
+                continue;
+            }
+            final int sourceOffset = (sourceY - sy0) * sourceWidth;
+            int i = 0;
+            while (i < width) {
+                final int sourceX = clamp((destRect.x + i) / factor, sourceMinX, sourceMaxX);
+                // The run of target pixels of this source pixel, up to the end of the tile
+                final int runEnd = sourceX < sourceMaxX ? Math.min(width, (sourceX + 1) * factor - destRect.x) : width;
+                Arrays.fill(destSamples, j * width + i, j * width + runEnd, sourceSamples[sourceOffset + sourceX - sx0]);
+                i = runEnd;
+            }
+            lastSourceY = sourceY;
+        }
+        dest.setSamples(destRect.x, destRect.y, width, destRect.height, 0, destSamples);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+}
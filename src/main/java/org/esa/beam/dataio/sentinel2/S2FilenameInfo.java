@@ -58,6 +58,16 @@ public class S2FilenameInfo {
         }
     }
 
+    /**
+     * @return {@code true} if {@code other} names an image of the same datastrip, of any tile and band.
+     */
+    public boolean isSameDatastrip(S2FilenameInfo other) {
+        return procLevel.equals(other.procLevel)
+               && orbitNo.equals(other.orbitNo)
+               && start.equals(other.start)
+               && stop.equals(other.stop);
+    }
+
     public static S2FilenameInfo create(String fileName) {
         final Matcher matcher = PATTERN.matcher(fileName);
         final boolean matches = matcher.matches();
@@ -24,6 +24,8 @@ public class SceneDescription {
     private final Envelope2D sceneEnvelope;
     private final Rectangle sceneRectangle;
     private final Map<String, TileInfo> tileInfoMap;
+    private final GridIndex rectangleIndex;
+    private final GridIndex envelopeIndex;
 
 
     private static class TileInfo {
@@ -105,8 +107,13 @@ public class SceneDescription {
         this.sceneEnvelope = sceneEnvelope;
         this.sceneRectangle = sceneRectangle;
         this.tileInfoMap = new HashMap<String, TileInfo>();
+        // Cells of the size of a tile, IDs are the tile indexes
+        this.rectangleIndex = new GridIndex(TILE_SIZE_10M, TILE_SIZE_10M);
+        this.envelopeIndex = new GridIndex(TILE_RESOLUTION_10M, TILE_RESOLUTION_10M);
         for (TileInfo tileInfo : tileInfos) {
             tileInfoMap.put(tileInfo.id, tileInfo);
+            rectangleIndex.add(tileInfo.rectangle);
+            envelopeIndex.add(tileInfo.envelope);
         }
     }
 
@@ -139,6 +146,22 @@ public class SceneDescription {
         return tileInfos[tileIndex].rectangle;
     }
 
+    /**
+     * @param rectangle A rectangle in scene pixel coordinates.
+     * @return The indexes of the tiles intersecting the rectangle, in ascending order.
+     */
+    public int[] getTileIndexes(Rectangle rectangle) {
+        return rectangleIndex.query(rectangle);
+    }
+
+    /**
+     * @param envelope An envelope in the CRS of the scene.
+     * @return The indexes of the tiles intersecting the envelope, in ascending order.
+     */
+    public int[] getTileIndexes(Envelope2D envelope) {
+        return envelopeIndex.query(envelope);
+    }
+
     public int getTileGridWidth() {
         return (int) Math.round(sceneEnvelope.getWidth() / TILE_RESOLUTION_10M);
     }
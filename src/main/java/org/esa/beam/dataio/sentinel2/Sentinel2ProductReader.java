@@ -2,11 +2,16 @@ package org.esa.beam.dataio.sentinel2;
 
 import com.bc.ceres.core.ProgressMonitor;
 import com.bc.ceres.glevel.MultiLevelModel;
+import com.bc.ceres.glevel.MultiLevelSource;
 import com.bc.ceres.glevel.support.AbstractMultiLevelSource;
 import com.bc.ceres.glevel.support.DefaultMultiLevelImage;
 import com.bc.ceres.glevel.support.DefaultMultiLevelModel;
+import jopenjpeg2.Jp2BufferPool;
+import jopenjpeg2.Jp2Header;
 import jopenjpeg2.Jp2Image;
 import jopenjpeg2.Jp2ImageFactory;
+import jopenjpeg2.Jp2SingleFlight;
+import jopenjpeg2.Jp2TileCache;
 import org.esa.beam.framework.dataio.AbstractProductReader;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
@@ -16,6 +21,8 @@ import org.esa.beam.jai.SingleBandedOpImage;
 import org.esa.beam.util.logging.BeamLogManager;
 
 import javax.media.jai.PlanarImage;
+import javax.media.jai.PropertyChangeEventJAI;
+import javax.media.jai.TileCache;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.DataBuffer;
@@ -25,17 +32,47 @@ import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * @author Norman Fomferra
  */
 public class Sentinel2ProductReader extends AbstractProductReader {
 
+    /**
+     * The maximum JAI tile size. JAI tiles are cut from decoded JP2 tiles, which are much larger at high
+     * resolution levels, so that JAI's tile cache and small viewports don't deal with whole JP2 tiles.
+     */
+    private static final int DEFAULT_TILE_SIZE = Integer.getInteger("s2.reader.tileSize", 512);
+    private static final Jp2SingleFlight<Jp2TileCache.Key, Jp2TileCache.Tile> JP2_TILE_LOADS = new Jp2SingleFlight<Jp2TileCache.Key, Jp2TileCache.Tile>();
+
+    /**
+     * If greater than zero, tiles are first shown decoded from this number of quality layers only,
+     * and replaced by full quality tiles decoded in the background.
+     */
+    private static final int PREVIEW_LAYERS = Integer.getInteger("s2.reader.previewLayers", 0);
+    private static final ExecutorService REFINE_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "s2-tile-refiner");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
     S2WavebandInfo[] WAVEBAND_INFOS = new S2WavebandInfo[]{
             new S2WavebandInfo(0, "B1", 443, 20, S2Resolution.R60M),
             new S2WavebandInfo(1, "B2", 490, 65, S2Resolution.R10M),
@@ -57,7 +94,7 @@ public class Sentinel2ProductReader extends AbstractProductReader {
         super(readerPlugIn);
     }
 
-    Jp2ImageFactory jp2ImageFactory = Jp2ImageFactory.create(Jp2ImageFactory.Type.EXE);
+    Jp2ImageFactory jp2ImageFactory = Jp2ImageFactory.create(Jp2ImageFactory.Type.AUTO);
 
     int width;
     int height;
@@ -69,6 +106,7 @@ public class Sentinel2ProductReader extends AbstractProductReader {
         File imageFile;
         int bandIndex;
         Jp2Image.Layout imageLayout;
+        int numLayers;
         S2WavebandInfo wavebandInfo;
     }
 
@@ -93,22 +131,42 @@ public class Sentinel2ProductReader extends AbstractProductReader {
                 }
             });
             if (files != null) {
+                final List<File> bandFiles = new ArrayList<File>();
+                final List<Integer> bandFileIndexes = new ArrayList<Integer>();
+                File rejectedBandFile = null;
+                int rejectedBandIndex = -1;
                 for (File file : files) {
                     int bandIndex = fni0.getBand(file.getName());
                     if (bandIndex >= 0 && bandIndex < WAVEBAND_INFOS.length) {
-                        try {
-                            Jp2Image.Layout imageLayout = jp2ImageFactory.getLayout(file);
-                            BandInfo bandInfo = new BandInfo();
-                            bandInfo.imageFile = file;
-                            bandInfo.bandIndex = bandIndex;
-                            bandInfo.imageLayout = imageLayout;
-                            bandInfo.wavebandInfo = WAVEBAND_INFOS[bandIndex];
-                            fileMap.put(bandIndex, bandInfo);
-                        } catch (IOException e) {
-                            BeamLogManager.getSystemLogger().warning(e.getMessage());
+                        // Files of bands not in the subset are not even probed
+                        if (isNodeAccepted(getBandName(WAVEBAND_INFOS[bandIndex]))) {
+                            bandFiles.add(file);
+                            bandFileIndexes.add(bandIndex);
+                        } else if (rejectedBandFile == null) {
+                            rejectedBandFile = file;
+                            rejectedBandIndex = bandIndex;
                         }
                     }
                 }
+                if (bandFiles.isEmpty() && rejectedBandFile != null) {
+                    // No band selected, still one is needed for the product size
+                    bandFiles.add(rejectedBandFile);
+                    bandFileIndexes.add(rejectedBandIndex);
+                }
+                // All band headers are read at once, failures have been logged
+                final Jp2Header[] headers = Jp2Header.read(bandFiles.toArray(new File[bandFiles.size()]));
+                for (int i = 0; i < headers.length; i++) {
+                    if (headers[i] != null) {
+                        final int bandIndex = bandFileIndexes.get(i);
+                        BandInfo bandInfo = new BandInfo();
+                        bandInfo.imageFile = bandFiles.get(i);
+                        bandInfo.bandIndex = bandIndex;
+                        bandInfo.imageLayout = headers[i].getLayout();
+                        bandInfo.numLayers = headers[i].numLayers;
+                        bandInfo.wavebandInfo = WAVEBAND_INFOS[bandIndex];
+                        fileMap.put(bandIndex, bandInfo);
+                    }
+                }
             }
         }
 
@@ -128,7 +186,13 @@ public class Sentinel2ProductReader extends AbstractProductReader {
             numResolutions = Math.max(numResolutions, bandInfo.imageLayout.numResolutions);
         }
 
-        final Product product = new Product(dir != null ? dir.getName() : "S2L1C", "S2L1C", width, height);
+        final Rectangle subsetRegion = SubsetMultiLevelSource.getRegion(getSubsetDef(), width, height);
+        final int subsetLevel = SubsetMultiLevelSource.getLevelOffset(getSubsetDef(), numResolutions);
+        final boolean subset = subsetLevel > 0 || !subsetRegion.equals(new Rectangle(0, 0, width, height));
+
+        final Product product = new Product(dir != null ? dir.getName() : "S2L1C", "S2L1C",
+                                            subsetRegion.width >> subsetLevel,
+                                            subsetRegion.height >> subsetLevel);
 
         try {
             product.setStartTime(ProductData.UTC.parse(fni0.start, "yyyyMMddHHmmss"));
@@ -144,16 +208,25 @@ public class Sentinel2ProductReader extends AbstractProductReader {
 
         for (Integer bandIndex : bandIndexes) {
             final BandInfo bandInfo = fileMap.get(bandIndex);
-            final Band band = product.addBand("band_" + bandInfo.wavebandInfo.bandName, ProductData.TYPE_UINT16);
+            final String bandName = getBandName(bandInfo.wavebandInfo);
+            if (!isNodeAccepted(bandName)) {
+                continue;
+            }
+            final Band band = product.addBand(bandName, ProductData.TYPE_UINT16);
             band.setSpectralWavelength((float) bandInfo.wavebandInfo.centralWavelength);
             band.setSpectralBandwidth((float) bandInfo.wavebandInfo.bandWidth);
             band.setSpectralBandIndex(bandIndex);
-            band.setSourceImage(new DefaultMultiLevelImage(new Jp2MultiLevelSource(bandInfo)));
+            final MultiLevelSource source = new Jp2MultiLevelSource(bandInfo);
+            band.setSourceImage(new DefaultMultiLevelImage(subset ? new SubsetMultiLevelSource(source, subsetRegion, subsetLevel, DEFAULT_TILE_SIZE) : source));
         }
 
         return product;
     }
 
+    private static String getBandName(S2WavebandInfo wavebandInfo) {
+        return "band_" + wavebandInfo.bandName;
+    }
+
     private MultiLevelModel createImageModel() {
         return new DefaultMultiLevelModel(numResolutions, new AffineTransform(), width, height);
     }
@@ -164,7 +237,27 @@ public class Sentinel2ProductReader extends AbstractProductReader {
     }
 
     public Dimension getTileDim(int res) {
-        return new Dimension(tileWidth >> res, tileHeight >> res);
+        return new Dimension(getTileSize(tileWidth >> res), getTileSize(tileHeight >> res));
+    }
+
+    private static Dimension getJp2TileDim(BandInfo bandInfo, int res) {
+        return new Dimension(bandInfo.imageLayout.tileWidth >> res, bandInfo.imageLayout.tileHeight >> res);
+    }
+
+    private static Dimension getTileDim(BandInfo bandInfo, int res) {
+        final Dimension jp2TileDim = getJp2TileDim(bandInfo, res);
+        return new Dimension(getTileSize(jp2TileDim.width), getTileSize(jp2TileDim.height));
+    }
+
+    /**
+     * Halves the JP2 tile size down to {@link #DEFAULT_TILE_SIZE}, so that each JAI tile lies within one JP2 tile.
+     */
+    private static int getTileSize(int jp2TileSize) {
+        int tileSize = jp2TileSize;
+        while (tileSize > DEFAULT_TILE_SIZE && tileSize % 2 == 0) {
+            tileSize /= 2;
+        }
+        return tileSize;
     }
 
     private class Jp2MultiLevelSource extends AbstractMultiLevelSource {
@@ -182,47 +275,170 @@ public class Sentinel2ProductReader extends AbstractProductReader {
     }
 
     private class Jp2OpImage extends SingleBandedOpImage {
+        /**
+         * Fired with the tile's {@link Point} as new value when a preview tile has been replaced by
+         * its full quality version. The tile must be requested again then.
+         */
+        static final String REFINED_TILE_PROPERTY = "RefinedTile";
+
         private final BandInfo bandInfo;
+        private final int jp2TileWidth;
+        private final int jp2TileHeight;
+        private final Set<Integer> pendingRefinements;
         private Jp2Image jp2Image;
+        private Jp2Image previewJp2Image;
+        private volatile boolean disposed;
 
         public Jp2OpImage(BandInfo bandInfo, MultiLevelModel imageModel, int res) {
             super(DataBuffer.TYPE_USHORT,
                   Sentinel2ProductReader.this.width,
                   Sentinel2ProductReader.this.height,
-                  getTileDim(res),
+                  getTileDim(bandInfo, res),
                   null,
                   ResolutionLevel.create(imageModel, res));
             this.bandInfo = bandInfo;
+            final Dimension jp2TileDim = getJp2TileDim(bandInfo, res);
+            this.jp2TileWidth = jp2TileDim.width;
+            this.jp2TileHeight = jp2TileDim.height;
+            this.pendingRefinements = Collections.synchronizedSet(new HashSet<Integer>());
         }
 
         @Override
-        protected synchronized void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+        protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
             DataBufferUShort dbs = (DataBufferUShort) dest.getDataBuffer();
             final short[] tileData = dbs.getData();
 
-            if (jp2Image == null) {
+            // Not synchronized: the Jp2Image hands out one decoder per concurrent tile request
+            final int tileX = destRect.x / this.getTileWidth();
+            final int tileY = destRect.y / this.getTileHeight();
+            final int x = tileX * this.getTileWidth();
+            final int y = tileY * this.getTileHeight();
+            final int jp2TileX = x / jp2TileWidth;
+            final int jp2TileY = y / jp2TileHeight;
+            final int jp2X = x - jp2TileX * jp2TileWidth;
+            final int jp2Y = y - jp2TileY * jp2TileHeight;
+
+            // Decoded JP2 tiles outlive JAI's tile cache, all JAI tiles within are cut from the same decode
+            final int jp2TileIndex = bandInfo.imageLayout.numXTiles * jp2TileY + jp2TileX;
+            final Jp2TileCache.Key key = new Jp2TileCache.Key(bandInfo.imageFile, getLevel(), 0, jp2TileIndex);
+            final Jp2TileCache.Tile cachedTile = Jp2TileCache.INSTANCE.get(key);
+            if (cachedTile != null) {
+                cachedTile.copyTo(jp2X, jp2Y, getTileWidth(), getTileHeight(), tileData);
+                return;
+            }
+            if (PREVIEW_LAYERS > 0 && PREVIEW_LAYERS < bandInfo.numLayers) {
+                final Jp2TileCache.Key previewKey = new Jp2TileCache.Key(bandInfo.imageFile, getLevel(), PREVIEW_LAYERS, 0, jp2TileIndex);
                 try {
-                    jp2Image = jp2ImageFactory.open(bandInfo.imageFile, getLevel());
+                    loadJp2Tile(getPreviewJp2Image(), previewKey, jp2TileX, jp2TileY).copyTo(jp2X, jp2Y, getTileWidth(), getTileHeight(), tileData);
+                    scheduleRefinement(key, jp2TileX, jp2TileY);
+                    return;
                 } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    BeamLogManager.getSystemLogger().warning("Preview of tile (" + jp2TileX + "," + jp2TileY + ") failed: " + e.getMessage());
                 }
             }
-
-            final int tileX = destRect.x / this.getTileWidth();
-            final int tileY = destRect.y / this.getTileHeight();
             try {
-                jp2Image.readTileData(0, tileX, tileY, tileData);
+                loadJp2Tile(getJp2Image(), key, jp2TileX, jp2TileY).copyTo(jp2X, jp2Y, getTileWidth(), getTileHeight(), tileData);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
 
+        /**
+         * @return The decoded JP2 tile, from the {@link Jp2TileCache} if possible.
+         */
+        private Jp2TileCache.Tile loadJp2Tile(final Jp2Image image, final Jp2TileCache.Key key, final int jp2TileX, final int jp2TileY) throws IOException {
+            final Jp2TileCache.Tile cachedTile = Jp2TileCache.INSTANCE.get(key);
+            if (cachedTile != null) {
+                return cachedTile;
+            }
+            // The JAI tiles of a JP2 tile are usually requested at the same time, they all wait for one decode
+            return JP2_TILE_LOADS.execute(key, new Callable<Jp2TileCache.Tile>() {
+                @Override
+                public Jp2TileCache.Tile call() throws IOException {
+                    Jp2TileCache.Tile jp2Tile = Jp2TileCache.INSTANCE.get(key);
+                    if (jp2Tile != null) {
+                        return jp2Tile;
+                    }
+                    final short[] jp2TileData = new short[jp2TileWidth * jp2TileHeight];
+                    // Decode off-heap into a recycled buffer and bulk-copy, avoids JNA's array copies
+                    final ByteBuffer buffer = Jp2BufferPool.INSTANCE.acquire(2 * jp2TileData.length);
+                    try {
+                        image.readTileData(0, jp2TileX, jp2TileY, buffer);
+                        buffer.asShortBuffer().get(jp2TileData);
+                    } finally {
+                        Jp2BufferPool.INSTANCE.release(buffer);
+                    }
+                    jp2Tile = new Jp2TileCache.Tile(jp2TileWidth, jp2TileHeight, jp2TileData);
+                    Jp2TileCache.INSTANCE.put(key, jp2Tile);
+                    return jp2Tile;
+                }
+            });
+        }
+
+        /**
+         * Decodes the full quality JP2 tile in the background, then drops the preview tiles cut from it
+         * from JAI's tile cache.
+         */
+        private void scheduleRefinement(final Jp2TileCache.Key key, final int jp2TileX, final int jp2TileY) {
+            final int jp2TileIndex = bandInfo.imageLayout.numXTiles * jp2TileY + jp2TileX;
+            if (!pendingRefinements.add(jp2TileIndex)) {
+                return;
+            }
+            REFINE_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (disposed) {
+                            return;
+                        }
+                        loadJp2Tile(getJp2Image(), key, jp2TileX, jp2TileY);
+                        final int minTileX = jp2TileX * jp2TileWidth / getTileWidth();
+                        final int minTileY = jp2TileY * jp2TileHeight / getTileHeight();
+                        final int maxTileX = Math.min(minTileX + jp2TileWidth / getTileWidth(), getNumXTiles()) - 1;
+                        final int maxTileY = Math.min(minTileY + jp2TileHeight / getTileHeight(), getNumYTiles()) - 1;
+                        final TileCache tileCache = getTileCache();
+                        for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                            for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                                if (tileCache != null) {
+                                    tileCache.remove(Jp2OpImage.this, tileX, tileY);
+                                }
+                                eventManager.firePropertyChange(new PropertyChangeEventJAI(Jp2OpImage.this, REFINED_TILE_PROPERTY,
+                                                                                           null, new Point(tileX, tileY)));
+                            }
+                        }
+                    } catch (IOException e) {
+                        BeamLogManager.getSystemLogger().warning("Refinement of tile (" + jp2TileX + "," + jp2TileY + ") failed: " + e.getMessage());
+                    } finally {
+                        pendingRefinements.remove(jp2TileIndex);
+                    }
+                }
+            });
+        }
+
+        private synchronized Jp2Image getJp2Image() throws IOException {
+            if (jp2Image == null) {
+                jp2Image = jp2ImageFactory.open(bandInfo.imageFile, getLevel());
+            }
+            return jp2Image;
+        }
+
+        private synchronized Jp2Image getPreviewJp2Image() throws IOException {
+            if (previewJp2Image == null) {
+                previewJp2Image = jp2ImageFactory.open(bandInfo.imageFile, getLevel(), PREVIEW_LAYERS);
+            }
+            return previewJp2Image;
+        }
+
         @Override
         public synchronized void dispose() {
+            disposed = true;
             super.dispose();
             if (jp2Image != null) {
                 jp2Image.dispose();
             }
+            if (previewJp2Image != null) {
+                previewJp2Image.dispose();
+            }
         }
     }
 
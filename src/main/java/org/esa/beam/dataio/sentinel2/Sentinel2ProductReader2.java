@@ -2,9 +2,19 @@ package org.esa.beam.dataio.sentinel2;
 
 import com.bc.ceres.core.ProgressMonitor;
 import com.bc.ceres.glevel.MultiLevelModel;
+import com.bc.ceres.glevel.MultiLevelSource;
 import com.bc.ceres.glevel.support.AbstractMultiLevelSource;
 import com.bc.ceres.glevel.support.DefaultMultiLevelImage;
 import com.bc.ceres.glevel.support.DefaultMultiLevelModel;
+import jopenjpeg2.Jp2BufferPool;
+import jopenjpeg2.Jp2Cache;
+import jopenjpeg2.Jp2Header;
+import jopenjpeg2.Jp2Image;
+import jopenjpeg2.Jp2Prefetcher;
+import jopenjpeg2.Jp2SingleFlight;
+import jopenjpeg2.Jp2TileCache;
+import jopenjpeg2.Jp2TileIndex;
+import jopenjpeg2.Jp2WorkerPool;
 import org.esa.beam.framework.dataio.AbstractProductReader;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.CrsGeoCoding;
@@ -12,64 +22,68 @@ import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
 import org.esa.beam.jai.ResolutionLevel;
 import org.esa.beam.jai.SingleBandedOpImage;
-import org.esa.beam.util.SystemUtils;
 import org.esa.beam.util.io.FileUtils;
 import org.esa.beam.util.logging.BeamLogManager;
 import org.geotools.geometry.Envelope2D;
-import org.jdom.JDOMException;
 import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.TransformException;
 
-import javax.imageio.stream.FileImageInputStream;
-import javax.imageio.stream.ImageInputStream;
 import javax.media.jai.*;
-import javax.media.jai.operator.CropDescriptor;
-import javax.media.jai.operator.ScaleDescriptor;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.List;
 
 public class Sentinel2ProductReader2 extends AbstractProductReader {
     private static final int DEFAULT_TILE_SIZE = 512;
     private static final int NUM_SHORT_BYTES = 2;
+    private static final int MAX_PGX_HEADER_LENGTH = 256;
+    private static final Jp2SingleFlight<Jp2TileCache.Key, Jp2TileCache.Tile> JP2_TILE_LOADS = new Jp2SingleFlight<Jp2TileCache.Key, Jp2TileCache.Tile>();
+    private static final Jp2SingleFlight<File, Boolean> JP2_TILE_DECODES = new Jp2SingleFlight<File, Boolean>();
     private static final String EXE = System.getProperty("openjpeg2.decompressor.path", "opj_decompress");
-
-    private static class ImgLayout {
-        int width;
-        int height;
-        int tileWidth;
-        int tileHeight;
-        int numXTiles;
-        int numYTiles;
-        int numResolutions;
-
-        private ImgLayout(int width, int height, int tileWidth, int tileHeight, int numXTiles, int numYTiles, int numResolutions) {
-            this.width = width;
-            this.height = height;
-            this.tileWidth = tileWidth;
-            this.tileHeight = tileHeight;
-            this.numXTiles = numXTiles;
-            this.numYTiles = numYTiles;
-            this.numResolutions = numResolutions;
+    private static final boolean BUILD_PYRAMID = Boolean.getBoolean("s2.reader.buildPyramid");
+    /**
+     * If set, the product covers all tiles of the datastrip described in the metadata, not just the tile of the input file.
+     */
+    private static final boolean MOSAIC = Boolean.getBoolean("s2.reader.mosaic");
+    private static final ExecutorService PYRAMID_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "s2-pyramid-builder");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
         }
-    }
+    });
 
     private static class BandInfo {
         final File imageFile;
         final int bandIndex;
         final S2WavebandInfo wavebandInfo;
-        final ImgLayout imageLayout;
+        final Jp2Image.Layout imageLayout;
 
-        private BandInfo(File imageFile, int bandIndex, S2WavebandInfo wavebandInfo, ImgLayout imageLayout) {
+        private BandInfo(File imageFile, int bandIndex, S2WavebandInfo wavebandInfo, Jp2Image.Layout imageLayout) {
             this.imageFile = imageFile;
             this.bandIndex = bandIndex;
             this.wavebandInfo = wavebandInfo;
@@ -95,15 +109,15 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
     };
 
 
-    // these numbers should actually been read from the JP2 files,
-    // because they are likely to change if prod. spec. changes
-    //
-    private final static ImgLayout[] imageLayouts = new ImgLayout[]{
-            new ImgLayout(10690, 10690, 4096, 4096, 3, 3, 6),
-            new ImgLayout(5480, 5480, 4096, 4096, 2, 2, 6),
-            new ImgLayout(1826, 1826, 1826, 1826, 1, 1, 6),
-    };
-
+    private int width;
+    private int height;
+    private int numResolutions;
+    /**
+     * Region of the product subset on the full resolution grid and the level providing its subsampling.
+     */
+    private Rectangle subsetRegion;
+    private int subsetLevel;
+    private Future<?> pyramidJob;
 
     Sentinel2ProductReader2(Sentinel2ProductReaderPlugIn readerPlugIn) {
         super(readerPlugIn);
@@ -122,38 +136,77 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
         }
         Header metadataHeader = null;
         final Map<Integer, BandInfo> fileMap = new HashMap<Integer, BandInfo>();
+        // Band files of the other tiles of the datastrip, by tile ID and band index, for the mosaic
+        final Map<String, Map<Integer, File>> datastripFiles = new HashMap<String, Map<Integer, File>>();
         if (dir != null) {
-            File[] files = dir.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File dir, String name) {
-                    return name.endsWith(Sentinel2ProductReaderPlugIn.JP2_EXT);
-                }
-            });
+            // Listed once, band and metadata files are picked from the same listing
+            final File[] files = dir.listFiles();
+            final List<File> bandFiles = new ArrayList<File>();
+            final List<Integer> bandFileIndexes = new ArrayList<Integer>();
+            File rejectedBandFile = null;
+            int rejectedBandIndex = -1;
+            File metadataFile = null;
             if (files != null) {
                 for (File file : files) {
-                    int bandIndex = fni0.getBand(file.getName());
-                    if (bandIndex >= 0 && bandIndex < WAVEBAND_INFOS.length) {
-                        final S2WavebandInfo wavebandInfo = WAVEBAND_INFOS[bandIndex];
-                        BandInfo bandInfo = new BandInfo(file,
-                                                         bandIndex,
-                                                         wavebandInfo,
-                                                         imageLayouts[wavebandInfo.resolution.id]);
-                        fileMap.put(bandIndex, bandInfo);
+                    final String name = file.getName();
+                    if (name.endsWith(Sentinel2ProductReaderPlugIn.JP2_EXT)) {
+                        int bandIndex = fni0.getBand(name);
+                        if (bandIndex >= 0 && bandIndex < WAVEBAND_INFOS.length) {
+                            // Files of bands not in the subset are not even probed
+                            if (isBandAccepted(WAVEBAND_INFOS[bandIndex])) {
+                                bandFiles.add(file);
+                                bandFileIndexes.add(bandIndex);
+                            } else if (rejectedBandFile == null) {
+                                rejectedBandFile = file;
+                                rejectedBandIndex = bandIndex;
+                            }
+                        } else if (MOSAIC) {
+                            addDatastripFile(file, fni0, datastripFiles);
+                        }
+                    } else if (metadataFile == null && isMetadataFile(file)) {
+                        metadataFile = file;
                     }
                 }
             }
-            File[] metadataFiles = dir.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(File dir, String name) {
-                    return name.startsWith("MTD_") && name.endsWith(".xml");
+            // Products with a GRANULE/<id>/IMG_DATA layout keep the metadata and the other tiles elsewhere
+            final File productDir = getGranuleProductDir(dir);
+            if (productDir != null) {
+                if (metadataFile == null) {
+                    metadataFile = findMetadataFile(productDir);
                 }
-            });
-            if (metadataFiles != null && metadataFiles.length > 0) {
-                File metadataFile = metadataFiles[0];
+                if (MOSAIC) {
+                    for (File imageDir : getOtherGranuleImageDirs(dir)) {
+                        final File[] granuleFiles = imageDir.listFiles();
+                        if (granuleFiles != null) {
+                            for (File file : granuleFiles) {
+                                addDatastripFile(file, fni0, datastripFiles);
+                            }
+                        }
+                    }
+                }
+            }
+            if (bandFiles.isEmpty() && rejectedBandFile != null) {
+                // No band selected, still one is needed for the product size
+                bandFiles.add(rejectedBandFile);
+                bandFileIndexes.add(rejectedBandIndex);
+            }
+            // All band headers are read at once, failures have been logged
+            final Jp2Header[] headers = Jp2Header.read(bandFiles.toArray(new File[bandFiles.size()]));
+            for (int i = 0; i < headers.length; i++) {
+                if (headers[i] != null) {
+                    final int bandIndex = bandFileIndexes.get(i);
+                    BandInfo bandInfo = new BandInfo(bandFiles.get(i),
+                                                     bandIndex,
+                                                     WAVEBAND_INFOS[bandIndex],
+                                                     headers[i].getLayout());
+                    fileMap.put(bandIndex, bandInfo);
+                }
+            }
+            if (metadataFile != null) {
                 try {
                     metadataHeader = Header.parseHeader(metadataFile);
-                } catch (JDOMException e) {
-                    BeamLogManager.getSystemLogger().warning("Failed to parse metadata file: " + metadataFile);
+                } catch (IOException e) {
+                    BeamLogManager.getSystemLogger().warning("Failed to parse metadata file: " + e.getMessage());
                 }
             } else {
                 BeamLogManager.getSystemLogger().warning("No metadata file found");
@@ -167,11 +220,32 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
             throw new IOException("No valid bands found.");
         }
 
+        // The product uses the 10 m grid
+        for (Integer bandIndex : bandIndexes) {
+            final BandInfo bandInfo = fileMap.get(bandIndex);
+            final double scale = bandInfo.wavebandInfo.resolution.res / S2Resolution.R10M.res;
+            width = Math.max(width, (int) Math.round(scale * bandInfo.imageLayout.width));
+            height = Math.max(height, (int) Math.round(scale * bandInfo.imageLayout.height));
+            numResolutions = Math.max(numResolutions, bandInfo.imageLayout.numResolutions);
+        }
+
+        final SceneDescription sceneDescription = metadataHeader != null ? SceneDescription.create(metadataHeader) : null;
+        final boolean mosaic = MOSAIC && sceneDescription != null;
+        if (mosaic) {
+            width = sceneDescription.getSceneRectangle().width;
+            height = sceneDescription.getSceneRectangle().height;
+        }
+
+        subsetRegion = SubsetMultiLevelSource.getRegion(getSubsetDef(), width, height);
+        subsetLevel = SubsetMultiLevelSource.getLevelOffset(getSubsetDef(), numResolutions);
+        final int productWidth = subsetRegion.width >> subsetLevel;
+        final int productHeight = subsetRegion.height >> subsetLevel;
+
         String prodType = "S2_MSI_" + fni0.procLevel;
-        final Product product = new Product(String.format("%s_%s_%s", prodType, fni0.orbitNo, fni0.tileId),
+        final Product product = new Product(String.format("%s_%s_%s", prodType, fni0.orbitNo, mosaic ? fni0.start : fni0.tileId),
                                             prodType,
-                                            imageLayouts[S2Resolution.R10M.id].width,
-                                            imageLayouts[S2Resolution.R10M.id].height);
+                                            productWidth,
+                                            productHeight);
 
         try {
             product.setStartTime(ProductData.UTC.parse(fni0.start, "yyyyMMddHHmmss"));
@@ -185,47 +259,262 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
             // warn
         }
 
-        if (metadataHeader != null) {
-            SceneDescription sceneDescription = SceneDescription.create(metadataHeader);
+        Header.Tile tile = null;
+        if (mosaic) {
+            final Envelope2D sceneEnvelope = sceneDescription.getSceneEnvelope();
+            final Header.TileGeometry tileGeometry10M = metadataHeader.getTileList().get(0).tileGeometry10M;
+            setGeoCoding(product,
+                         sceneEnvelope.getCoordinateReferenceSystem(),
+                         sceneEnvelope.getX(),
+                         sceneEnvelope.getY() + sceneEnvelope.getHeight(),
+                         tileGeometry10M.xDim,
+                         -tileGeometry10M.yDim);
+        } else if (sceneDescription != null) {
             int tileIndex = sceneDescription.getTileIndex(fni0.tileId);
             Envelope2D tileEnvelope = sceneDescription.getTileEnvelope(tileIndex);
-            Header.Tile tile = metadataHeader.getTileList().get(tileIndex);
-
-            try {
-                product.setGeoCoding(new CrsGeoCoding(tileEnvelope.getCoordinateReferenceSystem(),
-                                                      imageLayouts[S2Resolution.R10M.id].width,
-                                                      imageLayouts[S2Resolution.R10M.id].height,
-                                                      tile.tileGeometry10M.upperLeftX,
-                                                      tile.tileGeometry10M.upperLeftY,
-                                                      tile.tileGeometry10M.xDim,
-                                                      -tile.tileGeometry10M.yDim,
-                                                      0.0, 0.0));
-            } catch (FactoryException e) {
-                // todo - handle e
-            } catch (TransformException e) {
-                // todo - handle e
-            }
+            tile = metadataHeader.getTileList().get(tileIndex);
+            setGeoCoding(product,
+                         tileEnvelope.getCoordinateReferenceSystem(),
+                         tile.tileGeometry10M.upperLeftX,
+                         tile.tileGeometry10M.upperLeftY,
+                         tile.tileGeometry10M.xDim,
+                         -tile.tileGeometry10M.yDim);
         }
 
+        final List<Jp2MultiLevelSource> multiLevelSources = new ArrayList<Jp2MultiLevelSource>();
+        final List<MultiLevelSource> countsSources = new ArrayList<MultiLevelSource>();
         for (Integer bandIndex : bandIndexes) {
             final BandInfo bandInfo = fileMap.get(bandIndex);
-            final Band band = product.addBand(bandInfo.wavebandInfo.bandName, ProductData.TYPE_UINT16);
-            band.setSpectralWavelength((float) bandInfo.wavebandInfo.centralWavelength);
-            band.setSpectralBandwidth((float) bandInfo.wavebandInfo.bandWidth);
-            band.setSpectralBandIndex(bandIndex);
-            band.setSourceImage(new DefaultMultiLevelImage(new Jp2MultiLevelSource(bandInfo)));
+            final MultiLevelSource countsSource;
+            if (mosaic) {
+                final File[] tileFiles = new File[sceneDescription.getTileCount()];
+                for (int i = 0; i < tileFiles.length; i++) {
+                    final String tileId = sceneDescription.getTileId(i);
+                    if (tileId.equals(fni0.tileId)) {
+                        tileFiles[i] = bandInfo.imageFile;
+                    } else if (datastripFiles.containsKey(tileId)) {
+                        tileFiles[i] = datastripFiles.get(tileId).get(bandIndex);
+                    }
+                }
+                countsSource = new MosaicMultiLevelSource(bandInfo, sceneDescription, metadataHeader, tileFiles);
+            } else {
+                final Jp2MultiLevelSource multiLevelSource = new Jp2MultiLevelSource(bandInfo);
+                multiLevelSources.add(multiLevelSource);
+                countsSource = multiLevelSource;
+            }
+            countsSources.add(getSubset(countsSource));
+            if (isNodeAccepted(bandInfo.wavebandInfo.bandName)) {
+                final Band band = product.addBand(bandInfo.wavebandInfo.bandName, ProductData.TYPE_UINT16);
+                band.setSpectralWavelength((float) bandInfo.wavebandInfo.centralWavelength);
+                band.setSpectralBandwidth((float) bandInfo.wavebandInfo.bandWidth);
+                band.setSpectralBandIndex(bandIndex);
+                band.setSourceImage(new DefaultMultiLevelImage(countsSources.get(countsSources.size() - 1)));
+            }
+        }
+
+        if (metadataHeader != null && metadataHeader.getResampleData().quantificationValue > 0) {
+            for (int i = 0; i < bandIndexes.size(); i++) {
+                final BandInfo bandInfo = fileMap.get(bandIndexes.get(i));
+                if (isNodeAccepted(getReflectanceBandName(bandInfo.wavebandInfo))) {
+                    addReflectanceBand(product, bandInfo, countsSources.get(i), metadataHeader.getResampleData());
+                }
+            }
+        }
+
+        if (tile != null) {
+            addAnglesBands(product, tile);
         }
 
-        product.setNumResolutionLevels(imageLayouts[0].numResolutions);
+        // The subset starts at level subsetLevel of the images
+        product.setNumResolutionLevels(Math.max(1, numResolutions - subsetLevel));
+
+        // A pyramid of the whole image is of no use for a subset
+        if (BUILD_PYRAMID && !multiLevelSources.isEmpty() && !isSubset()) {
+            pyramidJob = PYRAMID_EXECUTOR.submit(new PyramidBuilder(multiLevelSources));
+        }
 
         return product;
     }
 
-    private MultiLevelModel createImageModel(BandInfo bandInfo) {
+    @Override
+    public void close() throws IOException {
+        if (pyramidJob != null) {
+            pyramidJob.cancel(true);
+            pyramidJob = null;
+        }
+        super.close();
+    }
+
+    /**
+     * Adds a band file of another tile of the same datastrip, other files are ignored.
+     */
+    private void addDatastripFile(File file, S2FilenameInfo fni0, Map<String, Map<Integer, File>> datastripFiles) {
+        final S2FilenameInfo fni = S2FilenameInfo.create(file.getName());
+        if (fni != null && fni.isSameDatastrip(fni0) && !fni.tileId.equals(fni0.tileId) && fni.getBand() >= 0 && fni.getBand() < WAVEBAND_INFOS.length) {
+            Map<Integer, File> tileFiles = datastripFiles.get(fni.tileId);
+            if (tileFiles == null) {
+                tileFiles = new HashMap<Integer, File>();
+                datastripFiles.put(fni.tileId, tileFiles);
+            }
+            tileFiles.put(fni.getBand(), file);
+        }
+    }
+
+    private static boolean isMetadataFile(File file) {
+        final String name = file.getName();
+        return name.startsWith("MTD_") && name.endsWith(".xml");
+    }
+
+    private static File findMetadataFile(File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (isMetadataFile(file)) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param imageDir The directory of the input file.
+     * @return The product directory if {@code imageDir} is {@code <product>/GRANULE/<id>/IMG_DATA}, otherwise {@code null}.
+     */
+    static File getGranuleProductDir(File imageDir) {
+        final File granuleDir = imageDir.getParentFile();
+        final File granulesDir = granuleDir != null ? granuleDir.getParentFile() : null;
+        if (!"IMG_DATA".equals(imageDir.getName()) || granulesDir == null || !"GRANULE".equals(granulesDir.getName())) {
+            return null;
+        }
+        return granulesDir.getParentFile();
+    }
+
+    /**
+     * @param imageDir The {@code IMG_DATA} directory of the input file.
+     * @return The {@code IMG_DATA} directories of the other granules of the product, empty if the product has no
+     *         {@code GRANULE/<id>/IMG_DATA} layout.
+     */
+    static List<File> getOtherGranuleImageDirs(File imageDir) {
+        final List<File> imageDirs = new ArrayList<File>();
+        if (getGranuleProductDir(imageDir) == null) {
+            return imageDirs;
+        }
+        final File granuleDir = imageDir.getParentFile();
+        final File[] granuleDirs = granuleDir.getParentFile().listFiles();
+        if (granuleDirs != null) {
+            for (File dir : granuleDirs) {
+                final File otherImageDir = new File(dir, "IMG_DATA");
+                if (!dir.equals(granuleDir) && otherImageDir.isDirectory()) {
+                    imageDirs.add(otherImageDir);
+                }
+            }
+        }
+        return imageDirs;
+    }
+
+    private boolean isBandAccepted(S2WavebandInfo wavebandInfo) {
+        return isNodeAccepted(wavebandInfo.bandName) || isNodeAccepted(getReflectanceBandName(wavebandInfo));
+    }
+
+    private static String getReflectanceBandName(S2WavebandInfo wavebandInfo) {
+        return "reflec_" + wavebandInfo.bandName;
+    }
+
+    private boolean isSubset() {
+        return subsetLevel > 0 || subsetRegion.x != 0 || subsetRegion.y != 0 || subsetRegion.width != width || subsetRegion.height != height;
+    }
+
+    /**
+     * @return The region and resolution of the product subset from a source covering the whole product.
+     */
+    private MultiLevelSource getSubset(MultiLevelSource source) {
+        return isSubset() ? new SubsetMultiLevelSource(source, subsetRegion, subsetLevel, DEFAULT_TILE_SIZE) : source;
+    }
+
+    /**
+     * @param easting    Easting of the upper left corner of the whole product.
+     * @param northing   Northing of the upper left corner of the whole product.
+     * @param pixelSizeX Pixel width of the whole product.
+     * @param pixelSizeY Pixel height of the whole product.
+     */
+    private void setGeoCoding(Product product, CoordinateReferenceSystem crs, double easting, double northing, double pixelSizeX, double pixelSizeY) {
+        final int subSampling = 1 << subsetLevel;
+        try {
+            product.setGeoCoding(new CrsGeoCoding(crs,
+                                                  subsetRegion.width >> subsetLevel,
+                                                  subsetRegion.height >> subsetLevel,
+                                                  easting + subsetRegion.x * pixelSizeX,
+                                                  northing - subsetRegion.y * pixelSizeY,
+                                                  subSampling * pixelSizeX,
+                                                  subSampling * pixelSizeY,
+                                                  0.0, 0.0));
+        } catch (FactoryException e) {
+            // todo - handle e
+        } catch (TransformException e) {
+            // todo - handle e
+        }
+    }
+
+    private void addReflectanceBand(Product product, BandInfo bandInfo, MultiLevelSource countsSource, Header.ResampleData resampleData) {
+        final Band band = product.addBand(getReflectanceBandName(bandInfo.wavebandInfo), ProductData.TYPE_FLOAT32);
+        band.setDescription("Top of atmosphere reflectance of " + bandInfo.wavebandInfo.bandName);
+        band.setUnit("dl");
+        band.setSpectralWavelength((float) bandInfo.wavebandInfo.centralWavelength);
+        band.setSpectralBandwidth((float) bandInfo.wavebandInfo.bandWidth);
+        band.setSpectralBandIndex(bandInfo.bandIndex);
+        final double[] solarIrradiances = resampleData.reflectanceConversion.solarIrradiances;
+        if (solarIrradiances != null && bandInfo.bandIndex < solarIrradiances.length) {
+            // Corrected for the sun-earth distance at acquisition time
+            band.setSolarFlux((float) (resampleData.reflectanceConversion.u * solarIrradiances[bandInfo.bandIndex]));
+        }
+        band.setNoDataValue(Double.NaN);
+        band.setNoDataValueUsed(true);
+        band.setSourceImage(new DefaultMultiLevelImage(new ReflectanceMultiLevelSource(countsSource, resampleData.quantificationValue)));
+    }
+
+    private void addAnglesBands(Product product, Header.Tile tile) {
+        final double pixelSize = tile.tileGeometry10M.xDim;
+        if (!(pixelSize > 0.0)) {
+            return;
+        }
+        // Grids are only decoded for bands in the subset, and not before the band's image is needed
+        if (tile.sunAnglesGrid != null) {
+            final Header.AnglesGrid[] sunAnglesGrids = {tile.sunAnglesGrid};
+            if (isNodeAccepted("sun_zenith")) {
+                addAnglesBand(product, "sun_zenith", "Sun zenith angle", sunAnglesGrids, false, pixelSize);
+            }
+            if (isNodeAccepted("sun_azimuth")) {
+                addAnglesBand(product, "sun_azimuth", "Sun azimuth angle", sunAnglesGrids, true, pixelSize);
+            }
+        }
+        if (tile.viewingIncidenceAnglesGrids != null) {
+            if (isNodeAccepted("view_zenith_mean")) {
+                addAnglesBand(product, "view_zenith_mean", "Viewing incidence zenith angle, mean of all bands and detectors",
+                              tile.viewingIncidenceAnglesGrids, false, pixelSize);
+            }
+            if (isNodeAccepted("view_azimuth_mean")) {
+                addAnglesBand(product, "view_azimuth_mean", "Viewing incidence azimuth angle, mean of all bands and detectors",
+                              tile.viewingIncidenceAnglesGrids, true, pixelSize);
+            }
+        }
+    }
+
+    private void addAnglesBand(Product product, String name, String description, Header.AnglesGrid[] anglesGrids, boolean azimuth, double pixelSize) {
+        if (!AnglesOpImage.Grid.hasNodes(anglesGrids, azimuth)) {
+            return;
+        }
+        final Band band = product.addBand(name, ProductData.TYPE_FLOAT32);
+        band.setUnit("deg");
+        band.setDescription(description);
+        band.setSourceImage(new DefaultMultiLevelImage(getSubset(new AnglesMultiLevelSource(anglesGrids, azimuth, pixelSize))));
+    }
+
+    private MultiLevelModel createImageModel(BandInfo bandInfo, int imageWidth, int imageHeight) {
         return new DefaultMultiLevelModel(bandInfo.imageLayout.numResolutions,
                                           new AffineTransform(),
-                                          imageLayouts[0].width,
-                                          imageLayouts[0].height);
+                                          imageWidth,
+                                          imageHeight);
     }
 
     @Override
@@ -261,21 +550,31 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
     }
 
     private class Jp2MultiLevelSource extends AbstractMultiLevelSource {
-        public static final float R20M_X_FACTOR = 1.0252F;
-        public static final float R20M_Y_FACTOR = 1.0253F;
-        public static final float R60M_X_FACTOR = 1.02445F;
-        public static final float R60M_Y_FACTOR = 1.0249F;
         final BandInfo bandInfo;
+        final Jp2PrefetchTarget prefetchTarget;
+        private final int imageWidth;
+        private final int imageHeight;
 
         public Jp2MultiLevelSource(BandInfo bandInfo) {
-            super(createImageModel(bandInfo));
+            this(bandInfo, width, height);
+        }
+
+        /**
+         * @param imageWidth  Width of the image on the 10 m grid.
+         * @param imageHeight Height of the image on the 10 m grid.
+         */
+        Jp2MultiLevelSource(BandInfo bandInfo, int imageWidth, int imageHeight) {
+            super(createImageModel(bandInfo, imageWidth, imageHeight));
             this.bandInfo = bandInfo;
+            this.imageWidth = imageWidth;
+            this.imageHeight = imageHeight;
+            this.prefetchTarget = new Jp2PrefetchTarget(this, bandInfo, getModel().getLevelCount());
         }
 
         @Override
         protected RenderedImage createImage(int level) {
             try {
-                RenderedImage opImage = new Jp2ExeOpImage(bandInfo, getModel(), level);
+                RenderedImage opImage = new Jp2ExeOpImage(bandInfo, getModel(), level, prefetchTarget);
                 if (bandInfo.wavebandInfo.resolution != S2Resolution.R10M) {
                     return createScaledImage(opImage, bandInfo.wavebandInfo.resolution, level);
                 }
@@ -285,42 +584,336 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
             }
         }
 
-        private RenderedOp createScaledImage(RenderedImage sourceImage, S2Resolution resolution, int level) {
-            int sourceWidth = sourceImage.getWidth();
-            int sourceHeight = sourceImage.getHeight();
-            int targetWidth = imageLayouts[0].width >> level;
-            int targetHeight = imageLayouts[0].height >> level;
-            float scaleX = (float) targetWidth / (float) sourceWidth;
-            float scaleY = (float) targetHeight / (float) sourceHeight;
-            float corrFactorX = resolution == S2Resolution.R20M ? R20M_X_FACTOR : R60M_X_FACTOR;
-            float corrFactorY = resolution == S2Resolution.R20M ? R20M_Y_FACTOR : R60M_Y_FACTOR;
-            final Dimension tileDim = getTileDim(targetWidth, targetHeight);
-            ImageLayout imageLayout = new ImageLayout();
-            imageLayout.setTileWidth(tileDim.width);
-            imageLayout.setTileHeight(tileDim.height);
-            RenderingHints renderingHints = new RenderingHints(JAI.KEY_BORDER_EXTENDER,
-                                                               BorderExtender.createInstance(BorderExtender.BORDER_ZERO));
-            renderingHints.put(JAI.KEY_IMAGE_LAYOUT, imageLayout);
-            RenderedOp scaledImage = ScaleDescriptor.create(sourceImage,
-                                                            scaleX * corrFactorX,
-                                                            scaleY * corrFactorY,
-                                                            0F, 0F,
-                                                            Interpolation.getInstance(Interpolation.INTERP_NEAREST),
-                                                            renderingHints);
-            if (scaledImage.getWidth() != targetWidth || scaledImage.getHeight() != targetHeight) {
-                return CropDescriptor.create(scaledImage, 0.0F, 0.0F, (float) targetWidth, (float) targetHeight, null);
-            } else {
-                return scaledImage;
+        /**
+         * @return The image of a 20 m or 60 m band replicated to the 10 m grid.
+         */
+        private RenderedImage createScaledImage(RenderedImage sourceImage, S2Resolution resolution, int level) {
+            final int factor = (int) Math.round(resolution.res / S2Resolution.R10M.res);
+            return new ReplicateOpImage(sourceImage,
+                                        factor,
+                                        imageWidth,
+                                        imageHeight,
+                                        getTileDim(imageWidth >> level, imageHeight >> level),
+                                        getModel(),
+                                        level);
+        }
+
+    }
+
+
+    /**
+     * One band of all tiles of the datastrip. The band file of a tile is only opened when a JAI tile of the
+     * mosaic first touches it.
+     */
+    private class MosaicMultiLevelSource extends AbstractMultiLevelSource {
+        private final BandInfo bandInfo;
+        private final SceneDescription sceneDescription;
+        private final Header header;
+        private final File[] tileFiles;
+        private final Jp2MultiLevelSource[] tileSources;
+        private final boolean[] tileFailed;
+
+        /**
+         * @param tileFiles The band file of each tile of the scene description, {@code null} if missing.
+         */
+        MosaicMultiLevelSource(BandInfo bandInfo, SceneDescription sceneDescription, Header header, File[] tileFiles) {
+            super(createImageModel(bandInfo, width, height));
+            this.bandInfo = bandInfo;
+            this.sceneDescription = sceneDescription;
+            this.header = header;
+            this.tileFiles = tileFiles;
+            this.tileSources = new Jp2MultiLevelSource[tileFiles.length];
+            this.tileFailed = new boolean[tileFiles.length];
+        }
+
+        @Override
+        protected RenderedImage createImage(int level) {
+            return new MosaicOpImage(this, level);
+        }
+
+        /**
+         * @return The band of a tile, or {@code null} if the tile has no readable band file.
+         */
+        synchronized Jp2MultiLevelSource getTileSource(int tileIndex) {
+            if (tileSources[tileIndex] == null && !tileFailed[tileIndex] && tileFiles[tileIndex] != null) {
+                final File tileFile = tileFiles[tileIndex];
+                try {
+                    final Header.TileGeometry tileGeometry10M = header.getTileList().get(tileIndex).tileGeometry10M;
+                    final BandInfo tileBandInfo = new BandInfo(tileFile,
+                                                               bandInfo.bandIndex,
+                                                               bandInfo.wavebandInfo,
+                                                               Jp2Header.read(tileFile).getLayout());
+                    tileSources[tileIndex] = new Jp2MultiLevelSource(tileBandInfo, tileGeometry10M.numCols, tileGeometry10M.numRows);
+                } catch (IOException e) {
+                    BeamLogManager.getSystemLogger().warning("Mosaic: failed to open " + tileFile.getName() + ": " + e.getMessage());
+                    tileFailed[tileIndex] = true;
+                }
+            }
+            return tileSources[tileIndex];
+        }
+    }
+
+    /**
+     * A level of a {@link MosaicMultiLevelSource}. Each JAI tile is copied from the level images of the tiles it
+     * intersects. Where tiles overlap, a pixel is taken from the first tile in metadata order which has data there.
+     */
+    private class MosaicOpImage extends SingleBandedOpImage {
+        private final MosaicMultiLevelSource mosaicSource;
+
+        MosaicOpImage(MosaicMultiLevelSource mosaicSource, int level) {
+            super(DataBuffer.TYPE_USHORT,
+                  width,
+                  height,
+                  getTileDim(width >> level, height >> level),
+                  null,
+                  ResolutionLevel.create(mosaicSource.getModel(), level));
+            this.mosaicSource = mosaicSource;
+        }
+
+        @Override
+        protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+            final int level = getLevel();
+            final SceneDescription sceneDescription = mosaicSource.sceneDescription;
+            final Rectangle sceneRectangle = sceneDescription.getSceneRectangle();
+            final int[] samples = new int[destRect.width * destRect.height];
+            // Only the tiles intersecting the JAI tile at full resolution, their files are not touched otherwise
+            final Rectangle sceneRect = new Rectangle(sceneRectangle.x + (destRect.x << level),
+                                                      sceneRectangle.y + (destRect.y << level),
+                                                      destRect.width << level,
+                                                      destRect.height << level);
+            for (int i : sceneDescription.getTileIndexes(sceneRect)) {
+                final Rectangle tileRectangle = sceneDescription.getTileRectangle(i);
+                // Offsets which are no multiple of 2^level are rounded down, so at coarser levels a tile may be up to one pixel off
+                final int tileX = (tileRectangle.x - sceneRectangle.x) >> level;
+                final int tileY = (tileRectangle.y - sceneRectangle.y) >> level;
+                final Jp2MultiLevelSource tileSource = mosaicSource.getTileSource(i);
+                if (tileSource == null || level >= tileSource.getModel().getLevelCount()) {
+                    continue;
+                }
+                final RenderedImage tileImage = tileSource.getImage(level);
+                if (tileImage == null) {
+                    continue;
+                }
+                final Rectangle r = destRect.intersection(new Rectangle(tileX, tileY, tileImage.getWidth(), tileImage.getHeight()));
+                if (r.isEmpty()) {
+                    continue;
+                }
+                final Raster raster = tileImage.getData(new Rectangle(r.x - tileX, r.y - tileY, r.width, r.height));
+                final int[] tileSamples = raster.getSamples(raster.getMinX(), raster.getMinY(), r.width, r.height, 0, (int[]) null);
+                for (int y = 0; y < r.height; y++) {
+                    final int offset = (r.y - destRect.y + y) * destRect.width + (r.x - destRect.x);
+                    for (int x = 0; x < r.width; x++) {
+                        if (samples[offset + x] == 0) {
+                            samples[offset + x] = tileSamples[y * r.width + x];
+                        }
+                    }
+                }
+            }
+            dest.setSamples(destRect.x, destRect.y, destRect.width, destRect.height, 0, samples);
+        }
+    }
+
+    /**
+     * Reflectances computed from the level images of the counts, so decoded tiles are shared by both bands.
+     */
+    private static class ReflectanceMultiLevelSource extends AbstractMultiLevelSource {
+        private final MultiLevelSource countsSource;
+        private final int quantificationValue;
+
+        ReflectanceMultiLevelSource(MultiLevelSource countsSource, int quantificationValue) {
+            super(countsSource.getModel());
+            this.countsSource = countsSource;
+            this.quantificationValue = quantificationValue;
+        }
+
+        @Override
+        protected RenderedImage createImage(int level) {
+            final RenderedImage countsImage = countsSource.getImage(level);
+            return countsImage != null ? new ReflectanceOpImage(countsImage, quantificationValue) : null;
+        }
+    }
+
+    /**
+     * Per-pixel angles, computed from the angle grid at each level.
+     */
+    private class AnglesMultiLevelSource extends AbstractMultiLevelSource {
+        private final Header.AnglesGrid[] anglesGrids;
+        private final boolean azimuth;
+        private final double pixelSize;
+        private AnglesOpImage.Grid grid;
+
+        /**
+         * @param anglesGrids The grids of all bands and detectors, merged when the first level image is created.
+         */
+        AnglesMultiLevelSource(Header.AnglesGrid[] anglesGrids, boolean azimuth, double pixelSize) {
+            super(new DefaultMultiLevelModel(numResolutions, new AffineTransform(), width, height));
+            this.anglesGrids = anglesGrids;
+            this.azimuth = azimuth;
+            this.pixelSize = pixelSize;
+        }
+
+        private synchronized AnglesOpImage.Grid getGrid() {
+            if (grid == null) {
+                try {
+                    grid = AnglesOpImage.Grid.merge(anglesGrids, azimuth, pixelSize);
+                } catch (NumberFormatException e) {
+                    BeamLogManager.getSystemLogger().warning("Invalid angle grid: " + e.getMessage());
+                }
+                if (grid == null) {
+                    // All nodes NaN, or not readable
+                    grid = AnglesOpImage.Grid.createInvalid(azimuth);
+                }
+            }
+            return grid;
+        }
+
+        @Override
+        protected RenderedImage createImage(int level) {
+            return new AnglesOpImage(getGrid(), width, height, getTileDim(width >> level, height >> level), getModel(), level);
+        }
+    }
+
+    /**
+     * Decodes all levels of all bands in the background, coarsest level first, so that overviews become
+     * available first. Levels small enough are loaded into the {@link Jp2TileCache}, the others are only
+     * decoded into the disk cache. Pauses while tiles are decoded for someone waiting for them.
+     */
+    private class PyramidBuilder implements Runnable {
+        private final List<Jp2MultiLevelSource> multiLevelSources;
+
+        PyramidBuilder(List<Jp2MultiLevelSource> multiLevelSources) {
+            this.multiLevelSources = multiLevelSources;
+        }
+
+        @Override
+        public void run() {
+            int numLevels = 0;
+            for (Jp2MultiLevelSource multiLevelSource : multiLevelSources) {
+                numLevels = Math.max(numLevels, multiLevelSource.getModel().getLevelCount());
+            }
+            final long maxLevelBytes = Jp2TileCache.INSTANCE.getMaxBytes() / (4L * multiLevelSources.size());
+            try {
+                for (int level = numLevels - 1; level >= 0; level--) {
+                    for (Jp2MultiLevelSource multiLevelSource : multiLevelSources) {
+                        if (level >= multiLevelSource.getModel().getLevelCount()) {
+                            continue;
+                        }
+                        // Creates the level image, if not done yet
+                        multiLevelSource.getImage(level);
+                        final Jp2ExeOpImage image = multiLevelSource.prefetchTarget.getImage(level);
+                        if (image == null) {
+                            continue;
+                        }
+                        final boolean inMemory = 2L * image.getWidth() * image.getHeight() <= maxLevelBytes;
+                        final Jp2Image.Layout layout = multiLevelSource.bandInfo.imageLayout;
+                        for (int jp2TileY = 0; jp2TileY < layout.numYTiles; jp2TileY++) {
+                            for (int jp2TileX = 0; jp2TileX < layout.numXTiles; jp2TileX++) {
+                                awaitIdle();
+                                try {
+                                    if (inMemory) {
+                                        image.loadJp2Tile(jp2TileX, jp2TileY);
+                                    } else {
+                                        image.decodeJp2Tile(jp2TileX, jp2TileY);
+                                    }
+                                } catch (InterruptedIOException e) {
+                                    return;
+                                } catch (IOException e) {
+                                    BeamLogManager.getSystemLogger().warning(String.format("Pyramid: failed to decode tile (%d,%d) at level %d of %s: %s",
+                                                                                           jp2TileX, jp2TileY, level,
+                                                                                           multiLevelSource.bandInfo.imageFile.getName(),
+                                                                                           e.getMessage()));
+                                }
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // cancelled
+            }
+        }
+
+        private void awaitIdle() throws InterruptedException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            while (Jp2Prefetcher.INSTANCE.isForegroundBusy()) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * The JP2 tiles of a band at all levels, for the {@link Jp2Prefetcher}.
+     */
+    private class Jp2PrefetchTarget extends Jp2Prefetcher.Target {
+        private final Jp2MultiLevelSource multiLevelSource;
+        private final BandInfo bandInfo;
+        private final Jp2ExeOpImage[] images;
+
+        Jp2PrefetchTarget(Jp2MultiLevelSource multiLevelSource, BandInfo bandInfo, int numLevels) {
+            this.multiLevelSource = multiLevelSource;
+            this.bandInfo = bandInfo;
+            this.images = new Jp2ExeOpImage[numLevels];
+        }
+
+        synchronized void setImage(int level, Jp2ExeOpImage image) {
+            images[level] = image;
+        }
+
+        synchronized Jp2ExeOpImage getImage(int level) {
+            return images[level];
+        }
+
+        @Override
+        public int getNumLevels() {
+            return images.length;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return bandInfo.imageLayout.numXTiles;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return bandInfo.imageLayout.numYTiles;
+        }
+
+        /**
+         * @return The image of a level, created if not done yet, since zoom prefetches target the level next
+         *         to the one in use. {@code null} if the image could not be created or has been disposed.
+         */
+        private Jp2ExeOpImage getOrCreateImage(int level) {
+            Jp2ExeOpImage image = getImage(level);
+            if (image == null) {
+                // Not while holding this lock, the new image registers itself through setImage()
+                multiLevelSource.getImage(level);
+                image = getImage(level);
             }
+            return image;
+        }
+
+        @Override
+        public boolean isLoaded(int level, int tileX, int tileY) {
+            // Called while a tile is computed, so a missing level image is only created by load()
+            final Jp2ExeOpImage image = getImage(level);
+            return image != null && Jp2TileCache.INSTANCE.get(image.getJp2TileKey(tileX, tileY)) != null;
         }
 
+        @Override
+        public void load(int level, int tileX, int tileY) throws IOException {
+            final Jp2ExeOpImage image = getOrCreateImage(level);
+            if (image != null) {
+                image.loadJp2Tile(tileX, tileY);
+            }
+        }
     }
 
 
     class Jp2File {
         File file;
         String header;
-        ImageInputStream stream;
+        ShortBuffer data;
         long dataPos;
         int width;
         int height;
@@ -334,11 +927,11 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
 
         private final File imageFile;
         private final File cacheDir;
-        private Map<File, Jp2File> openFiles;
-        private Map<File, Object> locks;
+        private final Jp2TileIndex tilePartIndex;
         private final BandInfo bandInfo;
+        private final Jp2PrefetchTarget prefetchTarget;
 
-        Jp2ExeOpImage(BandInfo bandInfo, MultiLevelModel imageModel, int level) throws IOException {
+        Jp2ExeOpImage(BandInfo bandInfo, MultiLevelModel imageModel, int level, Jp2PrefetchTarget prefetchTarget) throws IOException {
             super(DataBuffer.TYPE_USHORT,
                   bandInfo.imageLayout.width,
                   bandInfo.imageLayout.height,
@@ -351,22 +944,22 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
                 throw new FileNotFoundException("File not found: " + bandInfo.imageFile);
             }
 
-            if (resolvedFile.getParentFile() == null) {
-                throw new IOException("Can't determine package directory");
-            }
+            final File cacheDir = Jp2Cache.getPackageCacheDir(resolvedFile);
 
-            final File cacheDir = new File(new File(SystemUtils.getApplicationDataDir(), "jopenjpeg/cache"),
-                                           resolvedFile.getParentFile().getName());
-            cacheDir.mkdirs();
-            if (!cacheDir.exists() || !cacheDir.isDirectory() || !cacheDir.canWrite()) {
-                throw new IOException("Can't access package cache directory");
+            Jp2TileIndex tilePartIndex;
+            try {
+                tilePartIndex = Jp2TileIndex.get(resolvedFile, cacheDir);
+            } catch (IOException e) {
+                BeamLogManager.getSystemLogger().warning("No tile-part index for " + resolvedFile.getName() + ": " + e.getMessage());
+                tilePartIndex = null;
             }
 
             this.bandInfo = bandInfo;
             this.imageFile = resolvedFile;
             this.cacheDir = cacheDir;
-            this.openFiles = new HashMap<File, Jp2File>();
-            this.locks = new HashMap<File, Object>();
+            this.tilePartIndex = tilePartIndex;
+            this.prefetchTarget = prefetchTarget;
+            prefetchTarget.setImage(level, this);
         }
 
 
@@ -377,8 +970,6 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
 
             final int tileWidth = this.getTileWidth();
             final int tileHeight = this.getTileHeight();
-            final int tileX = destRect.x / tileWidth;
-            final int tileY = destRect.y / tileHeight;
 
             if (tileWidth * tileHeight != tileData.length) {
                 throw new IllegalStateException(String.format("tileWidth (=%d) * tileHeight (=%d) != tileData.length (=%d)",
@@ -401,83 +992,169 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
             //  4  -    685   -   256
             //  5  -    343   -   128
 
-            final File outputFile = new File(cacheDir,
-                                             FileUtils.exchangeExtension(imageFile.getName(),
-                                                                         String.format("_R%d_TX%d_TY%d.pgx",
-                                                                                       resolution, jp2TileX, jp2TileY)));
-            final File outputFile0 = getFirstComponentOutputFile(outputFile);
-            if (!outputFile0.exists()) {
-                System.out.printf("Jp2ExeImage.readTileData(): recomputing res=%d, tile=(%d,%d)\n", resolution, jp2TileX, jp2TileY);
+            final int jp2X = destRect.x - jp2TileX * jp2TileWidth;
+            final int jp2Y = destRect.y - jp2TileY * jp2TileHeight;
+            if (jp2X < 0 || jp2Y < 0) {
+                throw new IllegalStateException(String.format("jp2X (=%d) < 0 || jp2Y (=%d) < 0",
+                                                              jp2X, jp2Y));
+            }
+
+            Jp2Prefetcher.INSTANCE.tileAccessed(prefetchTarget, resolution, jp2TileX, jp2TileY);
+
+            // Up to 64 JAI tiles are cut from the same decoded JP2 tile, so keep it in memory
+            final Jp2TileCache.Key key = getJp2TileKey(jp2TileX, jp2TileY);
+            Jp2TileCache.Tile jp2Tile = Jp2TileCache.INSTANCE.get(key);
+            if (jp2Tile == null) {
+                Jp2Prefetcher.INSTANCE.foregroundStarted();
                 try {
-                    decompressTile(outputFile, jp2TileX, jp2TileY);
+                    jp2Tile = loadJp2Tile(key, jp2TileX, jp2TileY, jp2TileWidth, jp2TileHeight);
                 } catch (IOException e) {
                     // warn
-                    outputFile0.delete();
+                } finally {
+                    Jp2Prefetcher.INSTANCE.foregroundEnded();
                 }
-                if (!outputFile0.exists()) {
+                if (jp2Tile == null) {
                     Arrays.fill(tileData, (short) 0);
                     return;
                 }
             }
 
-            try {
-                System.out.printf("Jp2ExeImage.readTileData(): reading res=%d, tile=(%d,%d)\n", resolution, jp2TileX, jp2TileY);
-                readTileData(outputFile0, tileX, tileY, tileWidth, tileHeight, jp2TileX, jp2TileY, jp2TileWidth, jp2TileHeight, tileData, destRect);
-            } catch (IOException e) {
-                // warn
-            }
+            jp2Tile.copyTo(jp2X, jp2Y, tileWidth, tileHeight, tileData);
         }
 
-        private File getFirstComponentOutputFile(File outputFile) {
-            return FileUtils.exchangeExtension(outputFile, "_0.pgx");
+        Jp2TileCache.Key getJp2TileKey(int jp2TileX, int jp2TileY) {
+            final int tileIndex = bandInfo.imageLayout.numXTiles * jp2TileY + jp2TileX;
+            return new Jp2TileCache.Key(imageFile, getLevel(), 0, tileIndex);
         }
 
-        private void decompressTile(final File outputFile, int jp2TileX, int jp2TileY) throws IOException {
-            final int tileIndex = bandInfo.imageLayout.numXTiles * jp2TileY + jp2TileX;
-            final Process process = new ProcessBuilder(EXE,
-                                                       "-i", imageFile.getPath(),
-                                                       "-o", outputFile.getPath(),
-                                                       "-r", getLevel() + "",
-                                                       "-t", tileIndex + "").directory(cacheDir).start();
+        Jp2TileCache.Tile loadJp2Tile(int jp2TileX, int jp2TileY) throws IOException {
+            final Dimension jp2TileDim = getJp2TileDim(bandInfo, getLevel());
+            return loadJp2Tile(getJp2TileKey(jp2TileX, jp2TileY), jp2TileX, jp2TileY, jp2TileDim.width, jp2TileDim.height);
+        }
 
-            try {
-                final int exitCode = process.waitFor();
-                if (exitCode != 0) {
-                    System.err.println("Failed to uncompress tile: exitCode = " + exitCode);
+        /**
+         * Decodes a JP2 tile into the tile cache. Concurrent requests for the same tile wait for a single decode.
+         *
+         * @return The decoded tile, or {@code null} if the decompressor failed.
+         */
+        private Jp2TileCache.Tile loadJp2Tile(final Jp2TileCache.Key key,
+                                              final int jp2TileX, final int jp2TileY,
+                                              final int jp2TileWidth, final int jp2TileHeight) throws IOException {
+            return JP2_TILE_LOADS.execute(key, new Callable<Jp2TileCache.Tile>() {
+                @Override
+                public Jp2TileCache.Tile call() throws IOException {
+                    // A load for the same tile may have completed since our cache lookup
+                    Jp2TileCache.Tile jp2Tile = Jp2TileCache.INSTANCE.get(key);
+                    if (jp2Tile != null) {
+                        return jp2Tile;
+                    }
+
+                    final File outputFile0 = decodeJp2Tile(jp2TileX, jp2TileY);
+                    if (outputFile0 == null) {
+                        return null;
+                    }
+
+                    BeamLogManager.getSystemLogger().fine(String.format("Reading tile (%d,%d) at level %d of %s", jp2TileX, jp2TileY, getLevel(), imageFile.getName()));
+                    jp2Tile = readJp2Tile(outputFile0, jp2TileWidth, jp2TileHeight);
+                    Jp2TileCache.INSTANCE.put(key, jp2Tile);
+                    return jp2Tile;
                 }
-            } catch (InterruptedException e) {
-                System.err.println("InterruptedException: " + e.getMessage());
-            }
+            });
         }
 
-        @Override
-        public synchronized void dispose() {
+        /**
+         * Decodes a JP2 tile into the disk cache, unless it is there already.
+         * Concurrent requests for the same tile wait for a single decode.
+         *
+         * @return The decoded tile file, or {@code null} if the decompressor failed.
+         */
+        File decodeJp2Tile(final int jp2TileX, final int jp2TileY) throws IOException {
+            final int resolution = getLevel();
+            final File outputFile = new File(cacheDir,
+                                             FileUtils.exchangeExtension(imageFile.getName(),
+                                                                         String.format("_R%d_TX%d_TY%d.pgx",
+                                                                                       resolution, jp2TileX, jp2TileY)));
+            final File outputFile0 = getFirstComponentOutputFile(outputFile);
+            final boolean decoded = JP2_TILE_DECODES.execute(outputFile0, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    if (!outputFile0.exists()) {
+                        BeamLogManager.getSystemLogger().fine(String.format("Decoding tile (%d,%d) at level %d of %s", jp2TileX, jp2TileY, resolution, imageFile.getName()));
+                        try {
+                            decompressTile(outputFile, jp2TileX, jp2TileY);
+                        } catch (IOException e) {
+                            // warn
+                            outputFile0.delete();
+                        }
+                        // Count the new file against the disk cache budget right away
+                        if (Jp2Cache.INSTANCE.acquire(outputFile0)) {
+                            Jp2Cache.INSTANCE.release(outputFile0);
+                        }
+                    }
+                    return outputFile0.exists();
+                }
+            });
+            return decoded ? outputFile0 : null;
+        }
+
+        private File getFirstComponentOutputFile(File outputFile) {
+            return FileUtils.exchangeExtension(outputFile, "_0.pgx");
+        }
 
-            for (Map.Entry<File, Jp2File> entry : openFiles.entrySet()) {
-                System.out.println("closing " + entry.getKey());
+        private void decompressTile(final File outputFile, int jp2TileX, int jp2TileY) throws IOException {
+            // Long-lived workers save the process start and header parsing per tile
+            if (Jp2WorkerPool.INSTANCE.isAvailable()) {
                 try {
-                    final Jp2File jp2File = entry.getValue();
-                    if (jp2File.stream != null) {
-                        jp2File.stream.close();
-                        jp2File.stream = null;
-                    }
+                    Jp2WorkerPool.INSTANCE.decodeTile(imageFile, getLevel(), 0, 0, jp2TileX, jp2TileY, getFirstComponentOutputFile(outputFile));
+                    return;
                 } catch (IOException e) {
-                    // warn
+                    BeamLogManager.getSystemLogger().warning("Decoder worker failed, using " + EXE + ": " + e.getMessage());
                 }
             }
+            final int tileIndex = bandInfo.imageLayout.numXTiles * jp2TileY + jp2TileX;
+            // Only hand the tile's own bytes to the decompressor if we know where they are
+            File inputFile = imageFile;
+            if (tilePartIndex != null && tilePartIndex.containsTile(tileIndex)) {
+                inputFile = File.createTempFile(FileUtils.getFilenameWithoutExtension(imageFile) + "_T" + tileIndex + "_", ".j2k", cacheDir);
+            }
+            // Written under a temporary name and renamed when complete, so that no one reads a half-written tile
+            File tempOutputFile = null;
+            try {
+                if (inputFile != imageFile) {
+                    tilePartIndex.writeTileCodestream(imageFile, tileIndex, inputFile);
+                }
+                tempOutputFile = Jp2Cache.createTempFile(FileUtils.getFilenameWithoutExtension(outputFile) + "_", ".pgx", cacheDir);
+                final Process process = new ProcessBuilder(EXE,
+                                                           "-i", inputFile.getPath(),
+                                                           "-o", tempOutputFile.getPath(),
+                                                           "-r", getLevel() + "",
+                                                           "-t", tileIndex + "").directory(cacheDir).start();
 
-            for (File file : openFiles.keySet()) {
-                System.out.println("deleting " + file);
-                if (!file.delete()) {
-                    // warn
+                try {
+                    final int exitCode = process.waitFor();
+                    if (exitCode != 0) {
+                        BeamLogManager.getSystemLogger().warning("Failed to uncompress tile " + tileIndex + " of " + imageFile.getName() + ": exitCode = " + exitCode);
+                    } else {
+                        Jp2Cache.moveTempFile(getFirstComponentOutputFile(tempOutputFile), getFirstComponentOutputFile(outputFile));
+                    }
+                } catch (InterruptedException e) {
+                    BeamLogManager.getSystemLogger().warning("Interrupted while uncompressing tile " + tileIndex + " of " + imageFile.getName());
+                }
+            } finally {
+                if (inputFile != imageFile) {
+                    inputFile.delete();
+                }
+                if (tempOutputFile != null) {
+                    tempOutputFile.delete();
+                    getFirstComponentOutputFile(tempOutputFile).delete();
                 }
             }
+        }
 
-            openFiles.clear();
-
-            if (!cacheDir.delete()) {
-                // warn
-            }
+        @Override
+        public synchronized void dispose() {
+            prefetchTarget.setImage(getLevel(), null);
+            Jp2Prefetcher.INSTANCE.cancel(prefetchTarget, getLevel());
         }
 
         @Override
@@ -486,83 +1163,49 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
             dispose();
         }
 
-        private void readTileData(File outputFile,
-                                  int tileX, int tileY, int tileWidth, int tileHeight,
-                                  int jp2TileX, int jp2TileY, int jp2TileWidth, int jp2TileHeight,
-                                  short[] tileData,
-                                  Rectangle destRect) throws IOException {
-
-            synchronized (this) {
-                if (!locks.containsKey(outputFile)) {
-                    locks.put(outputFile, new Object());
-                }
-            }
-            final Object lock = locks.get(outputFile);
-
-            synchronized (lock) {
-
-                Jp2File jp2File = getOpenJ2pFile(outputFile);
-
-                int jp2Width = jp2File.width;
-                int jp2Height = jp2File.height;
-                if (jp2Width > jp2TileWidth || jp2Height > jp2TileHeight) {
-                    throw new IllegalStateException(String.format("width (=%d) > tileWidth (=%d) || height (=%d) > tileHeight (=%d)",
-                                                                  jp2Width, jp2TileWidth, jp2Height, jp2TileHeight));
-                }
-
-                int jp2X = destRect.x - jp2TileX * jp2TileWidth;
-                int jp2Y = destRect.y - jp2TileY * jp2TileHeight;
-                if (jp2X < 0 || jp2Y < 0) {
-                    throw new IllegalStateException(String.format("jp2X (=%d) < 0 || jp2Y (=%d) < 0",
-                                                                  jp2X, jp2Y));
-                }
-
-                final ImageInputStream stream = jp2File.stream;
-
-                if (jp2X == 0 && jp2Width == tileWidth
-                        && jp2Y == 0 && jp2Height == tileHeight
-                        && tileWidth * tileHeight == tileData.length) {
-                    stream.seek(jp2File.dataPos);
-                    stream.readFully(tileData, 0, tileData.length);
-                } else {
-                    final Rectangle jp2FileRect = new Rectangle(0, 0, jp2Width, jp2Height);
-                    final Rectangle tileRect = new Rectangle(jp2X,
-                                                             jp2Y,
-                                                             tileWidth, tileHeight);
-                    final Rectangle intersection = jp2FileRect.intersection(tileRect);
-                    System.out.printf("%s: tile=(%d,%d): jp2FileRect=%s, tileRect=%s, intersection=%s\n", jp2File.file, tileX, tileY, jp2FileRect, tileRect, intersection);
-                    if (!intersection.isEmpty()) {
-                        long seekPos = jp2File.dataPos + NUM_SHORT_BYTES * (intersection.y * jp2Width + intersection.x);
-                        int tilePos = 0;
-                        for (int y = 0; y < intersection.height; y++) {
-                            stream.seek(seekPos);
-                            stream.readFully(tileData, tilePos, intersection.width);
-                            seekPos += NUM_SHORT_BYTES * jp2Width;
-                            tilePos += tileWidth;
-                            for (int x = intersection.width; x < tileWidth; x++) {
-                                tileData[y * tileWidth + x] = (short) 0;
-                            }
-                        }
-                        for (int y = intersection.height; y < tileWidth; y++) {
-                            for (int x = 0; x < tileWidth; x++) {
-                                tileData[y * tileWidth + x] = (short) 0;
-                            }
-                        }
-                    } else {
-                        Arrays.fill(tileData, (short) 0);
-                    }
-                }
+        /**
+         * Reads a decoded tile file. The file is only needed until its pixels are in the {@link Jp2TileCache},
+         * so it is released right away and the disk cache may evict it.
+         */
+        private Jp2TileCache.Tile readJp2Tile(File outputFile, int jp2TileWidth, int jp2TileHeight) throws IOException {
+            // Keep the tile file from being evicted while it is read
+            if (!Jp2Cache.INSTANCE.acquire(outputFile)) {
+                throw new FileNotFoundException("Tile file not found: " + outputFile);
+            }
+            final Jp2File jp2File;
+            try {
+                jp2File = readPgxFile(outputFile);
+            } finally {
+                Jp2Cache.INSTANCE.release(outputFile);
             }
+
+            int jp2Width = jp2File.width;
+            int jp2Height = jp2File.height;
+            if (jp2Width > jp2TileWidth || jp2Height > jp2TileHeight) {
+                throw new IllegalStateException(String.format("width (=%d) > tileWidth (=%d) || height (=%d) > tileHeight (=%d)",
+                                                              jp2Width, jp2TileWidth, jp2Height, jp2TileHeight));
+            }
+
+            return new Jp2TileCache.Tile(jp2Width, jp2Height, jp2File.data.array());
         }
 
-        private Jp2File getOpenJ2pFile(File outputFile) throws IOException {
-            Jp2File jp2File = openFiles.get(outputFile);
-            if (jp2File == null) {
-                jp2File = new Jp2File();
+        /**
+         * Reads a PGX file. The pixels are read through a pooled direct buffer and copied once
+         * into the array backing {@link Jp2File#data}, which then becomes the cached tile's data.
+         */
+        private Jp2File readPgxFile(File outputFile) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(outputFile, "r");
+            try {
+                final FileChannel channel = raf.getChannel();
+                final ByteBuffer headerBuffer = ByteBuffer.allocate(MAX_PGX_HEADER_LENGTH);
+                while (headerBuffer.hasRemaining() && channel.read(headerBuffer) >= 0) {
+                    // read until the buffer is full or the file ends
+                }
+                headerBuffer.flip();
+
+                final Jp2File jp2File = new Jp2File();
                 jp2File.file = outputFile;
-                jp2File.stream = new FileImageInputStream(outputFile);
-                jp2File.header = jp2File.stream.readLine();
-                jp2File.dataPos = jp2File.stream.getStreamPosition();
+                jp2File.header = readHeaderLine(headerBuffer);
 
                 final String[] tokens = jp2File.header.split(" ");
                 if (tokens.length != 6) {
@@ -570,10 +1213,8 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
                 }
 
                 // String pg = tokens[0];   // PG
-                // String ml = tokens[1];   // ML
+                final String ml = tokens[1]; // ML = big endian, LM = little endian
                 // String plus = tokens[2]; // +
-                int jp2Width;
-                int jp2Height;
                 try {
                     // int jp2File.nbits = Integer.parseInt(tokens[3]);
                     jp2File.width = Integer.parseInt(tokens[4]);
@@ -582,10 +1223,44 @@ public class Sentinel2ProductReader2 extends AbstractProductReader {
                     throw new IOException("Unexpected tile format");
                 }
 
-                openFiles.put(outputFile, jp2File);
+                jp2File.dataPos = headerBuffer.position();
+                final int numBytes = NUM_SHORT_BYTES * jp2File.width * jp2File.height;
+                if (channel.size() - jp2File.dataPos < numBytes) {
+                    throw new IOException("Incomplete tile file " + outputFile.getName());
+                }
+
+                final ByteBuffer buffer = Jp2BufferPool.INSTANCE.acquire(numBytes);
+                try {
+                    channel.position(jp2File.dataPos);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) < 0) {
+                            throw new IOException("Incomplete tile file " + outputFile.getName());
+                        }
+                    }
+                    buffer.flip();
+                    final ByteOrder byteOrder = "LM".equals(ml) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+                    final short[] data = new short[jp2File.width * jp2File.height];
+                    buffer.slice().order(byteOrder).asShortBuffer().get(data);
+                    jp2File.data = ShortBuffer.wrap(data);
+                } finally {
+                    Jp2BufferPool.INSTANCE.release(buffer);
+                }
+                return jp2File;
+            } finally {
+                raf.close();
             }
+        }
 
-            return jp2File;
+        private String readHeaderLine(ByteBuffer buffer) throws IOException {
+            final StringBuilder header = new StringBuilder(32);
+            while (buffer.hasRemaining()) {
+                final char c = (char) (buffer.get() & 0xFF);
+                if (c == '\n') {
+                    return header.toString().trim();
+                }
+                header.append(c);
+            }
+            throw new IOException("Unexpected tile format");
         }
     }
 }
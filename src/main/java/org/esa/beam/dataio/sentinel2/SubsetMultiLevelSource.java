@@ -0,0 +1,127 @@
+package org.esa.beam.dataio.sentinel2;
+
+import com.bc.ceres.glevel.MultiLevelSource;
+import com.bc.ceres.glevel.support.AbstractMultiLevelSource;
+import com.bc.ceres.glevel.support.DefaultMultiLevelModel;
+import org.esa.beam.framework.dataio.ProductSubsetDef;
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.SingleBandedOpImage;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+
+/**
+ * A region of another multi-level source, optionally starting at one of its lower resolution levels.
+ * Level {@code i} of the subset is cut from level {@code i + levelOffset} of the source, so only the
+ * source tiles intersecting the region are ever computed.
+ *
+ * @author Norman Fomferra
+ */
+class SubsetMultiLevelSource extends AbstractMultiLevelSource {
+
+    private final MultiLevelSource source;
+    private final Rectangle region;
+    private final int levelOffset;
+    private final int maxTileSize;
+
+    /**
+     * @param region      The region in pixel coordinates of the source's level 0.
+     * @param levelOffset The source level used as level 0 of the subset, that is, a subsampling of 2^levelOffset.
+     * @param maxTileSize The maximum tile width and height.
+     */
+    SubsetMultiLevelSource(MultiLevelSource source, Rectangle region, int levelOffset, int maxTileSize) {
+        super(new DefaultMultiLevelModel(Math.max(1, source.getModel().getLevelCount() - levelOffset),
+                                         new AffineTransform(),
+                                         region.width >> levelOffset,
+                                         region.height >> levelOffset));
+        this.source = source;
+        this.region = region;
+        this.levelOffset = levelOffset;
+        this.maxTileSize = maxTileSize;
+    }
+
+    /**
+     * @return The region of the subset within an image of the given size, the whole image if none is given.
+     * @throws IOException If the region lies outside of the image.
+     */
+    static Rectangle getRegion(ProductSubsetDef subsetDef, int width, int height) throws IOException {
+        final Rectangle bounds = new Rectangle(0, 0, width, height);
+        if (subsetDef == null || subsetDef.getRegion() == null) {
+            return bounds;
+        }
+        final Rectangle region = bounds.intersection(subsetDef.getRegion());
+        if (region.isEmpty()) {
+            throw new IOException("Subset region " + subsetDef.getRegion() + " lies outside of the product");
+        }
+        return region;
+    }
+
+    /**
+     * @return The level of a multi-level image providing the subsampling of the subset. Subsamplings which
+     *         are no power of two are rounded down to one.
+     */
+    static int getLevelOffset(ProductSubsetDef subsetDef, int numLevels) {
+        if (subsetDef == null) {
+            return 0;
+        }
+        final int subSampling = Math.min(subsetDef.getSubSamplingX(), subsetDef.getSubSamplingY());
+        int levelOffset = 0;
+        while ((2 << levelOffset) <= subSampling && levelOffset + 1 < numLevels) {
+            levelOffset++;
+        }
+        if (subsetDef.getSubSamplingX() != 1 << levelOffset || subsetDef.getSubSamplingY() != 1 << levelOffset) {
+            BeamLogManager.getSystemLogger().warning(String.format("Subsampling %d,%d not supported, using %d",
+                                                                   subsetDef.getSubSamplingX(),
+                                                                   subsetDef.getSubSamplingY(),
+                                                                   1 << levelOffset));
+        }
+        return levelOffset;
+    }
+
+    @Override
+    protected RenderedImage createImage(int level) {
+        final int sourceLevel = level + levelOffset;
+        final RenderedImage sourceImage = source.getImage(sourceLevel);
+        if (sourceImage == null) {
+            return null;
+        }
+        return new SubsetOpImage(sourceImage, region.x >> sourceLevel, region.y >> sourceLevel, level);
+    }
+
+    private class SubsetOpImage extends SingleBandedOpImage {
+        private final RenderedImage sourceImage;
+        private final int offsetX;
+        private final int offsetY;
+
+        SubsetOpImage(RenderedImage sourceImage, int offsetX, int offsetY, int level) {
+            super(sourceImage.getSampleModel().getDataType(),
+                  region.width >> levelOffset,
+                  region.height >> levelOffset,
+                  new Dimension(Math.min(maxTileSize, Math.max(1, (region.width >> levelOffset) >> level)),
+                                Math.min(maxTileSize, Math.max(1, (region.height >> levelOffset) >> level))),
+                  null,
+                  ResolutionLevel.create(getModel(), level));
+            this.sourceImage = sourceImage;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+        }
+
+        @Override
+        protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+            final Rectangle sourceRect = new Rectangle(destRect.x + offsetX, destRect.y + offsetY, destRect.width, destRect.height)
+                    .intersection(new Rectangle(sourceImage.getMinX(), sourceImage.getMinY(), sourceImage.getWidth(), sourceImage.getHeight()));
+            if (sourceRect.isEmpty()) {
+                return;
+            }
+            final Raster sourceRaster = sourceImage.getData(sourceRect);
+            dest.setRect(-offsetX, -offsetY, sourceRaster);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package jopenjpeg2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Norman Fomferra
+ */
+public class Jp2BufferPoolTest {
+
+    @Test
+    public void testBuffersAreRecycledBySize() throws Exception {
+        final Jp2BufferPool pool = new Jp2BufferPool(1024);
+        final ByteBuffer b1 = pool.acquire(256);
+        assertTrue(b1.isDirect());
+        assertEquals(ByteOrder.nativeOrder(), b1.order());
+        assertEquals(256, b1.remaining());
+
+        b1.putInt(42);
+        pool.release(b1);
+        assertEquals(256, pool.getPooledBytes());
+
+        assertNotSame(b1, pool.acquire(128));
+        final ByteBuffer b2 = pool.acquire(256);
+        assertSame(b1, b2);
+        assertEquals(0, b2.position());
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testPoolIsBounded() throws Exception {
+        final Jp2BufferPool pool = new Jp2BufferPool(1024);
+        pool.release(pool.acquire(768));
+        pool.release(pool.acquire(512));
+        assertEquals(768, pool.getPooledBytes());
+        pool.release(ByteBuffer.allocate(64));
+        assertEquals(768, pool.getPooledBytes());
+    }
+}
@@ -0,0 +1,150 @@
+package jopenjpeg2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Norman Fomferra
+ */
+public class Jp2CacheTest {
+
+    private File rootDir;
+    private File packageDir;
+
+    @Before
+    public void setUp() throws Exception {
+        rootDir = File.createTempFile("Jp2CacheTest", "");
+        rootDir.delete();
+        packageDir = new File(rootDir, "S2A_PACKAGE");
+        packageDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = packageDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        packageDir.delete();
+        rootDir.delete();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFilesAreEvicted() throws Exception {
+        final Jp2Cache cache = new Jp2Cache(rootDir, 250);
+        assertEquals(0, cache.getCachedBytes());
+        final File f1 = createTile("t1.pgx");
+        final File f2 = createTile("t2.pgx");
+        final File f3 = createTile("t3.pgx");
+
+        acquireAndRelease(cache, f1);
+        acquireAndRelease(cache, f2);
+        acquireAndRelease(cache, f1);
+        assertEquals(200, cache.getCachedBytes());
+
+        acquireAndRelease(cache, f3);
+        assertEquals(200, cache.getCachedBytes());
+        assertTrue(f1.exists());
+        assertFalse(f2.exists());
+        assertTrue(f3.exists());
+
+        assertFalse(cache.acquire(f2));
+    }
+
+    @Test
+    public void testFilesInUseAreNotEvicted() throws Exception {
+        final Jp2Cache cache = new Jp2Cache(rootDir, 150);
+        assertEquals(0, cache.getCachedBytes());
+        final File f1 = createTile("t1.pgx");
+        final File f2 = createTile("t2.pgx");
+
+        assertTrue(cache.acquire(f1));
+        assertTrue(cache.acquire(f2));
+        assertEquals(200, cache.getCachedBytes());
+        assertTrue(f1.exists());
+        assertTrue(f2.exists());
+
+        cache.release(f1);
+        assertFalse(f1.exists());
+        assertTrue(f2.exists());
+        assertEquals(100, cache.getCachedBytes());
+        cache.release(f2);
+    }
+
+    @Test
+    public void testExistingFilesAreRegisteredOldestFirst() throws Exception {
+        final File f1 = createTile("t1.pgx");
+        final File f2 = createTile("t2.pgx");
+        final File f3 = createTile("t3.pgx");
+        final File tmp = createTile("t4.j2k");
+        final long now = System.currentTimeMillis();
+        f1.setLastModified(now - 10000);
+        f2.setLastModified(now - 30000);
+        f3.setLastModified(now - 20000);
+        tmp.setLastModified(now - 2L * 24 * 60 * 60 * 1000);
+
+        final Jp2Cache cache = new Jp2Cache(rootDir, 150);
+        assertEquals(300, cache.getCachedBytes());
+        assertFalse(tmp.exists());
+
+        cache.reclaim();
+        assertEquals(100, cache.getCachedBytes());
+        assertTrue(f1.exists());
+        assertFalse(f2.exists());
+        assertFalse(f3.exists());
+    }
+
+    @Test
+    public void testTempFilesAreNotCachedAndStaleOnesAreDeleted() throws Exception {
+        final File tile = createTile("t1.pgx");
+        final File stale = Jp2Cache.createTempFile("t2_R0_", ".pgx", packageDir);
+        final File fresh = Jp2Cache.createTempFile("t3_R0_", ".pgx", packageDir);
+        assertTrue(stale.getName().endsWith(".pgx"));
+        stale.setLastModified(System.currentTimeMillis() - 2L * 24 * 60 * 60 * 1000);
+
+        final Jp2Cache cache = new Jp2Cache(rootDir, 1000);
+        // Only the tile
+        assertEquals(100, cache.getCachedBytes());
+        assertTrue(tile.exists());
+        assertFalse(stale.exists());
+        assertTrue(fresh.exists());
+    }
+
+    @Test
+    public void testMoveTempFile() throws Exception {
+        final File tile = new File(packageDir, "t1.pgx");
+        assertTrue(Jp2Cache.moveTempFile(createTile("~t1_1.pgx"), tile));
+        assertTrue(tile.exists());
+
+        // Written by someone else meanwhile
+        final File tempFile = createTile("~t1_2.pgx");
+        assertTrue(Jp2Cache.moveTempFile(tempFile, tile));
+        assertTrue(tile.exists());
+        assertFalse(tempFile.exists());
+    }
+
+    private static void acquireAndRelease(Jp2Cache cache, File file) {
+        assertTrue(cache.acquire(file));
+        cache.release(file);
+    }
+
+    private File createTile(String name) throws IOException {
+        final File file = new File(packageDir, name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[100]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,192 @@
+package jopenjpeg2;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Norman Fomferra
+ */
+public class Jp2HandlePoolTest {
+
+    @Test
+    public void testHandlesAreCreatedLazilyAndReused() throws Exception {
+        final TestPool pool = new TestPool(2);
+        assertEquals(0, pool.getSize());
+
+        final Object h1 = pool.acquire();
+        assertEquals(1, pool.getSize());
+        pool.release(h1);
+
+        assertSame(h1, pool.acquire());
+        final Object h2 = pool.acquire();
+        assertNotSame(h1, h2);
+        assertEquals(2, pool.getSize());
+        assertEquals(2, pool.created.size());
+    }
+
+    @Test
+    public void testAcquireWaitsWhenExhausted() throws Exception {
+        final TestPool pool = new TestPool(1);
+        final Object h1 = pool.acquire();
+
+        final Object[] acquired = new Object[1];
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acquired[0] = pool.acquire();
+                } catch (IOException e) {
+                    // test fails below
+                }
+            }
+        };
+        thread.start();
+        thread.join(100);
+        assertTrue(thread.isAlive());
+
+        pool.release(h1);
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        assertSame(h1, acquired[0]);
+        assertEquals(1, pool.created.size());
+    }
+
+    @Test
+    public void testDispose() throws Exception {
+        final TestPool pool = new TestPool(2);
+        final Object h1 = pool.acquire();
+        final Object h2 = pool.acquire();
+        pool.release(h1);
+
+        pool.dispose();
+        assertEquals(1, pool.disposed.size());
+        assertEquals(1, pool.getSize());
+
+        pool.release(h2);
+        assertEquals(2, pool.disposed.size());
+        assertEquals(0, pool.getSize());
+
+        try {
+            pool.acquire();
+            fail();
+        } catch (IOException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testAddedHandleIsUsedFirst() throws Exception {
+        final TestPool pool = new TestPool(2);
+        final Object h0 = new Object();
+        pool.add(h0);
+        assertEquals(1, pool.getSize());
+        assertSame(h0, pool.acquire());
+        assertEquals(0, pool.created.size());
+    }
+
+    @Test
+    public void testDiscardedHandleIsReplaced() throws Exception {
+        final TestPool pool = new TestPool(1);
+        final Object h1 = pool.acquire();
+        pool.discard(h1);
+        assertEquals(0, pool.getSize());
+        assertSame(h1, pool.disposed.get(0));
+
+        final Object h2 = pool.acquire();
+        assertNotSame(h1, h2);
+        assertEquals(1, pool.getSize());
+    }
+
+    @Test
+    public void testSoloHandleIsOnlyUsedWhileNoOtherHandleIsCheckedOut() throws Exception {
+        final TestPool pool = new TestPool(2);
+        final Object solo = new Object();
+        pool.setSoloHandle(solo);
+        assertEquals(0, pool.getSize());
+
+        assertSame(solo, pool.acquire());
+        final Object h1 = pool.acquire();
+        assertNotSame(solo, h1);
+        pool.release(solo);
+
+        // h1 is still checked out, so the solo handle must not be used
+        final Object h2 = pool.acquire();
+        assertNotSame(solo, h2);
+        assertNotSame(h1, h2);
+        pool.release(h1);
+        pool.release(h2);
+
+        assertSame(solo, pool.acquire());
+        pool.release(solo);
+        assertEquals(2, pool.created.size());
+    }
+
+    @Test
+    public void testSoloHandleCountsAgainstMaxSize() throws Exception {
+        final TestPool pool = new TestPool(1);
+        final Object solo = new Object();
+        pool.setSoloHandle(solo);
+        assertSame(solo, pool.acquire());
+
+        final Object[] acquired = new Object[1];
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acquired[0] = pool.acquire();
+                } catch (IOException e) {
+                    // test fails below
+                }
+            }
+        };
+        thread.start();
+        thread.join(100);
+        assertTrue(thread.isAlive());
+
+        pool.release(solo);
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        assertSame(solo, acquired[0]);
+        assertEquals(0, pool.created.size());
+    }
+
+    @Test
+    public void testDisposeSoloHandle() throws Exception {
+        final TestPool pool = new TestPool(2);
+        final Object solo = new Object();
+        pool.setSoloHandle(solo);
+        assertSame(solo, pool.acquire());
+
+        pool.dispose();
+        assertEquals(0, pool.disposed.size());
+        pool.release(solo);
+        assertEquals(1, pool.disposed.size());
+        assertSame(solo, pool.disposed.get(0));
+    }
+
+    private static class TestPool extends Jp2HandlePool<Object> {
+        final List<Object> created = new ArrayList<Object>();
+        final List<Object> disposed = new ArrayList<Object>();
+
+        TestPool(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected synchronized Object createHandle() throws IOException {
+            final Object handle = new Object();
+            created.add(handle);
+            return handle;
+        }
+
+        @Override
+        protected synchronized void disposeHandle(Object handle) {
+            disposed.add(handle);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package jopenjpeg2;
+
+import org.junit.Test;
+
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Norman Fomferra
+ */
+public class Jp2HeaderTest {
+
+    @Test
+    public void testJp2() throws Exception {
+        final Jp2TestData testData = new Jp2TestData();
+        final Jp2Header header = read(testData.createJp2());
+
+        assertEquals(10960, header.width);
+        assertEquals(10960, header.height);
+        assertEquals(4096, header.tileWidth);
+        assertEquals(4096, header.tileHeight);
+        assertEquals(3, header.numXTiles);
+        assertEquals(3, header.numYTiles);
+        assertEquals(1, header.numComponents);
+        assertEquals(15, header.componentPrecisions[0]);
+        assertEquals(6, header.numResolutions);
+        assertEquals(1, header.numLayers);
+        assertEquals(2, header.numGuardBits);
+        assertEquals(testData.getCodestreamOffset(), header.codestreamOffset);
+
+        assertTrue(header.hasTlm());
+        assertEquals(9, header.tlmTileIndexes.length);
+        assertEquals(8, header.tlmTileIndexes[8]);
+        assertEquals(testData.getTilePartLength(), header.tlmTilePartLengths[8]);
+
+        final Jp2Image.Layout layout = header.getLayout();
+        assertEquals(6, layout.numResolutions);
+        assertEquals(1, layout.numComponents);
+        assertEquals(10960, layout.width);
+        assertEquals(3, layout.numXTiles);
+        assertEquals(4096, layout.tileWidth);
+    }
+
+    @Test
+    public void testRawCodestreamWithoutTlm() throws Exception {
+        final Jp2TestData testData = new Jp2TestData();
+        testData.width = 1826;
+        testData.height = 1826;
+        testData.tileSize = 1826;
+        testData.withTlm = false;
+        final Jp2Header header = read(testData.createCodestream());
+
+        assertEquals(1826, header.width);
+        assertEquals(1, header.numXTiles);
+        assertEquals(1, header.numYTiles);
+        assertEquals(0, header.codestreamOffset);
+        assertFalse(header.hasTlm());
+        assertTrue(header.firstTilePartOffset > 0);
+    }
+
+    @Test
+    public void testFileHeadersAreMemoizedUntilTheFileChanges() throws Exception {
+        final Jp2TestData testData = new Jp2TestData();
+        final File file = File.createTempFile("Jp2HeaderTest", ".jp2");
+        final File badFile = File.createTempFile("Jp2HeaderTest", ".jp2");
+        try {
+            write(file, testData.createJp2());
+            write(badFile, "Hello, this is not an image!".getBytes());
+
+            final Jp2Header[] headers = Jp2Header.read(new File[]{file, badFile, file});
+            assertEquals(3, headers.length);
+            assertNotNull(headers[0]);
+            assertNull(headers[1]);
+            assertSame(headers[0], headers[2]);
+            assertSame(headers[0], Jp2Header.read(file));
+
+            testData.width = 1826;
+            testData.height = 1826;
+            testData.tileSize = 1826;
+            write(file, testData.createJp2());
+            file.setLastModified(file.lastModified() + 2000);
+            final Jp2Header header = Jp2Header.read(file);
+            assertNotSame(headers[0], header);
+            assertEquals(1826, header.width);
+        } finally {
+            file.delete();
+            badFile.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAJp2() throws Exception {
+        read("Hello, this is not an image!".getBytes());
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        final FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(bytes);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static Jp2Header read(byte[] bytes) throws IOException {
+        return Jp2Header.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
@@ -0,0 +1,215 @@
+package jopenjpeg2;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Norman Fomferra
+ */
+public class Jp2ImageFactoryRegistryTest {
+
+    @Test
+    public void testUnmeasuredBackendsAreTriedFirstThenTheFastestIsUsed() throws Exception {
+        final TestFactory slow = new TestFactory("slow", true);
+        final TestFactory missing = new TestFactory("missing", false);
+        final TestFactory fast = new TestFactory("fast", true);
+        final Jp2ImageFactoryRegistry registry = new Jp2ImageFactoryRegistry(Arrays.<Jp2ImageFactory>asList(slow, missing, fast), null);
+
+        assertSame(slow, registry.selectFactory());
+        for (int i = 0; i < Jp2ImageFactoryRegistry.MIN_SAMPLES; i++) {
+            registry.recordDecode(slow, 4000, 100);
+        }
+        assertEquals(40.0, registry.getNanosPerPixel(slow), 1e-10);
+        assertSame(fast, registry.selectFactory());
+        assertTrue(Double.isNaN(registry.getNanosPerPixel(fast)));
+
+        for (int i = 0; i < Jp2ImageFactoryRegistry.MIN_SAMPLES; i++) {
+            registry.recordDecode(fast, 1000, 100);
+        }
+        assertSame(fast, registry.selectFactory());
+
+        // The fast one slows down
+        for (int i = 0; i < 20; i++) {
+            registry.recordDecode(fast, 10000, 100);
+        }
+        assertSame(slow, registry.selectFactory());
+    }
+
+    @Test
+    public void testForcedBackend() throws Exception {
+        final TestFactory a = new TestFactory("a", true);
+        final TestFactory b = new TestFactory("b", true);
+        assertSame(b, new Jp2ImageFactoryRegistry(Arrays.<Jp2ImageFactory>asList(a, b), "B").selectFactory());
+        assertSame(a, new Jp2ImageFactoryRegistry(Arrays.<Jp2ImageFactory>asList(a, b), "c").selectFactory());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoBackendAvailable() throws Exception {
+        new Jp2ImageFactoryRegistry(Collections.<Jp2ImageFactory>singletonList(new TestFactory("missing", false)), null).selectFactory();
+    }
+
+    @Test
+    public void testOnlyRealDecodesOfDiskCachedImagesAreRecorded() throws Exception {
+        final CachedTestImage image = new CachedTestImage();
+        final TestFactory factory = new TestFactory("cached", true, image);
+        final Jp2ImageFactoryRegistry registry = new Jp2ImageFactoryRegistry(Collections.<Jp2ImageFactory>singletonList(factory), null);
+        final Jp2Image measuredImage = registry.getAutoFactory().open(new File("test.jp2"), 0);
+        final short[] tileData = new short[16 * 16];
+
+        // Cache hit
+        image.cachedTiles.add("0,0");
+        measuredImage.readTileData(0, 0, 0, tileData);
+        assertTrue(Double.isNaN(registry.getNanosPerPixel(factory)));
+
+        // Failed decode, zero-filled
+        image.failingTiles.add("1,0");
+        measuredImage.readTileData(0, 1, 0, tileData);
+        measuredImage.readTileData(0, 1, 0, ByteBuffer.allocate(2 * tileData.length));
+        assertTrue(Double.isNaN(registry.getNanosPerPixel(factory)));
+
+        // Real decode
+        measuredImage.readTileData(0, 0, 1, tileData);
+        assertFalse(Double.isNaN(registry.getNanosPerPixel(factory)));
+    }
+
+    @Test
+    public void testImageOpenedWhileExploringMovesToTheFastestBackend() throws Exception {
+        final CachedTestImage slowImage = new CachedTestImage();
+        final CachedTestImage fastImage = new CachedTestImage();
+        final TestFactory slow = new TestFactory("slow", true, slowImage);
+        final TestFactory fast = new TestFactory("fast", true, fastImage);
+        final Jp2ImageFactoryRegistry registry = new Jp2ImageFactoryRegistry(Arrays.<Jp2ImageFactory>asList(slow, fast), null);
+
+        // Opened while neither backend is measured
+        final Jp2Image image = registry.getAutoFactory().open(new File("test.jp2"), 0);
+        for (int i = 0; i < Jp2ImageFactoryRegistry.MIN_SAMPLES; i++) {
+            registry.recordDecode(slow, 4000, 100);
+            registry.recordDecode(fast, 1000, 100);
+        }
+        final short[] tileData = new short[16 * 16];
+        image.readTileData(0, 0, 0, tileData);
+        image.readTileData(0, 1, 0, tileData);
+        assertEquals(0, slowImage.numReads);
+        assertEquals(2, fastImage.numReads);
+
+        image.dispose();
+        assertTrue(fastImage.disposed);
+    }
+
+    @Test
+    public void testBuiltInBackendsAreRegistered() throws Exception {
+        assertNotNull(Jp2ImageFactoryRegistry.INSTANCE.getFactory("lib"));
+        assertNotNull(Jp2ImageFactoryRegistry.INSTANCE.getFactory("exe"));
+        assertNotNull(Jp2ImageFactoryRegistry.INSTANCE.getFactory("imageio"));
+    }
+
+    private static class TestFactory extends Jp2ImageFactory {
+        private final String name;
+        private final boolean available;
+        private final Jp2Image image;
+
+        TestFactory(String name, boolean available) {
+            this(name, available, null);
+        }
+
+        TestFactory(String name, boolean available, Jp2Image image) {
+            this.name = name;
+            this.available = available;
+            this.image = image;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return available;
+        }
+
+        @Override
+        public Jp2Image open(File file, int resolution) throws IOException {
+            if (image != null) {
+                return image;
+            }
+            throw new IOException("not implemented");
+        }
+
+        @Override
+        public Jp2Image open(File file, int resolution, int numLayers) throws IOException {
+            throw new IOException("not implemented");
+        }
+
+        @Override
+        public Jp2Image.Layout getLayout(File file) throws IOException {
+            throw new IOException("not implemented");
+        }
+    }
+
+    /**
+     * Decodes a tile into the cache unless it is one of the failing tiles, which read as zeros.
+     */
+    private static class CachedTestImage implements Jp2DiskCachedImage {
+        final Set<String> cachedTiles = new HashSet<String>();
+        final Set<String> failingTiles = new HashSet<String>();
+        int numReads;
+        boolean disposed;
+
+        @Override
+        public boolean isTileCached(int tileX, int tileY) {
+            return cachedTiles.contains(tileX + "," + tileY);
+        }
+
+        @Override
+        public File getFile() {
+            return new File("test.jp2");
+        }
+
+        @Override
+        public Layout getLayout() {
+            return new Layout(1, 1, 32, 32, 2, 2, 0, 0, 16, 16);
+        }
+
+        @Override
+        public int getNumLayers() {
+            return 1;
+        }
+
+        @Override
+        public void readTileData(int componentIndex, int tileX, int tileY, short[] tileData) throws IOException {
+            decode(tileX, tileY);
+        }
+
+        @Override
+        public void readTileData(int componentIndex, int tileX, int tileY, ByteBuffer tileData) throws IOException {
+            decode(tileX, tileY);
+        }
+
+        private void decode(int tileX, int tileY) {
+            numReads++;
+            final String key = tileX + "," + tileY;
+            if (!failingTiles.contains(key)) {
+                cachedTiles.add(key);
+            }
+        }
+
+        @Override
+        public void readRegionData(int componentIndex, int x, int y, int width, int height, short[] regionData) throws IOException {
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+        }
+    }
+}
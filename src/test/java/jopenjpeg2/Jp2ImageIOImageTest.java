@@ -0,0 +1,119 @@
+package jopenjpeg2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decodes a small, losslessly encoded and tiled JP2 file with the pure-Java backend.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2ImageIOImageTest {
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+    private static final int TILE_SIZE = 64;
+
+    private File jp2File;
+
+    @Before
+    public void setUp() throws Exception {
+        jp2File = File.createTempFile("Jp2ImageIOImageTest", ".jp2");
+        final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_USHORT_GRAY);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.getRaster().setSample(x, y, 0, getSample(x, y));
+            }
+        }
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg2000");
+        assertTrue("No JPEG 2000 ImageIO writer on the classpath", writers.hasNext());
+        final ImageWriter writer = writers.next();
+        // Lossless by default
+        final ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setTiling(TILE_SIZE, TILE_SIZE, 0, 0);
+        jp2File.delete();
+        final ImageOutputStream stream = ImageIO.createImageOutputStream(jp2File);
+        try {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            stream.close();
+            writer.dispose();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jp2File.delete();
+    }
+
+    @Test
+    public void testFactoryIsAvailable() throws Exception {
+        assertTrue(new Jp2ImageIOImageFactory().isAvailable());
+    }
+
+    @Test
+    public void testReadTileData() throws Exception {
+        final Jp2Image image = new Jp2ImageIOImageFactory().open(jp2File, 0);
+        try {
+            assertEquals(WIDTH, image.getLayout().width);
+            assertEquals(TILE_SIZE, image.getLayout().tileWidth);
+            assertEquals(2, image.getLayout().numXTiles);
+
+            // Edge tile, partly outside of the image
+            final short[] tileData = new short[TILE_SIZE * TILE_SIZE];
+            image.readTileData(0, 1, 1, tileData);
+            assertEquals(getSample(TILE_SIZE, TILE_SIZE), tileData[0]);
+            assertEquals(getSample(WIDTH - 1, HEIGHT - 1), tileData[(HEIGHT - 1 - TILE_SIZE) * TILE_SIZE + WIDTH - 1 - TILE_SIZE]);
+            assertEquals(0, tileData[TILE_SIZE * TILE_SIZE - 1]);
+
+            // The same through a recycled buffer with garbage in it
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(2 * TILE_SIZE * TILE_SIZE).order(ByteOrder.nativeOrder());
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) 0x55);
+            }
+            buffer.clear();
+            image.readTileData(0, 1, 1, buffer);
+            final short[] bufferData = new short[TILE_SIZE * TILE_SIZE];
+            buffer.asShortBuffer().get(bufferData);
+            assertArrayEquals(tileData, bufferData);
+        } finally {
+            image.dispose();
+        }
+    }
+
+    @Test
+    public void testReadRegionData() throws Exception {
+        final Jp2Image image = new Jp2ImageIOImageFactory().open(jp2File, 0);
+        try {
+            final short[] regionData = new short[10 * 5];
+            image.readRegionData(0, 60, 30, 10, 5, regionData);
+            for (int j = 0; j < 5; j++) {
+                for (int i = 0; i < 10; i++) {
+                    assertEquals(getSample(60 + i, 30 + j), regionData[j * 10 + i]);
+                }
+            }
+        } finally {
+            image.dispose();
+        }
+    }
+
+    private static short getSample(int x, int y) {
+        return (short) (x + 100 * y);
+    }
+}
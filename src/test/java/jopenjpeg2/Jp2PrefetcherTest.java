@@ -0,0 +1,115 @@
+package jopenjpeg2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Norman Fomferra
+ */
+public class Jp2PrefetcherTest {
+
+    private Jp2Prefetcher prefetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        prefetcher = new Jp2Prefetcher(true, 1, 8, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        prefetcher.shutdown();
+    }
+
+    @Test
+    public void testPanDirection() throws Exception {
+        final TestTarget target = new TestTarget(1);
+        prefetcher.tileAccessed(target, 0, 0, 1);
+        prefetcher.tileAccessed(target, 0, 0, 1);
+        prefetcher.tileAccessed(target, 0, 1, 1);
+        assertTrue(target.latch.await(5, TimeUnit.SECONDS));
+        assertEquals("L0(2,1)", target.getLoads().get(0));
+    }
+
+    @Test
+    public void testZoomDirection() throws Exception {
+        final TestTarget target = new TestTarget(1);
+        prefetcher.tileAccessed(target, 3, 1, 2);
+        prefetcher.tileAccessed(target, 2, 1, 2);
+        assertTrue(target.latch.await(5, TimeUnit.SECONDS));
+        assertEquals("L1(1,2)", target.getLoads().get(0));
+    }
+
+    @Test
+    public void testNoPrefetchOutsideImageOrWhenLoaded() throws Exception {
+        final TestTarget target = new TestTarget(1);
+        target.loaded = true;
+        prefetcher.tileAccessed(target, 0, 1, 1);
+        prefetcher.tileAccessed(target, 0, 2, 1);
+        target.loaded = false;
+        prefetcher.tileAccessed(target, 0, 3, 1);
+        prefetcher.tileAccessed(target, 0, 3, 3);
+        Thread.sleep(200);
+        assertTrue(target.getLoads().isEmpty());
+    }
+
+    @Test
+    public void testSkippedWhileForegroundIsBusy() throws Exception {
+        final TestTarget target = new TestTarget(1);
+        prefetcher.foregroundStarted();
+        prefetcher.tileAccessed(target, 0, 0, 0);
+        prefetcher.tileAccessed(target, 0, 1, 0);
+        Thread.sleep(200);
+        prefetcher.foregroundEnded();
+        assertTrue(target.getLoads().isEmpty());
+    }
+
+    private static class TestTarget extends Jp2Prefetcher.Target {
+        final CountDownLatch latch;
+        final List<String> loads = new ArrayList<String>();
+        volatile boolean loaded;
+
+        TestTarget(int expectedLoads) {
+            latch = new CountDownLatch(expectedLoads);
+        }
+
+        synchronized List<String> getLoads() {
+            return new ArrayList<String>(loads);
+        }
+
+        @Override
+        public int getNumLevels() {
+            return 6;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 4;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return 4;
+        }
+
+        @Override
+        public boolean isLoaded(int level, int tileX, int tileY) {
+            return loaded;
+        }
+
+        @Override
+        public void load(int level, int tileX, int tileY) {
+            synchronized (this) {
+                loads.add("L" + level + "(" + tileX + "," + tileY + ")");
+            }
+            latch.countDown();
+        }
+    }
+}
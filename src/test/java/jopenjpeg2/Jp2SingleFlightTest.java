@@ -0,0 +1,92 @@
+package jopenjpeg2;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Norman Fomferra
+ */
+public class Jp2SingleFlightTest {
+
+    @Test
+    public void testConcurrentCallsAreCoalesced() throws Exception {
+        final Jp2SingleFlight<String, Integer> singleFlight = new Jp2SingleFlight<String, Integer>();
+        final AtomicInteger numCalls = new AtomicInteger();
+        final int numThreads = 8;
+        final int[] results = new int[numThreads];
+        final Thread[] threads = new Thread[numThreads];
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch ready = new CountDownLatch(numThreads);
+        final Callable<Integer> callable = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                started.countDown();
+                // All threads are about to call execute(),
+                ready.await();
+                // return once the others wait for this call
+                for (Thread thread : threads) {
+                    while (thread != Thread.currentThread()
+                           && thread.getState() != Thread.State.WAITING
+                           && thread.getState() != Thread.State.TERMINATED) {
+                        Thread.yield();
+                    }
+                }
+                return numCalls.incrementAndGet();
+            }
+        };
+
+        for (int i = 0; i < numThreads; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ready.countDown();
+                        results[index] = singleFlight.execute("T0", callable);
+                    } catch (IOException e) {
+                        results[index] = -1;
+                    }
+                }
+            });
+            threads[i].start();
+            if (i == 0) {
+                started.await();
+                assertTrue(singleFlight.isRunning("T0"));
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, numCalls.get());
+        for (int result : results) {
+            assertEquals(1, result);
+        }
+        assertFalse(singleFlight.isRunning("T0"));
+        // A later call runs again
+        assertEquals(2, (int) singleFlight.execute("T0", callable));
+    }
+
+    @Test
+    public void testExceptionIsPassedOn() throws Exception {
+        final Jp2SingleFlight<String, Integer> singleFlight = new Jp2SingleFlight<String, Integer>();
+        try {
+            singleFlight.execute("T1", new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    throw new IOException("decoder failed");
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("decoder failed", e.getMessage());
+        }
+        assertFalse(singleFlight.isRunning("T1"));
+    }
+}
@@ -0,0 +1,156 @@
+package jopenjpeg2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes minimal, syntactically valid JP2 files for tests. Tile-parts contain dummy bytes only.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2TestData {
+
+    public int width = 10960;
+    public int height = 10960;
+    public int tileSize = 4096;
+    public int numComponents = 1;
+    public int precision = 15;
+    public int numDecompositionLevels = 5;
+    public int numLayers = 1;
+    public boolean withTlm = true;
+    public boolean tlmBeforeQcd = false;
+    public int tilePartDataLength = 100;
+
+    int getNumTiles() {
+        final int nx = (width + tileSize - 1) / tileSize;
+        final int ny = (height + tileSize - 1) / tileSize;
+        return nx * ny;
+    }
+
+    public byte[] createJp2() throws IOException {
+        final byte[] codestream = createCodestream();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        // signature box
+        out.writeInt(12);
+        out.writeInt(Jp2Header.BOX_JP);
+        out.writeInt(0x0D0A870A);
+        // file type box
+        out.writeInt(20);
+        out.writeBytes("ftyp");
+        out.writeBytes("jp2 ");
+        out.writeInt(0);
+        out.writeBytes("jp2 ");
+        // header super box with image header box
+        out.writeInt(8 + 22);
+        out.writeBytes("jp2h");
+        out.writeInt(22);
+        out.writeBytes("ihdr");
+        out.writeInt(height);
+        out.writeInt(width);
+        out.writeShort(numComponents);
+        out.writeByte(precision - 1);
+        out.writeByte(7);
+        out.writeByte(0);
+        out.writeByte(0);
+        // codestream box
+        out.writeInt(8 + codestream.length);
+        out.writeInt(Jp2Header.BOX_JP2C);
+        out.write(codestream);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return Offset of the SOC marker within {@link #createJp2()}.
+     */
+    int getCodestreamOffset() {
+        return 12 + 20 + 8 + 22 + 8;
+    }
+
+    byte[] createCodestream() throws IOException {
+        final int numTiles = getNumTiles();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(Jp2Header.MARKER_SOC);
+
+        out.writeShort(Jp2Header.MARKER_SIZ);
+        out.writeShort(38 + 3 * numComponents);
+        out.writeShort(0);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(tileSize);
+        out.writeInt(tileSize);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeShort(numComponents);
+        for (int i = 0; i < numComponents; i++) {
+            out.writeByte(precision - 1);
+            out.writeByte(1);
+            out.writeByte(1);
+        }
+
+        out.writeShort(Jp2Header.MARKER_COD);
+        out.writeShort(12);
+        out.writeByte(0);
+        out.writeByte(0);
+        out.writeShort(numLayers);
+        out.writeByte(0);
+        out.writeByte(numDecompositionLevels);
+        out.writeByte(4);
+        out.writeByte(4);
+        out.writeByte(0);
+        out.writeByte(0);
+
+        if (withTlm && tlmBeforeQcd) {
+            writeTlm(out, numTiles);
+        }
+
+        out.writeShort(Jp2Header.MARKER_QCD);
+        out.writeShort(4);
+        out.writeByte(0x40 | 0x02);
+        out.writeByte(0);
+
+        if (withTlm && !tlmBeforeQcd) {
+            writeTlm(out, numTiles);
+        }
+
+        for (int i = 0; i < numTiles; i++) {
+            writeTilePart(out, i);
+        }
+        out.writeShort(0xFFD9); // EOC
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private void writeTlm(DataOutputStream out, int numTiles) throws IOException {
+        out.writeShort(Jp2Header.MARKER_TLM);
+        out.writeShort(4 + numTiles * 6);
+        out.writeByte(0);
+        out.writeByte(0x60); // ST = 2, SP = 1
+        for (int i = 0; i < numTiles; i++) {
+            out.writeShort(i);
+            out.writeInt(getTilePartLength());
+        }
+    }
+
+    int getTilePartLength() {
+        return 12 + 2 + tilePartDataLength;
+    }
+
+    private void writeTilePart(DataOutputStream out, int tileIndex) throws IOException {
+        out.writeShort(Jp2Header.MARKER_SOT);
+        out.writeShort(10);
+        out.writeShort(tileIndex);
+        out.writeInt(getTilePartLength());
+        out.writeByte(0);
+        out.writeByte(1);
+        out.writeShort(0xFF93); // SOD
+        for (int i = 0; i < tilePartDataLength; i++) {
+            out.writeByte(tileIndex);
+        }
+    }
+}
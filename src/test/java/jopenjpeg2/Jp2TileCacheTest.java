@@ -0,0 +1,82 @@
+package jopenjpeg2;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Norman Fomferra
+ */
+public class Jp2TileCacheTest {
+
+    private static final File FILE = new File("B02.jp2");
+
+    @Test
+    public void testLeastRecentlyUsedTilesAreDropped() throws Exception {
+        final Jp2TileCache cache = new Jp2TileCache(3 * 2 * 16);
+        final Jp2TileCache.Key k0 = new Jp2TileCache.Key(FILE, 0, 0, 0);
+        final Jp2TileCache.Key k1 = new Jp2TileCache.Key(FILE, 0, 0, 1);
+        final Jp2TileCache.Key k2 = new Jp2TileCache.Key(FILE, 1, 0, 0);
+        final Jp2TileCache.Key k3 = new Jp2TileCache.Key(new File("B03.jp2"), 0, 0, 0);
+
+        cache.put(k0, createTile(4, 4));
+        cache.put(k1, createTile(4, 4));
+        cache.put(k2, createTile(4, 4));
+        assertEquals(96, cache.getCachedBytes());
+
+        assertNotNull(cache.get(new Jp2TileCache.Key(FILE, 0, 0, 0)));
+        cache.put(k3, createTile(4, 4));
+        assertEquals(96, cache.getCachedBytes());
+        assertNotNull(cache.get(k0));
+        assertNull(cache.get(k1));
+        assertNotNull(cache.get(k2));
+        assertNotNull(cache.get(k3));
+
+        cache.put(k1, createTile(8, 8));
+        assertNull(cache.get(k1));
+
+        cache.remove(FILE);
+        assertEquals(32, cache.getCachedBytes());
+        assertNotNull(cache.get(k3));
+    }
+
+    @Test
+    public void testPreviewTilesAreKeptApart() throws Exception {
+        final Jp2TileCache cache = new Jp2TileCache(1024);
+        final Jp2TileCache.Key fullKey = new Jp2TileCache.Key(FILE, 0, 0, 3);
+        final Jp2TileCache.Key previewKey = new Jp2TileCache.Key(FILE, 0, 2, 0, 3);
+        assertEquals(fullKey, new Jp2TileCache.Key(FILE, 0, 0, 0, 3));
+        assertFalse(fullKey.equals(previewKey));
+
+        cache.put(previewKey, createTile(4, 4));
+        assertNull(cache.get(fullKey));
+        assertNotNull(cache.get(previewKey));
+    }
+
+    @Test
+    public void testCopyTo() throws Exception {
+        final Jp2TileCache.Tile tile = createTile(4, 3);
+
+        final short[] full = new short[12];
+        tile.copyTo(0, 0, 4, 3, full);
+        assertArrayEquals(tile.data, full);
+
+        final short[] part = new short[4];
+        tile.copyTo(1, 1, 2, 2, part);
+        assertArrayEquals(new short[]{5, 6, 9, 10}, part);
+
+        final short[] padded = new short[9];
+        tile.copyTo(2, 1, 3, 3, padded);
+        assertArrayEquals(new short[]{6, 7, 0, 10, 11, 0, 0, 0, 0}, padded);
+    }
+
+    private static Jp2TileCache.Tile createTile(int width, int height) {
+        final short[] data = new short[width * height];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (short) i;
+        }
+        return new Jp2TileCache.Tile(width, height, data);
+    }
+}
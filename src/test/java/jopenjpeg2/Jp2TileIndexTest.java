@@ -0,0 +1,191 @@
+package jopenjpeg2;
+
+import jopenjpeg2.jna.Jopenjpeg2LibTest;
+import jopenjpeg2.jna.Jopenjpeg2Native;
+import jopenjpeg2.jna.jopj_Img;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Norman Fomferra
+ */
+public class Jp2TileIndexTest {
+
+    private File tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = File.createTempFile("Jp2TileIndexTest", "");
+        tempDir.delete();
+        tempDir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Test
+    public void testTlmAndScanGiveSameIndex() throws Exception {
+        final Jp2TestData testData = new Jp2TestData();
+        final Jp2TileIndex tlmIndex = create(testData.createJp2());
+        testData.withTlm = false;
+        final Jp2TileIndex scanIndex = create(testData.createJp2());
+
+        assertEquals(9, tlmIndex.getTilePartCount());
+        assertEquals(9, scanIndex.getTilePartCount());
+        for (int i = 0; i < 9; i++) {
+            assertEquals(i, tlmIndex.getTileIndex(i));
+            assertEquals(i, scanIndex.getTileIndex(i));
+            assertEquals(testData.getTilePartLength(), tlmIndex.getTilePartLength(i));
+            assertEquals(testData.getTilePartLength(), scanIndex.getTilePartLength(i));
+        }
+        // The TLM marker segment moves the tile-parts, but not their distance
+        assertEquals(tlmIndex.getTilePartOffset(8) - tlmIndex.getTilePartOffset(0),
+                     scanIndex.getTilePartOffset(8) - scanIndex.getTilePartOffset(0));
+        assertTrue(tlmIndex.containsTile(8));
+        assertFalse(tlmIndex.containsTile(9));
+    }
+
+    @Test
+    public void testSidecar() throws Exception {
+        final File jp2File = write(new Jp2TestData().createJp2(), "test.jp2");
+        final File sidecarFile = new File(tempDir, "test.jp2" + Jp2TileIndex.SIDECAR_EXT);
+
+        final Jp2TileIndex index = Jp2TileIndex.get(jp2File, tempDir);
+        assertTrue(sidecarFile.exists());
+
+        final Jp2TileIndex index2 = Jp2TileIndex.read(sidecarFile, jp2File);
+        assertNotNull(index2);
+        assertEquals(index.getTilePartCount(), index2.getTilePartCount());
+        assertEquals(index.getTilePartOffset(4), index2.getTilePartOffset(4));
+        assertEquals(index.getTilePartLength(4), index2.getTilePartLength(4));
+
+        // Sidecar is stale once the JP2 file changes
+        final Jp2TestData testData = new Jp2TestData();
+        testData.tilePartDataLength = 200;
+        write(testData.createJp2(), "test.jp2");
+        assertNull(Jp2TileIndex.read(sidecarFile, jp2File));
+        assertEquals(testData.getTilePartLength(), Jp2TileIndex.get(jp2File, tempDir).getTilePartLength(4));
+    }
+
+    @Test
+    public void testWriteTileCodestream() throws Exception {
+        final Jp2TestData testData = new Jp2TestData();
+        final File jp2File = write(testData.createJp2(), "test.jp2");
+        final File j2kFile = new File(tempDir, "test_T5.j2k");
+
+        final Jp2TileIndex index = Jp2TileIndex.create(jp2File);
+        index.writeTileCodestream(jp2File, 5, j2kFile);
+
+        final Jp2Header header = Jp2Header.read(j2kFile);
+        assertEquals(0, header.codestreamOffset);
+        assertEquals(10960, header.width);
+        assertEquals(3, header.numXTiles);
+        // The TLM markers of the original file don't describe the stand-alone codestream
+        assertTrue(Jp2Header.read(jp2File).hasTlm());
+        assertFalse(header.hasTlm());
+        final Jp2TileIndex j2kIndex = Jp2TileIndex.create(j2kFile);
+        assertEquals(1, j2kIndex.getTilePartCount());
+        assertEquals(5, j2kIndex.getTileIndex(0));
+
+        final long mainHeaderLength = header.firstTilePartOffset;
+        assertEquals(mainHeaderLength + testData.getTilePartLength() + 2, j2kFile.length());
+
+        final long[][] segments = index.getTileCodestreamSegments(5);
+        assertEquals(3, segments[0].length);
+        assertEquals(testData.getCodestreamOffset(), segments[0][0]);
+        assertEquals(mainHeaderLength, segments[1][0]);
+        assertEquals(index.getTilePartOffset(5), segments[0][1]);
+        assertEquals(-1, segments[0][2]);
+        assertEquals(2, segments[1][2]);
+    }
+
+    @Test
+    public void testTlmBetweenHeaderSegmentsIsSkipped() throws Exception {
+        final Jp2TestData testData = new Jp2TestData();
+        testData.tlmBeforeQcd = true;
+        final File jp2File = write(testData.createJp2(), "test.jp2");
+        final File j2kFile = new File(tempDir, "test_T2.j2k");
+
+        final Jp2Header jp2Header = Jp2Header.read(jp2File);
+        final Jp2TileIndex index = Jp2TileIndex.create(jp2File);
+        final long[][] segments = index.getTileCodestreamSegments(2);
+        // Header before and after the TLM marker segment, the tile-part and EOC
+        assertEquals(4, segments[0].length);
+        assertEquals(jp2Header.tlmSegmentOffsets[0], segments[0][0] + segments[1][0]);
+        assertEquals(jp2Header.tlmSegmentOffsets[0] + jp2Header.tlmSegmentLengths[0], segments[0][1]);
+        assertEquals(jp2Header.firstTilePartOffset, segments[0][1] + segments[1][1]);
+
+        index.writeTileCodestream(jp2File, 2, j2kFile);
+        final Jp2Header header = Jp2Header.read(j2kFile);
+        assertFalse(header.hasTlm());
+        assertEquals(jp2Header.quantizationStyle, header.quantizationStyle);
+        assertEquals(jp2Header.firstTilePartOffset - jp2Header.codestreamOffset - jp2Header.tlmSegmentLengths[0],
+                     header.firstTilePartOffset);
+
+        // Sidecars keep the split header
+        final Jp2TileIndex index2 = Jp2TileIndex.get(jp2File, tempDir);
+        final Jp2TileIndex index3 = Jp2TileIndex.read(new File(tempDir, "test.jp2" + Jp2TileIndex.SIDECAR_EXT), jp2File);
+        assertArrayEquals(index2.getTileCodestreamSegments(2)[0], index3.getTileCodestreamSegments(2)[0]);
+        assertArrayEquals(segments[0], index3.getTileCodestreamSegments(2)[0]);
+    }
+
+    /**
+     * Decodes a tile of a real, TLM-bearing Sentinel-2 file through the index and compares it with
+     * the tile decoded from the whole file. Needs the native library and -Dsentinel2.testdataset.
+     */
+    @Test
+    public void testDecodeTileOfTlmFileThroughIndex() throws Exception {
+        final File jp2File = Jopenjpeg2LibTest.F;
+        if (!jp2File.exists() || !Jopenjpeg2Native.isAvailable() || !Jp2Header.read(jp2File).hasTlm()) {
+            return;
+        }
+        final Jp2Header header = Jp2Header.read(jp2File);
+        final int tileIndex = header.getNumTiles() - 1;
+        final long[][] segments = Jp2TileIndex.create(jp2File).getTileCodestreamSegments(tileIndex);
+        final short[] expected = new short[header.tileWidth * header.tileHeight];
+        final short[] actual = new short[header.tileWidth * header.tileHeight];
+        final jopj_Img img = Jopenjpeg2Native.jopj_open_img(jp2File.getPath(), 0);
+        assertNotNull(img);
+        try {
+            assertTrue(Jopenjpeg2Native.jopj_read_img_tile_data(img, 0, tileIndex, expected));
+            assertTrue(Jopenjpeg2Native.jopj_read_img_tile_data_indexed(img, 0, tileIndex, segments[0].length, segments[0], segments[1], actual));
+        } finally {
+            Jopenjpeg2Native.jopj_dispose_img(img);
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    private File write(byte[] bytes, String name) throws IOException {
+        final File file = new File(tempDir, name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static Jp2TileIndex create(byte[] bytes) throws IOException {
+        final ImageInputStream stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes));
+        return Jp2TileIndex.create(stream, Jp2Header.read(stream));
+    }
+}
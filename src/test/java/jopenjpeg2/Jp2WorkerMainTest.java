@@ -0,0 +1,79 @@
+package jopenjpeg2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the worker protocol without the native decoder.
+ *
+ * @author Norman Fomferra
+ */
+public class Jp2WorkerMainTest {
+
+    @Test
+    public void testProtocol() throws Exception {
+        final ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        final DataOutputStream requestOut = new DataOutputStream(requests);
+        requestOut.writeInt(Jp2Worker.CMD_CLOSE);
+        requestOut.writeUTF("S2A_B02.jp2");
+        requestOut.writeInt(42);
+        requestOut.writeInt(Jp2Worker.CMD_CLOSE);
+        requestOut.writeUTF("S2A_B03.jp2");
+        requestOut.close();
+
+        final ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        new Jp2WorkerMain(new DataInputStream(new ByteArrayInputStream(requests.toByteArray())),
+                          new DataOutputStream(replies)).run();
+
+        final DataInputStream replyIn = new DataInputStream(new ByteArrayInputStream(replies.toByteArray()));
+        assertEquals(Jp2Worker.STATUS_OK, replyIn.readInt());
+        assertEquals(Jp2Worker.STATUS_ERROR, replyIn.readInt());
+        assertEquals("Unknown command 42", replyIn.readUTF());
+        assertEquals(Jp2Worker.STATUS_OK, replyIn.readInt());
+        assertEquals(-1, replyIn.read());
+    }
+
+    @Test
+    public void testWritePgxFileReplacesExistingFile() throws Exception {
+        final File pgxFile = File.createTempFile("Jp2WorkerMainTest", ".pgx");
+        try {
+            final ByteBuffer data = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            data.asShortBuffer().put(new short[]{1, 2, 3, 4});
+            Jp2WorkerMain.writePgxFile(pgxFile, 2, 2, data);
+
+            final String header = String.format("PG %s + 16 2 2\n", ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "LM" : "ML");
+            assertEquals(header.length() + 8, pgxFile.length());
+            final byte[] bytes = new byte[(int) pgxFile.length()];
+            final DataInputStream in = new DataInputStream(new FileInputStream(pgxFile));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+            assertEquals(header, new String(bytes, 0, header.length(), "US-ASCII"));
+            final short[] values = new short[4];
+            ByteBuffer.wrap(bytes, header.length(), 8).order(ByteOrder.nativeOrder()).asShortBuffer().get(values);
+            assertArrayEquals(new short[]{1, 2, 3, 4}, values);
+            // No temporary files are left behind
+            assertEquals(0, pgxFile.getParentFile().listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(pgxFile.getName() + "_");
+                }
+            }).length);
+        } finally {
+            pgxFile.delete();
+        }
+    }
+}
@@ -27,7 +27,6 @@ public class Jopenjpeg2LibTest {
         int tile_width = img_info.tile_width;
         int tile_height = img_info.tile_height;
         lib.jopj_dispose_img_info(img_info);
-        lib.jopj_dispose_img(img);
 
         assertEquals(10960, width);
         assertEquals(10960, height);
@@ -46,8 +45,8 @@ public class Jopenjpeg2LibTest {
                 final String region = String.format("%d_%d_%d_%d", x0, y0, w, h);
 
                 long t0 = System.currentTimeMillis();
-                ok = lib.jopj_read_img_region_data(F.getPath(), 0, 0, x0, y0, w, h, tile_data);
-                //ok = lib.jopj_read_img_region_data(img, 0, 0, 0, 0, 0, tile_data);
+                // decodes on the already opened image, the file is not opened and parsed again
+                ok = lib.jopj_read_img_region(img, 0, x0, y0, w, h, tile_data);
                 if (ok) {
                     long t1 = System.currentTimeMillis();
                     long dt = t1 - t0;
@@ -55,11 +54,12 @@ public class Jopenjpeg2LibTest {
 
                     writePgm(String.format("images/region-%s.pgm", region), w, h, tile_data);
                 } else {
-                    System.out.printf("jopj_read_img_region_data failed for region %s\n", region);
+                    System.out.printf("jopj_read_img_region failed for region %s\n", region);
                 }
             }
         }
 
+        lib.jopj_dispose_img(img);
     }
 
     @Test
@@ -0,0 +1,65 @@
+package org.esa.beam.dataio.sentinel2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Norman Fomferra
+ */
+public class AnglesOpImageTest {
+
+    @Test
+    public void testDetectorGridsAreMergedAndGapsFilled() throws Exception {
+        final Header.AnglesGrid detector1 = createGrid("10 NaN NaN\n10 NaN NaN\n", "350 NaN NaN\n350 NaN NaN\n");
+        final Header.AnglesGrid detector2 = createGrid("20 30 NaN\n20 30 NaN\n", "10 30 NaN\n10 30 NaN\n");
+
+        final AnglesOpImage.Grid zenith = AnglesOpImage.Grid.createViewingGrid(new Header.AnglesGrid[]{detector1, detector2}, false, 10.0);
+        assertEquals(3, zenith.width);
+        assertEquals(2, zenith.height);
+        assertEquals(500.0, zenith.stepX, 1e-10);
+        assertEquals(15.0F, zenith.values[0], 1e-5F);
+        assertEquals(30.0F, zenith.values[1], 1e-5F);
+        // Filled from its neighbours
+        assertEquals(30.0F, zenith.values[2], 1e-5F);
+
+        // 350° and 10° average to 0°, not 180°
+        final AnglesOpImage.Grid azimuth = AnglesOpImage.Grid.createViewingGrid(new Header.AnglesGrid[]{detector1, detector2}, true, 10.0);
+        assertEquals(0.0F, azimuth.values[0] >= 180.0F ? azimuth.values[0] - 360.0F : azimuth.values[0], 1e-4F);
+        assertEquals(30.0F, azimuth.values[5], 1e-4F);
+    }
+
+    @Test
+    public void testEmptyGrid() throws Exception {
+        final Header.AnglesGrid empty = createGrid("NaN NaN\n", "NaN NaN\n");
+        assertNull(AnglesOpImage.Grid.createSunGrid(empty, false, 10.0));
+        assertNull(AnglesOpImage.Grid.createSunGrid(new Header.AnglesGrid(), true, 10.0));
+    }
+
+    @Test
+    public void testHasNodesDoesNotDecode() throws Exception {
+        // Not parseable, would fail if decoded
+        final Header.AnglesGrid grid = createGrid("a b\n", " \n");
+        assertTrue(AnglesOpImage.Grid.hasNodes(new Header.AnglesGrid[]{new Header.AnglesGrid(), grid}, false));
+        assertFalse(AnglesOpImage.Grid.hasNodes(new Header.AnglesGrid[]{new Header.AnglesGrid(), grid}, true));
+        assertFalse(AnglesOpImage.Grid.hasNodes(new Header.AnglesGrid[0], false));
+    }
+
+    @Test
+    public void testInvalidGrid() throws Exception {
+        final AnglesOpImage.Grid grid = AnglesOpImage.Grid.createInvalid(false);
+        assertEquals(1, grid.width);
+        assertEquals(1, grid.height);
+        assertTrue(Float.isNaN(grid.values[0]));
+    }
+
+    private static Header.AnglesGrid createGrid(String zenith, String azimuth) throws Exception {
+        final Header.AnglesGrid grid = new Header.AnglesGrid();
+        grid.zenith = new Header.PackedGrid(zenith.getBytes("US-ASCII"), zenith.split("\n").length);
+        grid.azimuth = new Header.PackedGrid(azimuth.getBytes("US-ASCII"), azimuth.split("\n").length);
+        return grid;
+    }
+}
@@ -0,0 +1,46 @@
+package org.esa.beam.dataio.sentinel2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Norman Fomferra
+ */
+public class FloatTokenizerTest {
+
+    @Test
+    public void testParseFloat() throws Exception {
+        final String[] tokens = {"0", "-0.5", "+12.25", "45.123456", "0.000123", "1e3", "-2.5E-4", "123456789012345678901", "NaN", "Infinity"};
+        for (String token : tokens) {
+            final byte[] bytes = token.getBytes("US-ASCII");
+            final float expected = Float.parseFloat(token);
+            final float actual = FloatTokenizer.parseFloat(bytes, 0, bytes.length);
+            if (Float.isNaN(expected)) {
+                assertTrue(token, Float.isNaN(actual));
+            } else {
+                assertEquals(token, expected, actual, Math.ulp(expected));
+            }
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseFloatRejectsGarbage() throws Exception {
+        final byte[] bytes = "1.2.3".getBytes("US-ASCII");
+        FloatTokenizer.parseFloat(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testPackedGridIsDecodedOnFirstAccess() throws Exception {
+        final Header.PackedGrid grid = new Header.PackedGrid(" 1 2.5 NaN\n4 5\n".getBytes("US-ASCII"), 2);
+        assertEquals(2, grid.getHeight());
+        assertEquals(3, grid.getWidth());
+        assertEquals(1.0F, grid.getValue(0, 0), 0.0F);
+        assertEquals(2.5F, grid.getValue(1, 0), 0.0F);
+        assertTrue(Float.isNaN(grid.getValue(2, 0)));
+        assertEquals(5.0F, grid.getValue(1, 1), 0.0F);
+        // Short rows are padded
+        assertTrue(Float.isNaN(grid.getValue(2, 1)));
+    }
+}
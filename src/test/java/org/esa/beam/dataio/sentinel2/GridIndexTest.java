@@ -0,0 +1,43 @@
+package org.esa.beam.dataio.sentinel2;
+
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Norman Fomferra
+ */
+public class GridIndexTest {
+
+    @Test
+    public void testQuery() {
+        final GridIndex index = new GridIndex(100.0, 100.0);
+        assertEquals(0, index.add(new Rectangle(0, 0, 110, 110)));
+        assertEquals(1, index.add(new Rectangle(100, 0, 110, 110)));
+        assertEquals(2, index.add(new Rectangle2D.Double(-250.0, -250.0, 50.0, 50.0)));
+        assertEquals(3, index.size());
+
+        assertArrayEquals(new int[]{0}, index.query(new Rectangle(10, 10, 10, 10)));
+        assertArrayEquals(new int[]{0, 1}, index.query(new Rectangle(105, 50, 1, 1)));
+        assertArrayEquals(new int[]{0, 1}, index.query(new Rectangle(0, 0, 300, 300)));
+        assertArrayEquals(new int[]{2}, index.query(new Rectangle(-220, -220, 5, 5)));
+        assertArrayEquals(new int[0], index.query(new Rectangle(500, 500, 5, 5)));
+        // Larger than the indexed area
+        assertArrayEquals(new int[]{0, 1, 2}, index.query(new Rectangle2D.Double(-1e9, -1e9, 2e9, 2e9)));
+    }
+
+    @Test
+    public void testManyRectangles() {
+        final GridIndex index = new GridIndex(1000.0, 1000.0);
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 100; x++) {
+                index.add(new Rectangle(x * 1000, y * 1000, 1000, 1000));
+            }
+        }
+        assertArrayEquals(new int[]{5050, 5051, 5150, 5151}, index.query(new Rectangle(50500, 50500, 1000, 1000)));
+    }
+}
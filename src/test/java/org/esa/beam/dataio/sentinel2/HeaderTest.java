@@ -1,7 +1,6 @@
 package org.esa.beam.dataio.sentinel2;
 
 import org.geotools.geometry.Envelope2D;
-import org.jdom.JDOMException;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -30,7 +29,7 @@ public class HeaderTest {
     }
 
     @Before
-    public void before() throws JDOMException, IOException {
+    public void before() throws IOException {
         InputStream stream = getClass().getResourceAsStream("l1c/MTD_GPPL1C_054_20091210235100_20091210235130_0001.xml");
         header = Header.parseHeader(new InputStreamReader(stream));
     }
@@ -219,10 +218,10 @@ public class HeaderTest {
                     int numAziNans = 0;
                     int numZenNans = 0;
                     for (Header.AnglesGrid grid : grids) {
-                        if (Float.isNaN(grid.azimuth[y][x])) {
+                        if (Float.isNaN(grid.getAzimuth(x, y))) {
                             numAziNans++;
                         }
-                        if (Float.isNaN(grid.zenith[y][x])) {
+                        if (Float.isNaN(grid.getZenith(x, y))) {
                             numZenNans++;
                         }
                     }
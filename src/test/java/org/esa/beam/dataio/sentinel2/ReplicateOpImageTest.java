@@ -0,0 +1,63 @@
+package org.esa.beam.dataio.sentinel2;
+
+import com.bc.ceres.glevel.support.DefaultMultiLevelModel;
+import org.junit.Test;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * @author Norman Fomferra
+ */
+public class ReplicateOpImageTest {
+
+    @Test
+    public void testReplicate() {
+        final BufferedImage source = new BufferedImage(3, 2, BufferedImage.TYPE_USHORT_GRAY);
+        source.getRaster().setSamples(0, 0, 3, 2, 0, new int[]{1, 2, 3, 4, 5, 6});
+
+        final ReplicateOpImage image = createImage(source, 2, 6, 4);
+        assertArrayEquals(new int[]{
+                1, 1, 2, 2, 3, 3,
+                1, 1, 2, 2, 3, 3,
+                4, 4, 5, 5, 6, 6,
+                4, 4, 5, 5, 6, 6,
+        }, compute(image, new Rectangle(0, 0, 6, 4)));
+        // A region not aligned with the source pixels
+        assertArrayEquals(new int[]{
+                1, 2, 2,
+                4, 5, 5,
+        }, compute(image, new Rectangle(1, 1, 3, 2)));
+    }
+
+    @Test
+    public void testTargetLargerThanSource() {
+        final BufferedImage source = new BufferedImage(2, 1, BufferedImage.TYPE_USHORT_GRAY);
+        source.getRaster().setSamples(0, 0, 2, 1, 0, new int[]{7, 8});
+
+        // The last source column and row are repeated
+        final ReplicateOpImage image = createImage(source, 3, 8, 2);
+        assertArrayEquals(new int[]{
+                7, 7, 7, 8, 8, 8, 8, 8,
+                7, 7, 7, 8, 8, 8, 8, 8,
+        }, compute(image, new Rectangle(0, 0, 8, 2)));
+    }
+
+    private static ReplicateOpImage createImage(BufferedImage source, int factor, int width, int height) {
+        return new ReplicateOpImage(source, factor, width, height, new Dimension(width, height),
+                                    new DefaultMultiLevelModel(1, new AffineTransform(), width, height), 0);
+    }
+
+    private static int[] compute(ReplicateOpImage image, Rectangle rect) {
+        final WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_USHORT, rect.width, rect.height, 1, rect.getLocation());
+        image.computeRect(null, raster, rect);
+        return raster.getSamples(rect.x, rect.y, rect.width, rect.height, 0, new int[rect.width * rect.height]);
+    }
+}
@@ -3,8 +3,10 @@ package org.esa.beam.dataio.sentinel2;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Norman Fomferra
@@ -30,6 +32,13 @@ public class S2FileNameInfoTest {
         assertEquals(-1, fni.getBand("IMG_GPPL1C_054_20091210235100_20091210235130_11_000000_15SUD.jp2"));
     }
 
+    @Test
+    public void testSameDatastrip() throws Exception {
+        final S2FilenameInfo fni = S2FilenameInfo.create("IMG_GPPL1C_054_20091210235100_20091210235130_01_000000_15TVE.jp2");
+        assertTrue(fni.isSameDatastrip(S2FilenameInfo.create("IMG_GPPL1C_054_20091210235100_20091210235130_05_000000_15SUD.jp2")));
+        assertFalse(fni.isSameDatastrip(S2FilenameInfo.create("IMG_GPPL1C_055_20091210235100_20091210235130_01_000000_15TVE.jp2")));
+    }
+
     @Test
     public void testInvalidFileName() throws Exception {
         assertNull(S2FilenameInfo.create("MTD_GPPL1C_054_20091210235100_20091210235130_0001.xml"));
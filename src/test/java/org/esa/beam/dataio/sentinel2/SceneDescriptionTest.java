@@ -1,6 +1,5 @@
 package org.esa.beam.dataio.sentinel2;
 
-import org.jdom.JDOMException;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -9,6 +8,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -20,7 +20,7 @@ public class SceneDescriptionTest {
     private SceneDescription sceneDescription;
 
     @Before
-    public void before() throws JDOMException, IOException {
+    public void before() throws IOException {
         InputStream stream = getClass().getResourceAsStream("l1c/MTD_GPPL1C_054_20091210235100_20091210235130_0001.xml");
         header = Header.parseHeader(new InputStreamReader(stream));
         sceneDescription = SceneDescription.create(header);
@@ -60,4 +60,14 @@ public class SceneDescriptionTest {
         assertEquals(10, sceneDescription.getTileIndex("15TWE"));
     }
 
+    @Test
+    public void testTileIndexes() {
+        assertArrayEquals(new int[]{0}, sceneDescription.getTileIndexes(new Rectangle(0, 30000, 1000, 1000)));
+        // Overlap of four tiles
+        assertArrayEquals(new int[]{0, 1, 2, 3}, sceneDescription.getTileIndexes(new Rectangle(10500, 20500, 100, 100)));
+        assertArrayEquals(new int[0], sceneDescription.getTileIndexes(new Rectangle(35000, 0, 100, 100)));
+        assertEquals(11, sceneDescription.getTileIndexes(sceneDescription.getSceneRectangle()).length);
+        assertEquals(11, sceneDescription.getTileIndexes(sceneDescription.getSceneEnvelope()).length);
+    }
+
 }
@@ -1,13 +1,24 @@
 package org.esa.beam.dataio.sentinel2;
 
+import jopenjpeg2.Jp2TestData;
 import jopenjpeg2.jna.Jopenjpeg2LibTest;
 import org.esa.beam.framework.dataio.ProductReader;
+import org.esa.beam.framework.dataio.ProductSubsetDef;
 import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
 import org.esa.beam.framework.datamodel.Product;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
@@ -17,6 +28,28 @@ import static org.junit.Assert.assertEquals;
  */
 public class Sentinel2ProductReaderTest {
 
+    private static final String FILE_NAME_FORMAT = "IMG_GPPL1C_054_20091210235100_20091210235130_%02d_000000_15SUC.jp2";
+
+    private File tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = File.createTempFile("Sentinel2ProductReaderTest", "");
+        tempDir.delete();
+        tempDir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
     @Test
     public void testReader() throws Exception {
         final Sentinel2ProductReaderPlugIn sentinel2ProductReaderPlugIn = new Sentinel2ProductReaderPlugIn();
@@ -38,4 +71,116 @@ public class Sentinel2ProductReaderTest {
 
         product.dispose();
     }
+
+    @Test
+    public void testBandSubsetDoesNotReadOtherBandFiles() throws Exception {
+        // B2, 10 m
+        final File b2File = writeBandFile(1, 2048, 2048);
+        // B1, 60 m, would make the product 6000 pixels wide if its header was read
+        writeBandFile(0, 1000, 1000);
+
+        final ProductSubsetDef subsetDef = new ProductSubsetDef();
+        subsetDef.setNodeNames(new String[]{"B2"});
+        final Product product = new Sentinel2ProductReaderPlugIn().createReaderInstance().readProductNodes(b2File, subsetDef);
+        try {
+            assertEquals(2048, product.getSceneRasterWidth());
+            assertEquals(2048, product.getSceneRasterHeight());
+            assertNotNull(product.getBand("B2"));
+            assertNull(product.getBand("B1"));
+        } finally {
+            product.dispose();
+        }
+    }
+
+    @Test
+    public void testRegionSubset() throws Exception {
+        final File b2File = writeBandFile(1, 2048, 2048);
+
+        final ProductSubsetDef subsetDef = new ProductSubsetDef();
+        subsetDef.setRegion(100, 200, 1000, 800);
+        subsetDef.setSubSampling(2, 2);
+        final Product product = new Sentinel2ProductReaderPlugIn().createReaderInstance().readProductNodes(b2File, subsetDef);
+        try {
+            assertEquals(500, product.getSceneRasterWidth());
+            assertEquals(400, product.getSceneRasterHeight());
+            // Six resolutions, the subset starts at the second
+            assertEquals(5, product.getBand("B2").getSourceImage().getModel().getLevelCount());
+        } finally {
+            product.dispose();
+        }
+    }
+
+    @Test
+    public void testRegionSubsetGeoCoding() throws Exception {
+        final File file = Jopenjpeg2LibTest.F;
+        if (!file.exists()) {
+            // Test data set not installed
+            return;
+        }
+        final Product product = new Sentinel2ProductReaderPlugIn().createReaderInstance().readProductNodes(file, null);
+        final ProductSubsetDef subsetDef = new ProductSubsetDef();
+        subsetDef.setRegion(1000, 2000, 4000, 3000);
+        subsetDef.setSubSampling(2, 2);
+        final Product subset = new Sentinel2ProductReaderPlugIn().createReaderInstance().readProductNodes(file, subsetDef);
+        try {
+            assertEquals(2000, subset.getSceneRasterWidth());
+            assertEquals(1500, subset.getSceneRasterHeight());
+            assertNotNull(product.getGeoCoding());
+            assertNotNull(subset.getGeoCoding());
+            assertSameGeoPos(product.getGeoCoding(), new PixelPos(1000, 2000), subset.getGeoCoding(), new PixelPos(0, 0));
+            assertSameGeoPos(product.getGeoCoding(), new PixelPos(1200, 2300), subset.getGeoCoding(), new PixelPos(100, 150));
+        } finally {
+            subset.dispose();
+            product.dispose();
+        }
+    }
+
+    @Test
+    public void testGranuleLayout() throws Exception {
+        final File granulesDir = new File(tempDir, "GRANULE");
+        final File imageDir1 = new File(granulesDir, "G1/IMG_DATA");
+        final File imageDir2 = new File(granulesDir, "G2/IMG_DATA");
+        assertTrue(imageDir1.mkdirs());
+        assertTrue(imageDir2.mkdirs());
+        // Granule without images
+        assertTrue(new File(granulesDir, "G3").mkdirs());
+        try {
+            assertEquals(tempDir, Sentinel2ProductReader2.getGranuleProductDir(imageDir1));
+            assertNull(Sentinel2ProductReader2.getGranuleProductDir(tempDir));
+
+            final List<File> otherImageDirs = Sentinel2ProductReader2.getOtherGranuleImageDirs(imageDir1);
+            assertEquals(1, otherImageDirs.size());
+            assertEquals(imageDir2, otherImageDirs.get(0));
+            assertTrue(Sentinel2ProductReader2.getOtherGranuleImageDirs(tempDir).isEmpty());
+        } finally {
+            imageDir1.delete();
+            imageDir2.delete();
+            imageDir1.getParentFile().delete();
+            imageDir2.getParentFile().delete();
+            new File(granulesDir, "G3").delete();
+            granulesDir.delete();
+        }
+    }
+
+    private static void assertSameGeoPos(GeoCoding expectedGeoCoding, PixelPos expectedPixelPos, GeoCoding actualGeoCoding, PixelPos actualPixelPos) {
+        final GeoPos expected = expectedGeoCoding.getGeoPos(expectedPixelPos, null);
+        final GeoPos actual = actualGeoCoding.getGeoPos(actualPixelPos, null);
+        assertEquals(expected.lat, actual.lat, 1e-6);
+        assertEquals(expected.lon, actual.lon, 1e-6);
+    }
+
+    private File writeBandFile(int bandIndex, int width, int height) throws IOException {
+        final Jp2TestData testData = new Jp2TestData();
+        testData.width = width;
+        testData.height = height;
+        testData.tileSize = 1024;
+        final File file = new File(tempDir, String.format(FILE_NAME_FORMAT, bandIndex));
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(testData.createJp2());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
 }